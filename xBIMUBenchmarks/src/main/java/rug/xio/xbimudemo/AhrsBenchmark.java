@@ -0,0 +1,100 @@
+package rug.xio.xbimudemo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput of the MadgwickAhrs filter in samples per second.
+//
+// The sensor samples are a slow rotation with noise, in x-BIMU fixed-point
+// units. packet updates one sample per SensorsPacket as a listener would;
+// batch updates from an array of raw values in one call. At the x-BIMU's
+// highest sensor rate of 256 Hz, one core serves score / 256 devices.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AhrsBenchmark {
+
+	// Number of samples per operation
+	private static final int SAMPLES = 4096;
+
+	private int[] mSensors;
+	private SensorsPacket[] mPackets;
+	private MadgwickAhrs mAhrs;
+
+	@Setup
+	public void setup() {
+
+		Random random = new Random(1);
+
+		mSensors = new int[SAMPLES * MadgwickAhrs.SAMPLE_STRIDE];
+		mPackets = new SensorsPacket[SAMPLES];
+
+		for (int i = 0; i < SAMPLES; i++) {
+			double angle = 2 * Math.PI * i / SAMPLES;
+			int base = i * MadgwickAhrs.SAMPLE_STRIDE;
+
+			// gyroscope, 0.1 deg/s
+			mSensors[base] = (int)(random.nextGaussian() * 5);
+			mSensors[base + 1] = (int)(random.nextGaussian() * 5);
+			mSensors[base + 2] = 225 + (int)(random.nextGaussian() * 5);
+
+			// accelerometer, mg
+			mSensors[base + 3] = (int)(random.nextGaussian() * 10);
+			mSensors[base + 4] = (int)(random.nextGaussian() * 10);
+			mSensors[base + 5] = 1000 + (int)(random.nextGaussian() * 10);
+
+			// magnetometer, mG
+			mSensors[base + 6] = (int)(400 * Math.cos(angle));
+			mSensors[base + 7] = (int)(-400 * Math.sin(angle));
+			mSensors[base + 8] = -300;
+
+			SensorsPacket packet = new SensorsPacket();
+
+			for (int v = 0; v < MadgwickAhrs.SAMPLE_STRIDE; v++) {
+				packet.setValue(v, mSensors[base + v]);
+			}
+
+			mPackets[i] = packet;
+		}
+
+		mAhrs = new MadgwickAhrs(256);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public float packet() {
+
+		MadgwickAhrs ahrs = mAhrs;
+		SensorsPacket[] packets = mPackets;
+
+		for (int i = 0; i < packets.length; i++) {
+			ahrs.onSensors(packets[i]);
+		}
+
+		return ahrs.getQ0();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public float batch() {
+
+		mAhrs.update(mSensors, 0, SAMPLES, null);
+
+		return mAhrs.getQ0();
+	}
+}
@@ -0,0 +1,113 @@
+package rug.xio.xbimudemo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput of the QuaternionConverter in quaternions per second.
+//
+// The *Batch benchmarks convert structure-of-arrays batches, the *Packet
+// benchmarks convert one QuaternionPacket at a time as a listener would.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuaternionConverterBenchmark {
+
+	// Number of quaternions per operation
+	private static final int SAMPLES = 4096;
+
+	private final int[] mE0 = new int[SAMPLES];
+	private final int[] mE1 = new int[SAMPLES];
+	private final int[] mE2 = new int[SAMPLES];
+	private final int[] mE3 = new int[SAMPLES];
+	private final QuaternionPacket[] mPackets = new QuaternionPacket[SAMPLES];
+
+	private final float[] mQ0 = new float[SAMPLES];
+	private final float[] mQ1 = new float[SAMPLES];
+	private final float[] mQ2 = new float[SAMPLES];
+	private final float[] mQ3 = new float[SAMPLES];
+	private final float[] mRoll = new float[SAMPLES];
+	private final float[] mPitch = new float[SAMPLES];
+	private final float[] mYaw = new float[SAMPLES];
+	private final float[][] mMatrix = new float[9][SAMPLES];
+	private final float[] mOut = new float[9];
+
+	@Setup
+	public void setup() {
+
+		Random random = new Random(1);
+
+		for (int i = 0; i < SAMPLES; i++) {
+			QuaternionPacket packet = new QuaternionPacket();
+
+			packet.element0 = mE0[i] = random.nextInt(20001) - 10000;
+			packet.element1 = mE1[i] = random.nextInt(20001) - 10000;
+			packet.element2 = mE2[i] = random.nextInt(20001) - 10000;
+			packet.element3 = mE3[i] = random.nextInt(20001) - 10000;
+
+			mPackets[i] = packet;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public float eulerBatch() {
+		QuaternionConverter.normalize(mE0, mE1, mE2, mE3, mQ0, mQ1, mQ2, mQ3, 0, SAMPLES);
+		QuaternionConverter.toEuler(mQ0, mQ1, mQ2, mQ3, mRoll, mPitch, mYaw, 0, SAMPLES);
+		return mYaw[SAMPLES - 1];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public float eulerPacket() {
+
+		float[] out = mOut;
+		float sum = 0;
+
+		for (int i = 0; i < SAMPLES; i++) {
+			QuaternionConverter.normalize(mPackets[i], out, 0);
+			QuaternionConverter.toEuler(out[0], out[1], out[2], out[3], out, 4);
+			sum += out[6];
+		}
+
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public float matrixBatch() {
+		QuaternionConverter.normalize(mE0, mE1, mE2, mE3, mQ0, mQ1, mQ2, mQ3, 0, SAMPLES);
+		QuaternionConverter.toRotationMatrix(mQ0, mQ1, mQ2, mQ3, mMatrix, 0, SAMPLES);
+		return mMatrix[8][SAMPLES - 1];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public float matrixPacket() {
+
+		float[] out = mOut;
+		float sum = 0;
+
+		for (int i = 0; i < SAMPLES; i++) {
+			QuaternionConverter.normalize(mPackets[i], out, 0);
+			QuaternionConverter.toRotationMatrix(out[0], out[1], out[2], out[3], out, 0);
+			sum += out[8];
+		}
+
+		return sum;
+	}
+}
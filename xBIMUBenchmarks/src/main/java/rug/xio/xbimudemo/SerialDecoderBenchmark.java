@@ -0,0 +1,110 @@
+package rug.xio.xbimudemo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput and allocation rate of the SerialDecoder.
+//
+// Each operation decodes the whole synthetic stream, delivered in chunks of
+// chunkSize bytes the way BluetoothSerialService.ConnectedThread delivers reads.
+// The bytes and packets counters are reported as rates per second; ns/byte is
+// 1e9 / bytes. Run with -prof gc and divide gc.alloc.rate.norm by packetsPerPass
+// (printed at setup) for bytes allocated per packet.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerialDecoderBenchmark {
+
+	// Number of packets in each synthetic stream
+	private static final int PACKETS = 10000;
+
+	@Param({ XbimuStreamGenerator.BINARY, XbimuStreamGenerator.ASCII, XbimuStreamGenerator.MIXED_CORRUPT })
+	public String stream;
+
+	@Param({ "1", "16", "128", "1024" })
+	public int chunkSize;
+
+	private byte[] mStream;
+	private byte[] mChunk;
+	private SerialDecoder mDecoder;
+	private PacketCounter mPacketCounter;
+
+	// Counters reported by JMH as rates
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long bytes;
+		public long packets;
+	}
+
+	// Counts decoded packets and sums their counters so decoding cannot be optimised away
+	private static class PacketCounter extends SerialPacketAdapter {
+
+		private long mPackets;
+		private long mCounterSum;
+
+		@Override
+		public void onPacket(SerialPacket packet) {
+			mCounterSum += packet.counter;
+			mPackets++;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+
+		mStream = new XbimuStreamGenerator(1).generate(stream, PACKETS);
+		mChunk = new byte[chunkSize];
+		mDecoder = new SerialDecoder();
+		mPacketCounter = new PacketCounter();
+		mDecoder.getBus().subscribe(mPacketCounter, SerialPacketBus.MASK_All);
+
+		// Let auto-detect lock on before measuring
+		decode();
+
+		System.out.println("bytesPerPass = " + mStream.length + ", packetsPerPass = " + mPacketCounter.mPackets);
+	}
+
+	@Benchmark
+	public long decode(Counters counters) {
+
+		long packets = mPacketCounter.mPackets;
+
+		decode();
+
+		counters.bytes += mStream.length;
+		counters.packets += mPacketCounter.mPackets - packets;
+
+		return mPacketCounter.mCounterSum;
+	}
+
+	private void decode() {
+
+		byte[] stream = mStream;
+		byte[] chunk = mChunk;
+
+		for (int offset = 0; offset < stream.length; offset += chunk.length) {
+			int bytes = Math.min(chunk.length, stream.length - offset);
+
+			System.arraycopy(stream, offset, chunk, 0, bytes);
+
+			mDecoder.reciveBytes(chunk, bytes);
+		}
+	}
+}
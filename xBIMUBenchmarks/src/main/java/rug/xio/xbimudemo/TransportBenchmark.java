@@ -0,0 +1,166 @@
+package rug.xio.xbimudemo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput of the read pipeline, SerialTransport -> SerialReader -> SerialDecoder.
+//
+// Each operation opens the transport, reads the synthetic binary stream to the
+// end of the stream and closes it again. The file transport replays a
+// temporary file; the tcp transport connects to a local server that writes the
+// stream once per connection.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransportBenchmark {
+
+	// Number of packets in the synthetic stream
+	private static final int PACKETS = 10000;
+
+	@Param({ "file", "tcp" })
+	public String transport;
+
+	private byte[] mStream;
+	private File mFile;
+	private ServerSocket mServer;
+	private Thread mServerThread;
+	private SerialDecoder mDecoder;
+	private PacketCounter mPacketCounter;
+
+	// Counters reported by JMH as rates
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long bytes;
+		public long packets;
+	}
+
+	// Counts decoded packets and sums their counters so decoding cannot be optimised away
+	private static class PacketCounter extends SerialPacketAdapter {
+
+		private long mPackets;
+		private long mCounterSum;
+
+		@Override
+		public void onPacket(SerialPacket packet) {
+			mCounterSum += packet.counter;
+			mPackets++;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+
+		mStream = new XbimuStreamGenerator(1).generate(XbimuStreamGenerator.BINARY, PACKETS);
+		mDecoder = new SerialDecoder();
+		mPacketCounter = new PacketCounter();
+		mDecoder.getBus().subscribe(mPacketCounter, SerialPacketBus.MASK_All);
+
+		if ("file".equals(transport)) {
+			mFile = File.createTempFile("xbimu", ".bin");
+			mFile.deleteOnExit();
+
+			FileOutputStream out = new FileOutputStream(mFile);
+			try {
+				out.write(mStream);
+			} finally {
+				out.close();
+			}
+		}
+		else {
+			mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			mServerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve();
+				}
+			}, "StreamServer");
+			mServerThread.setDaemon(true);
+			mServerThread.start();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+
+		if (mServer != null) {
+			mServer.close();
+			mServerThread.join();
+		}
+
+		if (mFile != null) {
+			mFile.delete();
+		}
+	}
+
+	// Write the stream once to each connection
+	private void serve() {
+		try {
+			while (true) {
+				Socket socket = mServer.accept();
+				try {
+					OutputStream out = socket.getOutputStream();
+					out.write(mStream);
+					out.flush();
+				} finally {
+					socket.close();
+				}
+			}
+		} catch (IOException e) {
+			// server closed by tearDown
+		}
+	}
+
+	@Benchmark
+	public long read(Counters counters) throws IOException {
+
+		long packets = mPacketCounter.mPackets;
+
+		SerialTransport serialTransport = mFile != null
+				? new FileReplayTransport(mFile, false)
+				: new TcpTransport("127.0.0.1", mServer.getLocalPort());
+
+		serialTransport.open();
+		try {
+			SerialReader reader = new SerialReader(serialTransport, mDecoder);
+
+			reader.run();
+
+			if (!(reader.getFailure() instanceof EOFException)) {
+				throw reader.getFailure();
+			}
+		} finally {
+			serialTransport.close();
+		}
+
+		counters.bytes += mStream.length;
+		counters.packets += mPacketCounter.mPackets - packets;
+
+		return mPacketCounter.mCounterSum;
+	}
+}
@@ -0,0 +1,169 @@
+package rug.xio.xbimudemo;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+// Generates synthetic x-BIMU data streams for benchmarking.
+//
+// Streams follow the default x-BIMU output mix: sensor and quaternion packets at
+// similar rates with occasional battery and thermometer packets.
+public class XbimuStreamGenerator {
+
+	// Stream types
+	public static final String BINARY = "binary";
+	public static final String ASCII = "ascii";
+	public static final String MIXED_CORRUPT = "mixed-corrupt";
+
+	// Fraction of packets with a flipped bit in mixed streams
+	private static final double CORRUPTION_RATE = 0.02;
+
+	// Number of packets between switches of output format in mixed streams
+	private static final int MIXED_RUN_LENGTH = 200;
+
+	private final Random mRandom;
+	// Packet counter of each packet type, indexed by header character
+	private final int[] mCounters = new int[128];
+
+	public XbimuStreamGenerator(long seed) {
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Generate a stream.
+	 * 
+	 * @param type
+	 *            BINARY, ASCII or MIXED_CORRUPT
+	 * @param packets
+	 *            Number of packets in the stream
+	 */
+	public byte[] generate(String type, int packets) {
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream(packets * 24);
+
+		boolean mixed = MIXED_CORRUPT.equals(type);
+		boolean binary = BINARY.equals(type);
+
+		if (!mixed && !binary && !ASCII.equals(type)) {
+			throw new IllegalArgumentException("Unknown stream type " + type);
+		}
+
+		for (int i = 0; i < packets; i++) {
+
+			if (mixed && i % MIXED_RUN_LENGTH == 0) {
+				binary = !binary;
+			}
+
+			byte[] packet = nextPacket(i, binary);
+
+			if (mixed && mRandom.nextDouble() < CORRUPTION_RATE) {
+				packet[mRandom.nextInt(packet.length)] ^= (byte)(1 << mRandom.nextInt(8));
+			}
+
+			stream.write(packet, 0, packet.length);
+		}
+
+		return stream.toByteArray();
+	}
+
+	// Generate the next packet of the output mix
+	private byte[] nextPacket(int index, boolean binary) {
+
+		int slot = index % 20;
+
+		if (slot == 19) {
+			return encode('B', binary, nextCounter('B'), 3700 + mRandom.nextInt(500));
+		}
+		if (slot == 9) {
+			return encode('T', binary, nextCounter('T'), 200 + mRandom.nextInt(100));
+		}
+		if ((slot & 1) == 0) {
+			return encode('S', binary, nextCounter('S'), randomShorts(9, 32768));
+		}
+		return encode('Q', binary, nextCounter('Q'), randomShorts(4, 10000));
+	}
+
+	private int nextCounter(char ident) {
+		return mCounters[ident]++ & 0xFF;
+	}
+
+	private int[] randomShorts(int count, int range) {
+
+		int[] values = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			values[i] = mRandom.nextInt(2 * range) - range;
+		}
+
+		return values;
+	}
+
+	/**
+	 * Encode a packet in binary or ASCII format.
+	 * 
+	 * @param ident
+	 *            Packet header, e.g. 'S'
+	 * @param binary
+	 *            true for binary format, false for ASCII format
+	 * @param counter
+	 *            Packet counter
+	 * @param values
+	 *            Packet data values
+	 */
+	public static byte[] encode(char ident, boolean binary, int counter, int... values) {
+		return binary ? encodeBinary(ident, counter, values) : encodeASCII(ident, counter, values);
+	}
+
+	private static byte[] encodeBinary(char ident, int counter, int[] values) {
+
+		byte[] packet = new byte[values.length * 2 + 3];
+		int index = 0;
+
+		packet[index++] = (byte)ident;
+
+		for (int value : values) {
+			packet[index++] = (byte)(value >> 8);
+			packet[index++] = (byte)value;
+		}
+
+		packet[index++] = (byte)counter;
+
+		int checksum = 0;
+
+		for (int i = 0; i < index; i++) {
+			checksum ^= packet[i];
+		}
+
+		packet[index] = (byte)checksum;
+
+		return packet;
+	}
+
+	private static byte[] encodeASCII(char ident, int counter, int[] values) {
+
+		StringBuilder line = new StringBuilder();
+
+		line.append(ident);
+
+		for (int value : values) {
+			line.append(',').append(value);
+		}
+
+		line.append(',').append(counter).append(',');
+
+		int checksum = 0;
+
+		for (int i = 0; i < line.length(); i++) {
+			checksum ^= line.charAt(i);
+		}
+
+		line.append(checksum).append('\r');
+
+		byte[] packet = new byte[line.length()];
+
+		for (int i = 0; i < packet.length; i++) {
+			packet[i] = (byte)line.charAt(i);
+		}
+
+		return packet;
+	}
+}
@@ -0,0 +1,121 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Writes packets of several devices and types to a column store, reads every
+// column back and checks the values and the column ranges of each chunk.
+public class ColumnStoreTest {
+
+	private static final int DEVICES = 2;
+	private static final int PACKETS = 1000;
+	private static final int CHUNK_ROWS = 128;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void readsBackEveryColumn() throws IOException {
+
+		File file = mFolder.newFile("packets.xbc");
+		ColumnStoreWriter writer = new ColumnStoreWriter(new BufferedOutputStream(new FileOutputStream(file)), CHUNK_ROWS);
+		Random random = new Random(1);
+		List<SerialPacket> quaternions = new ArrayList<SerialPacket>();
+		List<SerialPacket> batteries = new ArrayList<SerialPacket>();
+		long time = 1L << 40;
+
+		for (int i = 0; i < PACKETS; i++) {
+			SerialPacket packet = (i % 5 == 4) ? new BatteryPacket() : new QuaternionPacket();
+
+			packet.deviceId = i % DEVICES;
+			packet.counter = i & 0xFF;
+			packet.receiveTime = time += 1000000 + random.nextInt(100000);
+
+			// Sample times are before the receive time, and not in order
+			packet.timestamp = time - random.nextInt(3000000);
+
+			for (int v = 0; v < packet.getValueCount(); v++) {
+				packet.setValue(v, random.nextInt());
+			}
+
+			writer.write(packet);
+			(packet.type == SerialDecoder.PACKET_Battery ? batteries : quaternions).add(packet);
+		}
+
+		writer.close();
+
+		ColumnStoreReader reader = new ColumnStoreReader(file);
+		int quaternionRows = 0;
+		int batteryRows = 0;
+
+		try {
+			long[] values = new long[CHUNK_ROWS];
+
+			while (reader.next()) {
+				List<SerialPacket> packets = reader.getPacketType() == SerialDecoder.PACKET_Battery ? batteries : quaternions;
+				int first = reader.getPacketType() == SerialDecoder.PACKET_Battery ? batteryRows : quaternionRows;
+				int rows = reader.getRowCount();
+
+				assertEquals(ColumnStoreWriter.COLUMN_Values + packets.get(0).getValueCount(), reader.getColumnCount());
+				assertTrue(rows <= CHUNK_ROWS);
+
+				for (int c = 0; c < reader.getColumnCount(); c++) {
+					assertEquals(rows, reader.readColumn(c, values));
+
+					long min = Long.MAX_VALUE;
+					long max = Long.MIN_VALUE;
+
+					for (int row = 0; row < rows; row++) {
+						long expected = getColumn(packets.get(first + row), c);
+
+						assertEquals("column " + c + " row " + (first + row), expected, values[row]);
+						min = Math.min(min, expected);
+						max = Math.max(max, expected);
+					}
+
+					assertEquals(min, reader.getMin(c));
+					assertEquals(max, reader.getMax(c));
+				}
+
+				if (reader.getPacketType() == SerialDecoder.PACKET_Battery) {
+					batteryRows += rows;
+				}
+				else {
+					quaternionRows += rows;
+				}
+			}
+
+			assertFalse(reader.next());
+		}
+		finally {
+			reader.close();
+		}
+
+		assertEquals(quaternions.size(), quaternionRows);
+		assertEquals(batteries.size(), batteryRows);
+	}
+
+	// Value of a packet in a column
+	private static long getColumn(SerialPacket packet, int column) {
+		switch (column) {
+		case ColumnStoreWriter.COLUMN_Timestamp: return packet.timestamp;
+		case ColumnStoreWriter.COLUMN_ReceiveTime: return packet.receiveTime;
+		case ColumnStoreWriter.COLUMN_Device: return packet.deviceId;
+		case ColumnStoreWriter.COLUMN_Counter: return packet.counter;
+		default: return packet.getValue(column - ColumnStoreWriter.COLUMN_Values);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// Merges the packets of several concurrently filled buffers and checks that
+// every packet is delivered once, in timestamp order.
+public class MergedSampleStreamTest {
+
+	private static final int DEVICES = 7;
+	private static final int PACKETS = 2000;
+
+	// Packets are timestamped ahead of the clock so the holdback never expires while sources are filled
+	private static final long START_DELAY_NANOS = 1000000000L;
+	private static final long PERIOD_NANOS = 100000;
+
+	@Test
+	public void deliversAllPacketsInTimestampOrder() throws InterruptedException {
+
+		final long start = System.nanoTime() + START_DELAY_NANOS;
+		final int[] received = new int[DEVICES];
+		final long[] last = { Long.MIN_VALUE };
+		final int[] outOfOrder = { 0 };
+		final Object done = new Object();
+
+		MergedSampleStream stream = new MergedSampleStream(new SerialPacketAdapter() {
+			@Override
+			public void onPacket(SerialPacket packet) {
+				if (packet.timestamp < last[0]) {
+					outOfOrder[0]++;
+				}
+
+				last[0] = packet.timestamp;
+
+				synchronized (done) {
+					received[packet.deviceId]++;
+					done.notifyAll();
+				}
+			}
+		}, MergedSampleStream.DEFAULT_HOLDBACK_NANOS);
+
+		Thread[] producers = new Thread[DEVICES];
+
+		for (int i = 0; i < DEVICES; i++) {
+			final int device = i;
+			final SampleRingBuffer buffer = new SampleRingBuffer(256, SampleRingBuffer.OVERFLOW_Block);
+
+			stream.addSource(buffer);
+
+			producers[i] = new Thread() {
+				@Override
+				public void run() {
+					QuaternionPacket packet = new QuaternionPacket();
+
+					packet.deviceId = device;
+
+					// Each device has its own phase so timestamps interleave
+					for (int j = 0; j < PACKETS; j++) {
+						packet.counter = j & 0xFF;
+						packet.timestamp = start + j * PERIOD_NANOS + device * (PERIOD_NANOS / DEVICES);
+						buffer.offer(packet);
+					}
+				}
+			};
+		}
+
+		stream.start();
+
+		for (Thread producer : producers) {
+			producer.start();
+		}
+
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		// The last packets wait for the holdback once the other sources are empty
+		long deadline = System.nanoTime() + START_DELAY_NANOS + 5000000000L;
+
+		synchronized (done) {
+			while (total(received) < DEVICES * PACKETS && System.nanoTime() < deadline) {
+				done.wait(100);
+			}
+		}
+
+		stream.shutdown();
+		stream.join();
+
+		synchronized (done) {
+			for (int i = 0; i < DEVICES; i++) {
+				assertEquals("packets of device " + i, PACKETS, received[i]);
+			}
+		}
+
+		assertEquals("packets out of order", 0, outOfOrder[0]);
+	}
+
+	private static int total(int[] counts) {
+		int total = 0;
+
+		for (int count : counts) {
+			total += count;
+		}
+
+		return total;
+	}
+}
@@ -0,0 +1,107 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+// Feeds a clock the receive times of a simulated device whose clock drifts
+// against the host clock, with packets arriving in buffers after a random
+// latency, and checks the estimated sample times, period and drift.
+public class PacketClockTest {
+
+	private static final double RATE = 100;
+	private static final double DRIFT_PPM = 50;
+	private static final int PACKETS = 20000;
+
+	// Allowed error of the estimated period and drift
+	private static final double TOLERANCE_PPM = 5;
+
+	// Packets per received buffer
+	private static final int BUFFER_PACKETS = 4;
+
+	// Latency of the buffers, at least the minimum plus up to the spread
+	private static final long MIN_LATENCY_NANOS = 5000000L;
+	private static final int LATENCY_SPREAD_NANOS = 30000000;
+
+	private static final long START_NANOS = -(1L << 40);
+
+	@Test
+	public void estimatesSampleTimesAndDrift() {
+
+		PacketClock clock = new PacketClock();
+		Random random = new Random(1);
+		double period = 1e9 / RATE * (1 + DRIFT_PPM * 1e-6);
+		long[] timestamps = new long[PACKETS];
+
+		clock.setNominalRate(RATE);
+
+		for (int first = 0; first < PACKETS; first += BUFFER_PACKETS) {
+			int last = first + BUFFER_PACKETS - 1;
+			long receiveTime = START_NANOS + (long)(last * period) + MIN_LATENCY_NANOS + random.nextInt(LATENCY_SPREAD_NANOS);
+
+			for (int i = first; i <= last; i++) {
+				timestamps[i] = clock.onPacket(i & 0xFF, receiveTime);
+			}
+
+			clock.publish();
+		}
+
+		assertTrue(clock.isLocked());
+		assertEquals(period, clock.getPeriod(), period * TOLERANCE_PPM * 1e-6);
+		assertEquals(DRIFT_PPM, clock.getDrift(), TOLERANCE_PPM);
+
+		// Once settled, the estimates are close to the sample times plus the minimum latency,
+		// while the receive times are spread over the whole latency spread
+		double minError = Double.MAX_VALUE;
+		double maxError = -Double.MAX_VALUE;
+
+		for (int i = PACKETS / 2; i < PACKETS; i++) {
+			double error = timestamps[i] - (START_NANOS + i * period);
+
+			assertTrue("timestamp " + i + " went back", timestamps[i] > timestamps[i - 1]);
+			minError = Math.min(minError, error);
+			maxError = Math.max(maxError, error);
+		}
+
+		assertTrue("offset " + minError, minError > 0);
+		assertTrue("offset " + maxError, maxError < MIN_LATENCY_NANOS + LATENCY_SPREAD_NANOS / 6);
+	}
+
+	@Test
+	public void driftIsUnknownWithoutNominalRate() {
+
+		PacketClock clock = new PacketClock();
+
+		for (int i = 0; i < 1000; i++) {
+			clock.onPacket(i & 0xFF, START_NANOS + i * 10000000L);
+			clock.publish();
+		}
+
+		assertTrue(clock.isLocked());
+		assertEquals(RATE, clock.getRate(), 1e-6);
+		assertTrue(Double.isNaN(clock.getDrift()));
+	}
+
+	@Test
+	public void restartsAfterGapOfMoreThanACounterCycle() {
+
+		PacketClock clock = new PacketClock();
+		long period = 10000000L;
+
+		for (int i = 0; i < 1000; i++) {
+			clock.onPacket(i & 0xFF, START_NANOS + i * period);
+			clock.publish();
+		}
+
+		// The counter has wrapped several times while nothing was received
+		long resumed = START_NANOS + 2000 * period;
+
+		assertEquals(resumed, clock.onPacket(2000 & 0xFF, resumed));
+		clock.publish();
+		assertFalse(clock.isLocked());
+	}
+}
@@ -0,0 +1,152 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+// Decimates constant values and ramps with every filter order and checks the
+// gain, the sample time of the outputs and the separation of devices.
+public class PacketDecimatorTest {
+
+	private static final int[] FACTORS = { 2, 3, 10, PacketDecimator.MAX_FACTOR };
+
+	private static final int OUTPUTS = 50;
+
+	// Sample period of the input packets, 100 Hz
+	private static final long PERIOD_NANOS = 10000000L;
+	private static final long START_NANOS = 1L << 40;
+
+	// Constant values of the channels, including the extremes of 16-bit values
+	private static final int[] DC = { 0, 1, -1, 12345, -23456, 32767, -32768, 100, -100 };
+
+	@Test
+	public void passesConstantValuesWithUnitGain() {
+
+		for (int order = 1; order <= PacketDecimator.MAX_ORDER; order++) {
+			for (int factor : FACTORS) {
+				Collector collector = new Collector();
+				PacketDecimator decimator = new PacketDecimator(collector, factor, order);
+				SensorsPacket packet = new SensorsPacket();
+
+				for (int v = 0; v < packet.getValueCount(); v++) {
+					packet.setValue(v, DC[v]);
+				}
+
+				for (int i = 0; i < OUTPUTS * factor; i++) {
+					packet.timestamp = START_NANOS + i * PERIOD_NANOS;
+					decimator.onSensors(packet);
+
+					if (i % factor != factor - 1) {
+						assertEquals(i / factor, collector.mCount);
+						continue;
+					}
+
+					// After the start-up transient the integrators may have wrapped, which the combs undo
+					if (i / factor >= order - 1) {
+						for (int v = 0; v < packet.getValueCount(); v++) {
+							assertEquals("order " + order + " factor " + factor, DC[v], collector.mLast.getValue(v));
+						}
+					}
+				}
+
+				assertEquals(OUTPUTS, collector.mCount);
+			}
+		}
+	}
+
+	@Test
+	public void timestampsOutputsAtFilterDelay() {
+
+		for (int order = 1; order <= PacketDecimator.MAX_ORDER; order++) {
+			for (int factor : FACTORS) {
+				Collector collector = new Collector();
+				PacketDecimator decimator = new PacketDecimator(collector, factor, order);
+				QuaternionPacket packet = new QuaternionPacket();
+
+				// A ramp of one step per sample, the filter output lies on it at the sample time the filter is centred on
+				for (int i = 0; i < OUTPUTS * factor && i < 60000; i++) {
+					packet.timestamp = START_NANOS + i * PERIOD_NANOS;
+					packet.receiveTime = packet.timestamp + PERIOD_NANOS;
+
+					for (int v = 0; v < packet.getValueCount(); v++) {
+						packet.setValue(v, v % 2 == 0 ? i - 30000 : 30000 - i);
+					}
+
+					decimator.onQuaternion(packet);
+
+					if (i % factor != factor - 1 || i / factor < order - 1) {
+						continue;
+					}
+
+					SerialPacket output = collector.mLast;
+					double sample = (double)(output.timestamp - START_NANOS) / PERIOD_NANOS;
+					String message = "order " + order + " factor " + factor + " sample " + i;
+
+					assertEquals(message, i - order * (factor - 1) / 2.0, sample, 1e-6);
+					assertEquals(message, packet.receiveTime, output.receiveTime);
+
+					for (int v = 0; v < packet.getValueCount(); v++) {
+						assertEquals(message, v % 2 == 0 ? sample - 30000 : 30000 - sample, output.getValue(v), 0.5);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void filtersDevicesSeparately() {
+
+		Collector collector = new Collector();
+		PacketDecimator decimator = new PacketDecimator(collector, 4, 2);
+		SensorsPacket packet = new SensorsPacket();
+
+		// Interleaved packets of three devices with a different constant value each
+		for (int i = 0; i < 3 * 4 * OUTPUTS; i++) {
+			packet.deviceId = i % 3 == 2 ? 7 : i % 3;
+			packet.setValue(0, 1000 * (packet.deviceId + 1));
+			decimator.onSensors(packet);
+
+			if (collector.mCount > 3) {
+				assertEquals(1000 * (collector.mLast.deviceId + 1), collector.mLast.getValue(0));
+			}
+		}
+
+		assertEquals(3 * OUTPUTS, collector.mCount);
+	}
+
+	@Test
+	public void passesOtherPacketsUnchanged() {
+
+		Collector collector = new Collector();
+		PacketDecimator decimator = new PacketDecimator(collector, 10, 3);
+		BatteryPacket battery = new BatteryPacket();
+		ThermometerPacket thermometer = new ThermometerPacket();
+
+		decimator.onBattery(battery);
+		assertSame(battery, collector.mLast);
+		decimator.onThermometer(thermometer);
+		assertSame(thermometer, collector.mLast);
+
+		// Without decimation every packet is passed on as it is
+		decimator = new PacketDecimator(collector, 1, 3);
+		SensorsPacket sensors = new SensorsPacket();
+
+		decimator.onSensors(sensors);
+		assertSame(sensors, collector.mLast);
+		assertEquals(3, collector.mCount);
+	}
+
+	// Keeps the last packet passed on
+	private static class Collector extends SerialPacketAdapter {
+
+		private int mCount = 0;
+		private SerialPacket mLast;
+
+		@Override
+		public void onPacket(SerialPacket packet) {
+			mLast = packet;
+			mCount++;
+		}
+	}
+}
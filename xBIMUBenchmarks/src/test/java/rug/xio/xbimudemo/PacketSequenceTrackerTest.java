@@ -0,0 +1,125 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// Tracks generated packet counters with known losses, duplicates and
+// reordered packets, and checks the counts, loss ratio and rate.
+public class PacketSequenceTrackerTest {
+
+	private static final int PACKETS = 1000;
+	private static final int WINDOW = 100;
+
+	// Receive time between packets, 100 Hz
+	private static final long PERIOD_NANOS = 10000000L;
+
+	@Test
+	public void unwrapsCounterWithoutLoss() {
+
+		PacketSequenceTracker tracker = new PacketSequenceTracker(WINDOW);
+
+		// Start near the wrap so the counter wraps within the first packets
+		for (int i = 0; i < PACKETS; i++) {
+			assertEquals(0, tracker.onPacket(250 + i, i * PERIOD_NANOS));
+		}
+
+		tracker.publish();
+
+		assertEquals(PACKETS, tracker.getReceived());
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getDuplicates());
+		assertEquals(0, tracker.getReordered());
+		assertEquals(0, tracker.getLossRatio(), 1e-9);
+		assertEquals(100, tracker.getEffectiveRate(), 1e-6);
+		assertEquals(0, tracker.getJitter(), 1e-6);
+	}
+
+	@Test
+	public void countsGapsAcrossWrap() {
+
+		PacketSequenceTracker tracker = new PacketSequenceTracker(WINDOW);
+		int received = 0;
+		int lost = 0;
+
+		// Every tenth packet and the two after it are lost, so gaps also span the wrap
+		for (int i = 0; i < PACKETS; i++) {
+			if (i % 10 == 9 || (i > 0 && i % 10 < 2)) {
+				continue;
+			}
+
+			int gap = tracker.onPacket(i, i * PERIOD_NANOS);
+
+			assertEquals("gap before packet " + i, i % 10 != 2 ? 0 : i == 2 ? 1 : 3, gap);
+			received++;
+			lost += gap;
+		}
+
+		tracker.publish();
+
+		assertEquals(received, tracker.getReceived());
+		assertEquals(lost, tracker.getLost());
+		assertEquals(0.3, tracker.getLossRatio(), 0.01);
+		assertEquals(70, tracker.getEffectiveRate(), 1);
+	}
+
+	@Test
+	public void countsDuplicatesAndReorderedPackets() {
+
+		PacketSequenceTracker tracker = new PacketSequenceTracker(WINDOW);
+		int duplicates = 0;
+		int reordered = 0;
+
+		for (int i = 0; i < PACKETS; i++) {
+			int counter = i;
+
+			// Swap pairs of packets, the first of a pair is counted as lost until it arrives
+			if (i % 20 == 5) {
+				counter = i + 1;
+			}
+			else if (i % 20 == 6) {
+				counter = i - 1;
+				reordered++;
+			}
+
+			tracker.onPacket(counter, i * PERIOD_NANOS);
+
+			// Repeat a packet, and one a few packets back
+			if (i % 50 == 10) {
+				tracker.onPacket(counter, i * PERIOD_NANOS);
+				tracker.onPacket(counter - 3, i * PERIOD_NANOS);
+				duplicates += 2;
+			}
+		}
+
+		tracker.publish();
+
+		assertEquals(PACKETS, tracker.getReceived());
+		assertEquals(0, tracker.getLost());
+		assertEquals(duplicates, tracker.getDuplicates());
+		assertEquals(reordered, tracker.getReordered());
+	}
+
+	@Test
+	public void startsNewSequenceAfterRestart() {
+
+		PacketSequenceTracker tracker = new PacketSequenceTracker(WINDOW);
+
+		for (int i = 0; i < 10; i++) {
+			tracker.onPacket(i, i * PERIOD_NANOS);
+		}
+
+		// A counter a few packets back is a new sequence after a restart, not a reordered packet
+		tracker.restart();
+		assertEquals(0, tracker.onPacket(5, 10 * PERIOD_NANOS));
+		assertEquals(0, tracker.onPacket(6, 11 * PERIOD_NANOS));
+		tracker.onPacket(4, 11 * PERIOD_NANOS);
+
+		tracker.publish();
+
+		assertEquals(12, tracker.getReceived());
+		assertEquals(0, tracker.getLost());
+		assertEquals(1, tracker.getDuplicates());
+		assertEquals(0, tracker.getReordered());
+	}
+}
@@ -0,0 +1,248 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+// Reads a recorded stream over a simulated link that drops every few kilobytes
+// and fails some of the reconnection attempts, and checks that reading resumes
+// after every drop.
+public class ReconnectingReaderTest {
+
+	private static final int PACKETS = 20000;
+
+	// Bytes read over each connection before it drops, and bytes lost in the drop
+	private static final int DROP_AFTER = 30000;
+	private static final int LOST_BYTES = 37;
+
+	@Test
+	public void reconnectsAfterEveryDrop() throws IOException {
+
+		SimulatedLink link = new SimulatedLink(new XbimuStreamGenerator(0).generate(XbimuStreamGenerator.BINARY, PACKETS),
+				DROP_AFTER);
+		CountingConsumer consumer = new CountingConsumer();
+		CountingListener listener = new CountingListener();
+
+		SerialTransport first = link.createTransport();
+		first.open();
+
+		ReconnectingReader reader = new ReconnectingReader(first, link, consumer, listener);
+
+		reader.setBackoff(1000000L, 4000000L);
+		reader.setMaxAttempts(3);
+		reader.run();
+
+		int drops = link.getDrops();
+
+		assertTrue("drops " + drops, drops > 1);
+		assertTrue(reader.getFailure() instanceof IOException);
+
+		// Every drop is followed by a reconnection, the end of the stream by attempts that fail
+		assertEquals(drops, reader.getReconnects());
+		assertEquals(drops + 1, listener.lost);
+		assertEquals(drops, listener.reconnected);
+		assertEquals(link.getFailedOpens(), reader.getFailedAttempts());
+		assertTrue(reader.getFailedAttempts() > 3);
+
+		// The consumer is reset on every reconnection and given the receive times
+		assertEquals(drops, consumer.resets);
+		assertEquals(0, consumer.untimed);
+
+		// A drop costs the packet cut off, about two packets of lost bytes and a resync
+		long received = consumer.decoder.getStatistics().getPackets();
+
+		assertTrue("received " + received, received >= PACKETS - 5 * drops);
+
+		assertTrue(reader.getMaxDataGap() > 0);
+		assertTrue(reader.getTotalDataGap() >= reader.getMaxDataGap());
+		assertTrue(reader.getMaxReconnectLatency() >= reader.getLastReconnectLatency());
+	}
+
+	@Test
+	public void cancelDuringBackoffReturnsPromptly() throws Exception {
+
+		SimulatedLink link = new SimulatedLink(new XbimuStreamGenerator(0).generate(XbimuStreamGenerator.BINARY, 100), 100);
+		final CountDownLatch reconnecting = new CountDownLatch(1);
+
+		SerialTransport first = link.createTransport();
+		first.open();
+
+		final ReconnectingReader reader = new ReconnectingReader(first, link, new CountingConsumer(), new CountingListener() {
+			@Override
+			public void onReconnecting(int attempt, long delayNanos) {
+				reconnecting.countDown();
+			}
+		});
+
+		reader.setBackoff(10000000000L, 10000000000L);
+
+		Thread thread = new Thread(reader);
+
+		thread.start();
+		assertTrue(reconnecting.await(5, TimeUnit.SECONDS));
+
+		long start = System.nanoTime();
+
+		reader.cancel();
+		thread.join(5000);
+
+		assertFalse(thread.isAlive());
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertEquals(0, reader.getReconnects());
+	}
+
+	// Decoder that counts resets and calls without a receive time
+	private static class CountingConsumer implements TimedSerialConsumer {
+
+		final SerialDecoder decoder = new SerialDecoder();
+		int resets = 0;
+		int untimed = 0;
+
+		@Override
+		public void reciveBytes(byte[] buffer, int bytes) {
+			untimed++;
+			decoder.reciveBytes(buffer, bytes);
+		}
+
+		@Override
+		public void reciveBytes(byte[] buffer, int bytes, long receiveTime) {
+			decoder.reciveBytes(buffer, bytes, receiveTime);
+		}
+
+		@Override
+		public void reset() {
+			resets++;
+			decoder.reset();
+		}
+	}
+
+	private static class CountingListener implements ReconnectListener {
+
+		int lost = 0;
+		int reconnected = 0;
+
+		@Override
+		public void onConnectionLost(IOException cause) {
+			lost++;
+		}
+
+		@Override
+		public void onReconnecting(int attempt, long delayNanos) {
+		}
+
+		@Override
+		public void onReconnected(SerialTransport transport, long latencyNanos) {
+			reconnected++;
+		}
+	}
+
+	// A stream read over connections that drop after a number of bytes. Every third
+	// open fails, and opens fail once the stream is exhausted, as when the device is gone.
+	private static class SimulatedLink implements SerialTransportFactory {
+
+		private final byte[] mStream;
+		private final int mDropAfter;
+		private int mPosition = 0;
+		private int mOpens = 0;
+		private int mFailedOpens = 0;
+		private int mDrops = 0;
+
+		SimulatedLink(byte[] stream, int dropAfter) {
+			mStream = stream;
+			mDropAfter = dropAfter;
+		}
+
+		@Override
+		public SerialTransport createTransport() {
+			return new Connection();
+		}
+
+		synchronized int getDrops() {
+			return mDrops;
+		}
+
+		synchronized int getFailedOpens() {
+			return mFailedOpens;
+		}
+
+		private synchronized void open() throws IOException {
+			if (mPosition >= mStream.length || ++mOpens % 3 == 0) {
+				mFailedOpens++;
+				throw new IOException("Open failed");
+			}
+		}
+
+		private synchronized int read(byte[] buffer, int offset, int length, int remaining) throws IOException {
+
+			if (remaining == 0) {
+				mPosition += LOST_BYTES;
+				mDrops++;
+				throw new IOException("Link dropped");
+			}
+
+			if (mPosition >= mStream.length) {
+				throw new EOFException();
+			}
+
+			int bytes = Math.min(Math.min(length, 64), Math.min(mStream.length - mPosition, remaining));
+
+			System.arraycopy(mStream, mPosition, buffer, offset, bytes);
+			mPosition += bytes;
+
+			return bytes;
+		}
+
+		private class Connection implements SerialTransport {
+
+			private volatile int mState = STATE_CLOSED;
+			private int mRead = 0;
+
+			@Override
+			public void open() throws IOException {
+				mState = STATE_OPENING;
+				SimulatedLink.this.open();
+				mState = STATE_OPEN;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+
+				if (mState != STATE_OPEN) {
+					throw new IOException("Closed");
+				}
+
+				int bytes = SimulatedLink.this.read(buffer, offset, length, mDropAfter - mRead);
+
+				mRead += bytes;
+
+				return bytes;
+			}
+
+			@Override
+			public int available() {
+				return 0;
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) {
+			}
+
+			@Override
+			public void close() {
+				mState = STATE_CLOSED;
+			}
+
+			@Override
+			public int getState() {
+				return mState;
+			}
+		}
+	}
+}
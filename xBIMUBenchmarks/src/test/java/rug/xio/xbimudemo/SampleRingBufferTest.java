@@ -0,0 +1,198 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+// Offers numbered packets of several types and checks what is polled, across
+// the wrap of the ring and with each overflow policy, with the consumer on the
+// same thread and on another thread.
+public class SampleRingBufferTest {
+
+	private static final int CAPACITY = 8;
+	private static final int PACKETS = 100000;
+
+	private static final SerialPacket[] PACKET_TYPES = { new QuaternionPacket(), new SensorsPacket(), new BatteryPacket() };
+
+	@Test
+	public void roundsCapacityUpAndWraps() {
+
+		SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY - 3, SampleRingBuffer.OVERFLOW_DropNewest);
+		Checker checker = new Checker();
+
+		assertEquals(CAPACITY, buffer.getCapacity());
+
+		// Fill the buffer to a different level each time so the slots wrap at every position
+		for (int i = 0; i < 100; ) {
+			int count = 1 + i % CAPACITY;
+
+			for (int j = 0; j < count; j++) {
+				assertTrue(buffer.offer(getPacket(i + j)));
+			}
+
+			assertEquals(count, buffer.size());
+			assertEquals(count, buffer.drain(checker, Integer.MAX_VALUE));
+			assertEquals(0, buffer.size());
+			i += count;
+		}
+
+		assertEquals(0, buffer.getOverflows());
+		assertEquals(0, checker.mFirst);
+		assertEquals(0, checker.mSkipped);
+	}
+
+	@Test
+	public void dropsOldestPacketsWhenFull() {
+
+		SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SampleRingBuffer.OVERFLOW_DropOldest);
+		Checker checker = new Checker();
+
+		for (int i = 0; i < 20; i++) {
+			assertTrue(buffer.offer(getPacket(i)));
+		}
+
+		assertEquals(20 - CAPACITY, buffer.getOverflows());
+		assertEquals(CAPACITY, buffer.drain(checker, Integer.MAX_VALUE));
+		assertEquals(20 - CAPACITY, checker.mFirst);
+		assertEquals(0, checker.mSkipped);
+	}
+
+	@Test
+	public void dropsNewestPacketsWhenFull() {
+
+		SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SampleRingBuffer.OVERFLOW_DropNewest);
+		Checker checker = new Checker();
+
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i < CAPACITY, buffer.offer(getPacket(i)));
+		}
+
+		assertEquals(20 - CAPACITY, buffer.getOverflows());
+		assertEquals(CAPACITY, buffer.drain(checker, Integer.MAX_VALUE));
+		assertEquals(0, checker.mFirst);
+		assertEquals(0, checker.mSkipped);
+		assertFalse(buffer.poll(checker));
+	}
+
+	@Test
+	public void blocksProducerUntilConsumerMakesSpace() throws InterruptedException {
+
+		SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SampleRingBuffer.OVERFLOW_Block);
+		Checker checker = consume(buffer);
+
+		assertEquals(PACKETS, checker.mCount);
+		assertEquals(0, checker.mFirst);
+		assertEquals(0, checker.mSkipped);
+		assertTrue(buffer.getOverflows() > 0);
+	}
+
+	@Test
+	public void dropsOldestPacketsWhileConsumerReads() throws InterruptedException {
+
+		// The producer may overwrite the slot the consumer is copying, which must be detected
+		SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SampleRingBuffer.OVERFLOW_DropOldest);
+		Checker checker = consume(buffer);
+
+		assertTrue(checker.mCount > 0);
+		assertEquals(PACKETS, checker.mFirst + checker.mCount + checker.mSkipped);
+		assertTrue(buffer.getOverflows() >= checker.mFirst + checker.mSkipped);
+	}
+
+	@Test
+	public void discardsPacketsAfterClose() {
+
+		SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SampleRingBuffer.OVERFLOW_Block);
+
+		buffer.close();
+
+		assertFalse(buffer.offer(getPacket(0)));
+		assertEquals(0, buffer.size());
+	}
+
+	// Offer numbered packets from another thread and poll them all on this thread
+	private static Checker consume(final SampleRingBuffer buffer) throws InterruptedException {
+
+		final Checker checker = new Checker();
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				SerialPacket[] packets = { new QuaternionPacket(), new SensorsPacket(), new BatteryPacket() };
+
+				for (int i = 0; i < PACKETS; i++) {
+					buffer.offer(setPacket(packets[i % packets.length], i));
+				}
+			}
+		};
+
+		producer.start();
+
+		while (producer.isAlive() || buffer.size() > 0) {
+			if (buffer.await(1000000L)) {
+				buffer.drain(checker, 1 + checker.mCount % CAPACITY);
+			}
+		}
+
+		producer.join();
+
+		return checker;
+	}
+
+	// Packet number i, of one of the packet types
+	private static SerialPacket getPacket(int i) {
+		return setPacket(PACKET_TYPES[i % PACKET_TYPES.length], i);
+	}
+
+	private static SerialPacket setPacket(SerialPacket packet, int i) {
+
+		packet.length = packet.getValueCount();
+		packet.counter = i & 0xFF;
+		packet.deviceId = i % 5;
+		packet.timestamp = i;
+		packet.receiveTime = i + 1;
+
+		for (int value = 0; value < packet.getValueCount(); value++) {
+			packet.setValue(value, i * 16 + value);
+		}
+
+		return packet;
+	}
+
+	// Checks that packets polled are intact and in order, and counts the numbers skipped
+	private static class Checker extends SerialPacketAdapter {
+
+		private int mCount = 0;
+		private long mFirst = -1;
+		private long mSkipped = 0;
+		private long mLast = -1;
+
+		@Override
+		public void onPacket(SerialPacket packet) {
+
+			long i = packet.timestamp;
+
+			assertEquals(PACKET_TYPES[(int)(i % PACKET_TYPES.length)].type, packet.type);
+			assertEquals(packet.getValueCount(), packet.length);
+			assertEquals(i & 0xFF, packet.counter);
+			assertEquals(i % 5, packet.deviceId);
+			assertEquals(i + 1, packet.receiveTime);
+
+			for (int value = 0; value < packet.getValueCount(); value++) {
+				assertEquals(i * 16 + value, packet.getValue(value));
+			}
+
+			if (mLast < 0) {
+				mFirst = i;
+			}
+			else {
+				assertTrue("packet " + i + " after " + mLast, i > mLast);
+				mSkipped += i - mLast - 1;
+			}
+
+			mLast = i;
+			mCount++;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Writes commands to a simulated x-BIMU that answers each command in order,
+// after a delay, and checks batching, reply matching and resends.
+public class SerialCommandQueueTest {
+
+	private static final int COMMANDS = 40;
+	private static final int WINDOW = 8;
+	private static final long TIMEOUT_NANOS = 100000000L;
+	private static final long AWAIT_NANOS = 5000000000L;
+
+	// Delay of the simulated replies
+	private static final long REPLY_DELAY_MILLIS = 5;
+
+	private SerialDecoder mDecoder;
+	private SimulatedDevice mDevice;
+	private SerialCommandQueue mQueue;
+
+	@Before
+	public void setUp() {
+		mDecoder = new SerialDecoder();
+		mDevice = new SimulatedDevice(mDecoder);
+		mQueue = new SerialCommandQueue(mDevice, WINDOW, TIMEOUT_NANOS, SerialCommandQueue.DEFAULT_RETRIES);
+		mDecoder.getBus().addMessageHandler(mQueue);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		mQueue.shutdown();
+		mQueue.join();
+		mDevice.shutdown();
+	}
+
+	@Test
+	public void batchesCommandsAndMatchesRepliesInOrder() throws InterruptedException {
+
+		SerialCommand[] commands = new SerialCommand[COMMANDS];
+
+		// Queued before the writer starts, so they are written in batches of a window
+		for (int i = 0; i < COMMANDS; i++) {
+			commands[i] = mQueue.send(((i == 20 ? "BAD" : "CMD") + i + "\r").getBytes());
+		}
+
+		mQueue.start();
+
+		for (SerialCommand command : commands) {
+			assertTrue(command.await(AWAIT_NANOS));
+		}
+
+		for (int i = 0; i < COMMANDS; i++) {
+			int expected = i == 20 ? SerialCommand.STATE_Error : SerialCommand.STATE_Ok;
+
+			assertEquals("state of command " + i, expected, commands[i].getState());
+			assertEquals("attempts of command " + i, 1, commands[i].getAttempts());
+		}
+
+		assertEquals(COMMANDS, mQueue.getSentCommands());
+		assertEquals(COMMANDS - 1, mQueue.getReplies(SerialDecoder.MESSAGE_OK));
+		assertEquals(1, mQueue.getReplies(SerialDecoder.MESSAGE_Error));
+		assertEquals(0, mQueue.getTimeouts());
+
+		// The first write holds a full window, later ones what the replies have made room for
+		assertTrue("writes " + mDevice.getWrites(), mDevice.getWrites() <= COMMANDS - WINDOW + 1);
+	}
+
+	@Test
+	public void resendsCommandWithoutReply() throws InterruptedException {
+
+		mDevice.dropReply(0);
+		mQueue.start();
+
+		SerialCommand command = mQueue.send("CMD\r".getBytes());
+
+		assertTrue(command.await(AWAIT_NANOS));
+		assertEquals(SerialCommand.STATE_Ok, command.getState());
+		assertEquals(2, command.getAttempts());
+		assertEquals(1, mQueue.getTimeouts());
+		assertEquals(1, mQueue.getRetried());
+		assertEquals(0, mQueue.getFailed());
+	}
+
+	@Test
+	public void timesOutAfterAllRetries() throws InterruptedException {
+
+		mDevice.dropReply(0);
+		mDevice.dropReply(1);
+		mDevice.dropReply(2);
+		mQueue.start();
+
+		SerialCommand command = mQueue.send("CMD\r".getBytes());
+
+		assertTrue(command.await(AWAIT_NANOS));
+		assertEquals(SerialCommand.STATE_TimedOut, command.getState());
+		assertEquals(SerialCommandQueue.DEFAULT_RETRIES + 1, command.getAttempts());
+	}
+
+	@Test
+	public void pausesBeforeResendingBehindCommandThatTimedOut() throws InterruptedException {
+
+		// Without retries the oldest command times out for good on its first timeout
+		mDecoder.getBus().removeMessageHandler(mQueue);
+		mQueue = new SerialCommandQueue(mDevice, WINDOW, TIMEOUT_NANOS, 0);
+		mDecoder.getBus().addMessageHandler(mQueue);
+
+		mDevice.dropReply(0);
+		mDevice.dropReply(1);
+		mDevice.dropReply(2);
+
+		SerialCommand[] commands = new SerialCommand[3];
+
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = mQueue.send(("CMD" + i + "\r").getBytes());
+		}
+
+		mQueue.start();
+
+		for (SerialCommand command : commands) {
+			assertTrue(command.await(AWAIT_NANOS));
+		}
+
+		assertEquals(SerialCommand.STATE_TimedOut, commands[0].getState());
+		assertEquals(SerialCommand.STATE_Ok, commands[1].getState());
+		assertEquals(SerialCommand.STATE_Ok, commands[2].getState());
+		assertEquals(2, commands[1].getAttempts());
+
+		// One write of all three, and after the timeout and half of it one write of the two resent
+		assertEquals(2, mDevice.getWrites());
+		assertEquals(5, mQueue.getSentCommands());
+		assertTrue(mDevice.getWriteTime(1) - mDevice.getWriteTime(0) >= TIMEOUT_NANOS * 3 / 2);
+	}
+
+	@Test
+	public void failsCommandsAfterShutdown() throws InterruptedException {
+
+		mQueue.start();
+		mQueue.shutdown();
+		mQueue.join();
+
+		SerialCommand command = mQueue.send("CMD\r".getBytes());
+
+		assertEquals(SerialCommand.STATE_Failed, command.getState());
+		assertEquals(1, mQueue.getFailed());
+	}
+
+	// Transport that answers each command written with OK, or ERROR for commands starting with "BAD"
+	private static class SimulatedDevice implements SerialTransport {
+
+		private final SerialDecoder mDecoder;
+		private final ScheduledExecutorService mReplies = Executors.newSingleThreadScheduledExecutor();
+		private final boolean[] mDropped = new boolean[64];
+		private final long[] mWriteTimes = new long[64];
+		private int mCommands = 0;
+		private int mWrites = 0;
+
+		SimulatedDevice(SerialDecoder decoder) {
+			mDecoder = decoder;
+		}
+
+		// Do not answer the command with this index
+		synchronized void dropReply(int command) {
+			mDropped[command] = true;
+		}
+
+		synchronized int getWrites() {
+			return mWrites;
+		}
+
+		synchronized long getWriteTime(int write) {
+			return mWriteTimes[write];
+		}
+
+		void shutdown() {
+			mReplies.shutdownNow();
+		}
+
+		@Override
+		public void open() {
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			return -1;
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+		@Override
+		public synchronized void write(byte[] buffer, int offset, int length) {
+
+			mWriteTimes[mWrites++] = System.nanoTime();
+
+			for (String command : new String(buffer, offset, length).split("\r")) {
+				if (command.length() == 0 || mDropped[mCommands++]) {
+					continue;
+				}
+
+				final byte[] reply = (command.startsWith("BAD") ? "ERROR " : "OK\r").getBytes();
+
+				// The decoder is only called from the single reply thread, as from a read thread
+				mReplies.schedule(new Runnable() {
+					@Override
+					public void run() {
+						mDecoder.reciveBytes(reply, reply.length);
+					}
+				}, REPLY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int getState() {
+			return STATE_OPEN;
+		}
+	}
+}
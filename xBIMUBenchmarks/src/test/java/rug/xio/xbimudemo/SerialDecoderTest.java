@@ -0,0 +1,132 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+// Decodes generated streams in auto-detect mode, fed in buffers of several
+// sizes, and checks the packets delivered.
+public class SerialDecoderTest {
+
+	private static final int PACKETS = 20000;
+
+	// Packets per run of one framing in a mixed stream
+	private static final int RUN_LENGTH = 200;
+
+	// Replies in a row, as many as the failures that make a locked decoder probe again
+	private static final int REPLIES = 8;
+
+	private static final int[] BUFFER_SIZES = { 1, 64, 1024 };
+
+	@Test
+	public void decodesSingleFramingStreams() {
+
+		for (String type : new String[] { XbimuStreamGenerator.BINARY, XbimuStreamGenerator.ASCII }) {
+			byte[] stream = new XbimuStreamGenerator(1).generate(type, PACKETS);
+
+			for (int size : BUFFER_SIZES) {
+				assertEquals(type + " in buffers of " + size, PACKETS, decode(new SerialDecoder(), stream, size));
+			}
+		}
+	}
+
+	@Test
+	public void followsFramingSwitches() {
+
+		XbimuStreamGenerator generator = new XbimuStreamGenerator(1);
+		ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+
+		for (int run = 0; run < PACKETS / RUN_LENGTH; run++) {
+			byte[] packets = generator.generate(run % 2 == 0 ? XbimuStreamGenerator.BINARY : XbimuStreamGenerator.ASCII,
+					RUN_LENGTH);
+			mixed.write(packets, 0, packets.length);
+		}
+
+		byte[] stream = mixed.toByteArray();
+
+		// The first ASCII line after binary data has no line ending before it and cannot be found
+		int switchesToAscii = PACKETS / RUN_LENGTH / 2;
+
+		for (int size : BUFFER_SIZES) {
+			int delivered = decode(new SerialDecoder(), stream, size);
+
+			assertTrue("delivered " + delivered + " in buffers of " + size, delivered >= PACKETS - switchesToAscii);
+		}
+	}
+
+	@Test
+	public void followsFramingSwitchesWithCorruptPackets() {
+
+		// 404 of the packets have a flipped bit, which may also cost the packet after them
+		byte[] stream = new XbimuStreamGenerator(1).generate(XbimuStreamGenerator.MIXED_CORRUPT, PACKETS);
+
+		for (int size : BUFFER_SIZES) {
+			int delivered = decode(new SerialDecoder(), stream, size);
+
+			assertTrue("delivered " + delivered + " in buffers of " + size, delivered >= 19500);
+		}
+	}
+
+	@Test
+	public void ignoresReplyLinesBetweenAsciiPackets() {
+
+		XbimuStreamGenerator generator = new XbimuStreamGenerator(1);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ByteArrayOutputStream withoutReplies = new ByteArrayOutputStream();
+		int runs = PACKETS / RUN_LENGTH;
+
+		// Replies to a window of commands, one of them rejected, after every run of packets
+		for (int run = 0; run < runs; run++) {
+			byte[] packets = generator.generate(XbimuStreamGenerator.ASCII, RUN_LENGTH);
+			stream.write(packets, 0, packets.length);
+			withoutReplies.write(packets, 0, packets.length);
+
+			for (int reply = 0; reply < REPLIES; reply++) {
+				byte[] line = (reply == 0 ? "ERROR \r" : "OK\r").getBytes();
+				stream.write(line, 0, line.length);
+			}
+		}
+
+		byte[] replies = stream.toByteArray();
+
+		for (int size : BUFFER_SIZES) {
+			SerialDecoder decoder = new SerialDecoder();
+			SerialDecoder reference = new SerialDecoder();
+
+			assertEquals("in buffers of " + size, PACKETS, decode(decoder, replies, size));
+			decode(reference, withoutReplies.toByteArray(), size);
+
+			SerialDecoderStatistics statistics = decoder.getStatistics();
+
+			// Only the binary packets probed for before the framing is locked fail
+			assertEquals(reference.getStatistics().getChecksumFailures(), statistics.getChecksumFailures());
+			assertEquals(runs * (REPLIES - 1), statistics.getOkMessages());
+			assertEquals(runs, statistics.getErrorMessages());
+			assertEquals(SerialDecoder.MODE_ASCII, decoder.getActiveMode());
+		}
+	}
+
+	// Feed a stream in buffers of a size, returns the number of packets delivered
+	private static int decode(SerialDecoder decoder, byte[] stream, int size) {
+
+		final int[] delivered = { 0 };
+
+		decoder.getBus().subscribe(new SerialPacketAdapter() {
+			@Override
+			public void onPacket(SerialPacket packet) {
+				delivered[0]++;
+			}
+		}, SerialPacketBus.MASK_All);
+
+		for (int offset = 0; offset < stream.length; offset += size) {
+			byte[] buffer = Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + size));
+			decoder.reciveBytes(buffer, buffer.length);
+		}
+
+		return delivered[0];
+	}
+}
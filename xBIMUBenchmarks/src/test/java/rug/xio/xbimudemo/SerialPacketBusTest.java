@@ -0,0 +1,60 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+// Publishes packets to queued subscriptions and checks how a full queue
+// behaves when the subscription is cancelled.
+public class SerialPacketBusTest {
+
+	private static final int CAPACITY = 4;
+	private static final long JOIN_MILLIS = 5000;
+
+	@Test
+	public void cancelReleasesPublisherBlockedOnFullQueue() throws InterruptedException {
+
+		final SerialPacketBus bus = new SerialPacketBus();
+
+		// The drain task is never run, so the queue fills and the publisher blocks
+		Executor stalled = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+			}
+		};
+
+		SerialPacketBus.Subscription subscription = bus.subscribe(new SerialPacketAdapter() {
+			@Override
+			public void onPacket(SerialPacket packet) {
+			}
+		}, SerialPacketBus.MASK_All, stalled, CAPACITY, SampleRingBuffer.OVERFLOW_Block);
+
+		Thread publisher = new Thread() {
+			@Override
+			public void run() {
+				QuaternionPacket packet = new QuaternionPacket();
+
+				for (int i = 0; i <= CAPACITY; i++) {
+					packet.counter = i;
+					bus.onQuaternion(packet);
+				}
+			}
+		};
+
+		publisher.start();
+
+		while (subscription.getOverflows() == 0) {
+			Thread.sleep(1);
+		}
+
+		subscription.cancel();
+		publisher.join(JOIN_MILLIS);
+
+		assertFalse(publisher.isAlive());
+		assertTrue(subscription.getQueue().isClosed());
+		assertFalse(subscription.getQueue().offer(new QuaternionPacket()));
+	}
+}
@@ -0,0 +1,112 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Records raw chunks and packets over several segments and checks that every
+// record offered is either written or counted as dropped.
+public class SessionRecorderTest {
+
+	// Smallest segment allowed, so a session of a few hundred kilobytes has several segments
+	private static final int SEGMENT_SIZE = SessionLogFormat.SEGMENT_HEADER + SessionLogFormat.RECORD_HEADER
+			+ SessionLogFormat.MAX_PAYLOAD;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final int CHUNKS = 2000;
+	private static final int CHUNK_SIZE = 200;
+
+	// Receive time between chunks, a packet is recorded half way
+	private static final long PERIOD_NANOS = 10000000L;
+	private static final long START_NANOS = 1L << 40;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private final byte[] mStream = new byte[CHUNK_SIZE];
+
+	@Before
+	public void setUp() {
+		mDirectory = mFolder.getRoot();
+	}
+
+	@Test
+	public void writesEveryRecordOverSeveralSegments() throws IOException {
+
+		SessionRecorder recorder = new SessionRecorder(mDirectory, "session", SEGMENT_SIZE, BUFFER_SIZE);
+		QuaternionPacket packet = new QuaternionPacket();
+
+		recorder.start();
+
+		for (int i = 0; i < CHUNKS; i++) {
+			long time = START_NANOS + i * PERIOD_NANOS;
+
+			recorder.reciveBytes(mStream, CHUNK_SIZE, time);
+
+			packet.receiveTime = time + PERIOD_NANOS / 2;
+			recorder.record(packet);
+
+			// Keep well within the ring, records are only dropped when the writer falls behind
+			while (recorder.getRecordsWritten() < 2 * i - 1000) {
+				Thread.yield();
+			}
+		}
+
+		recorder.close();
+
+		int segments = recorder.getSegmentCount();
+		long bytes = 0;
+
+		for (int segment = 0; segment < segments; segment++) {
+			bytes += SessionLogFormat.getSegmentFile(mDirectory, "session", segment).length() - SessionLogFormat.SEGMENT_HEADER;
+		}
+
+		assertEquals(2 * CHUNKS, recorder.getRecordsWritten());
+		assertEquals(0, recorder.getRecordsDropped());
+		assertTrue(segments > 3);
+		assertFalse(SessionLogFormat.getSegmentFile(mDirectory, "session", segments).exists());
+		assertEquals(recorder.getBytesWritten(), bytes);
+	}
+
+	@Test
+	public void countsEveryRecordOfferedWhileClosing() throws Exception {
+
+		// A record claimed just before close is rarely caught, so close while recording several times
+		for (int run = 0; run < 20; run++) {
+			final SessionRecorder recorder = new SessionRecorder(mDirectory, "closing" + run, SEGMENT_SIZE, BUFFER_SIZE);
+			final long[] offered = { 0 };
+
+			recorder.start();
+
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					QuaternionPacket packet = new QuaternionPacket();
+
+					// Records are dropped once the recorder is closed
+					while (recorder.getRecordsDropped() == 0) {
+						packet.receiveTime = START_NANOS + offered[0];
+						recorder.record(packet);
+						offered[0]++;
+					}
+				}
+			};
+
+			producer.start();
+			Thread.sleep(2);
+			recorder.close();
+			producer.join();
+
+			assertEquals(offered[0], recorder.getRecordsWritten() + recorder.getRecordsDropped());
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Records raw chunks and packets over several segments, replays them and
+// checks the session index, also after it was lost or cut short, and seeking.
+public class SessionReplayTest {
+
+	// Smallest segment allowed, so a session of a few hundred kilobytes has several segments
+	private static final int SEGMENT_SIZE = SessionLogFormat.SEGMENT_HEADER + SessionLogFormat.RECORD_HEADER
+			+ SessionLogFormat.MAX_PAYLOAD;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final int CHUNKS = 2000;
+	private static final int CHUNK_SIZE = 200;
+
+	// Receive time between chunks, a packet is recorded half way
+	private static final long PERIOD_NANOS = 10000000L;
+	private static final long START_NANOS = 1L << 40;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private byte[] mStream;
+
+	@Before
+	public void setUp() {
+		mDirectory = mFolder.getRoot();
+		mStream = new byte[CHUNKS * CHUNK_SIZE];
+		new Random(1).nextBytes(mStream);
+	}
+
+	@Test
+	public void replaysEveryRecord() throws IOException {
+
+		SessionRecorder recorder = record();
+
+		assertEquals(2 * CHUNKS, recorder.getRecordsWritten());
+		assertEquals(0, recorder.getRecordsDropped());
+		assertTrue(recorder.getSegmentCount() > 3);
+
+		RecordingConsumer consumer = new RecordingConsumer();
+		CountingListener listener = new CountingListener();
+		SessionReplay replay = new SessionReplay(mDirectory, "session");
+
+		assertEquals(2 * CHUNKS, replay.play(consumer, listener));
+		assertArrayEquals(mStream, consumer.bytes.toByteArray());
+		assertEquals(CHUNKS, listener.packets);
+		assertEquals(0, listener.wrong);
+		assertEquals(recorder.getSegmentCount(), replay.getIndex().getSegmentCount());
+	}
+
+	@Test
+	public void rebuildsLostOrTruncatedIndex() throws IOException {
+
+		record();
+
+		SessionIndex written = SessionIndex.load(mDirectory, "session");
+		File indexFile = SessionLogFormat.getIndexFile(mDirectory, "session");
+
+		// One entry for each second of receive time and for the first record of each segment
+		assertTrue(written.getCount() >= CHUNKS * 2 * PERIOD_NANOS / SessionLogFormat.INDEX_INTERVAL / 2);
+
+		assertTrue(indexFile.delete());
+		assertSameEntries(written, SessionIndex.load(mDirectory, "session"));
+
+		record();
+
+		// Cut off the entries of the last segment, as if the recorder had stopped writing the index
+		RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		int lastSegment = written.getSegmentCount() - 1;
+		int entries = 0;
+
+		while (written.getSegment(written.getCount() - 1 - entries) == lastSegment) {
+			entries++;
+		}
+
+		try {
+			file.setLength(file.length() - SessionLogFormat.INDEX_ENTRY * entries - SessionLogFormat.INDEX_ENTRY / 2);
+		}
+		finally {
+			file.close();
+		}
+
+		assertSameEntries(written, SessionIndex.load(mDirectory, "session"));
+	}
+
+	@Test
+	public void resetsConsumerWhenMoved() throws IOException {
+
+		record();
+
+		final SessionReplay replay = new SessionReplay(mDirectory, "session");
+		RecordingConsumer consumer = new RecordingConsumer();
+
+		// Stop half way through the session
+		CountingListener listener = new CountingListener() {
+			@Override
+			public void onPacket(SerialPacket packet) {
+				super.onPacket(packet);
+
+				if (packets == CHUNKS / 2) {
+					replay.stop();
+				}
+			}
+		};
+
+		replay.play(consumer, listener);
+
+		assertEquals(1, consumer.resets);
+
+		// Continuing where the replay stopped is not a move
+		replay.play(consumer, null);
+
+		assertEquals(1, consumer.resets);
+		assertArrayEquals(mStream, consumer.bytes.toByteArray());
+
+		// A seek back delivers the chunks from the seek time on, after a reset
+		consumer.bytes.reset();
+		replay.seek(CHUNKS / 4 * PERIOD_NANOS);
+		replay.play(consumer, null);
+
+		assertEquals(2, consumer.resets);
+		assertArrayEquals(Arrays.copyOfRange(mStream, CHUNKS / 4 * CHUNK_SIZE, mStream.length), consumer.bytes.toByteArray());
+	}
+
+	// Record the stream as raw chunks with a packet between each two, in a new session
+	private SessionRecorder record() throws IOException {
+
+		SessionRecorder recorder = new SessionRecorder(mDirectory, "session", SEGMENT_SIZE, BUFFER_SIZE);
+		QuaternionPacket packet = new QuaternionPacket();
+
+		recorder.setDeviceId(3);
+		recorder.start();
+
+		for (int i = 0; i < CHUNKS; i++) {
+			long time = START_NANOS + i * PERIOD_NANOS;
+			byte[] chunk = new byte[CHUNK_SIZE];
+
+			System.arraycopy(mStream, i * CHUNK_SIZE, chunk, 0, CHUNK_SIZE);
+			recorder.reciveBytes(chunk, CHUNK_SIZE, time);
+
+			packet.deviceId = 3;
+			packet.counter = i & 0xFF;
+			packet.receiveTime = time + PERIOD_NANOS / 2;
+			packet.timestamp = getSampleTime(i);
+			packet.element0 = i;
+			recorder.record(packet);
+
+			// Keep well within the ring, records are only dropped when the writer falls behind
+			while (recorder.getRecordsWritten() < 2 * i - 1000) {
+				Thread.yield();
+			}
+		}
+
+		recorder.close();
+
+		return recorder;
+	}
+
+	// Sample time of a packet, before the receive time of the chunk recorded before it, and not in order
+	private static long getSampleTime(int packet) {
+		return START_NANOS + packet * PERIOD_NANOS - (packet % 3) * PERIOD_NANOS;
+	}
+
+	private static void assertSameEntries(SessionIndex expected, SessionIndex actual) {
+
+		assertEquals(expected.getCount(), actual.getCount());
+
+		for (int i = 0; i < expected.getCount(); i++) {
+			assertEquals(expected.getTime(i), actual.getTime(i));
+			assertEquals(expected.getSegment(i), actual.getSegment(i));
+			assertEquals(expected.getOffset(i), actual.getOffset(i));
+		}
+	}
+
+	private static class RecordingConsumer implements SerialConsumer {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int resets = 0;
+
+		@Override
+		public void reciveBytes(byte[] buffer, int bytes) {
+			this.bytes.write(buffer, 0, bytes);
+		}
+
+		@Override
+		public void reset() {
+			resets++;
+		}
+	}
+
+	// Counts packets and those that differ from the packet recorded
+	private static class CountingListener extends SerialPacketAdapter {
+
+		int packets = 0;
+		int wrong = 0;
+
+		@Override
+		public void onPacket(SerialPacket packet) {
+
+			QuaternionPacket quaternion = (QuaternionPacket)packet;
+			long time = START_NANOS + packets * PERIOD_NANOS + PERIOD_NANOS / 2;
+
+			if (quaternion.element0 != packets || packet.counter != (packets & 0xFF) || packet.deviceId != 3
+					|| packet.receiveTime != time || packet.timestamp != getSampleTime(packets)) {
+				wrong++;
+			}
+
+			packets++;
+		}
+	}
+}
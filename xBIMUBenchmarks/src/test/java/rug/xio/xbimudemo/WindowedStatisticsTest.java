@@ -0,0 +1,131 @@
+package rug.xio.xbimudemo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+// Adds random 16-bit values, with runs of equal and monotonic values, and checks
+// the statistics after every add against a brute force pass over the window.
+public class WindowedStatisticsTest {
+
+	private static final int SAMPLES = 20000;
+
+	private static final int[] WINDOW_SIZES = { 1, 2, 7, 64, 1000 };
+
+	@Test
+	public void matchesBruteForceInSlidingWindow() {
+
+		int[] values = generate(SAMPLES);
+
+		for (int size : WINDOW_SIZES) {
+			WindowedStatistics statistics = new WindowedStatistics(size, WindowedStatistics.WINDOW_Sliding, 3);
+
+			for (int i = 0; i < values.length; i++) {
+				assertEquals((i + 1) % 3 == 0, statistics.add(values[i]));
+				check("window " + size + " sample " + i, statistics, values, Math.max(0, i + 1 - size), i + 1);
+			}
+		}
+	}
+
+	@Test
+	public void matchesBruteForceInTumblingWindow() {
+
+		int[] values = generate(SAMPLES);
+
+		for (int size : WINDOW_SIZES) {
+			WindowedStatistics statistics = new WindowedStatistics(size, WindowedStatistics.WINDOW_Tumbling, 1);
+
+			for (int i = 0; i < values.length; i++) {
+				assertEquals((i + 1) % size == 0, statistics.add(values[i]));
+				check("window " + size + " sample " + i, statistics, values, i / size * size, i + 1);
+			}
+		}
+	}
+
+	@Test
+	public void startsEmptyAfterReset() {
+
+		int[] values = generate(SAMPLES);
+		WindowedStatistics statistics = new WindowedStatistics(64, WindowedStatistics.WINDOW_Sliding, 1);
+		int start = 0;
+
+		for (int i = 0; i < values.length; i++) {
+			if (i % 1000 == 500) {
+				statistics.reset();
+				start = i;
+				assertEquals(0, statistics.getCount());
+			}
+
+			statistics.add(values[i]);
+			check("sample " + i, statistics, values, Math.max(start, i + 1 - 64), i + 1);
+		}
+	}
+
+	// Compare the statistics with those of values from start up to end
+	private static void check(String message, WindowedStatistics statistics, int[] values, int start, int end) {
+
+		start = Math.max(0, start);
+
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		long sum = 0;
+		double sumOfSquares = 0;
+
+		for (int i = start; i < end; i++) {
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+			sum += values[i];
+			sumOfSquares += (double)values[i] * values[i];
+		}
+
+		int count = end - start;
+		double mean = (double)sum / count;
+		double variance = 0;
+
+		for (int i = start; i < end; i++) {
+			variance += (values[i] - mean) * (values[i] - mean);
+		}
+
+		variance /= count;
+
+		assertEquals(message, count, statistics.getCount());
+		assertEquals(message, min, statistics.getMin());
+		assertEquals(message, max, statistics.getMax());
+		assertEquals(message, max - min, statistics.getPeakToPeak());
+		assertEquals(message, sum, statistics.getSum());
+		assertEquals(message, mean, statistics.getMean(), 1e-9);
+		assertEquals(message, variance, statistics.getVariance(), 1e-6 * (1 + variance));
+		assertEquals(message, Math.sqrt(sumOfSquares / count), statistics.getRms(), 1e-9 * (1 + Math.abs(max) + Math.abs(min)));
+	}
+
+	// Random values in runs of noise, equal values, and rising and falling ramps
+	private static int[] generate(int count) {
+
+		Random random = new Random(1);
+		int[] values = new int[count];
+
+		for (int i = 0; i < count; ) {
+			int run = Math.min(count - i, 1 + random.nextInt(100));
+			int kind = random.nextInt(4);
+			int base = random.nextInt(65536) - 32768;
+			int step = 1 + random.nextInt(200);
+
+			for (int j = 0; j < run; j++, i++) {
+				int value;
+
+				switch (kind) {
+				case 0: value = random.nextInt(65536) - 32768; break;
+				case 1: value = base; break;
+				case 2: value = base + j * step; break;
+				default: value = base - j * step; break;
+				}
+
+				values[i] = Math.max(-32768, Math.min(32767, value));
+			}
+		}
+
+		return values;
+	}
+}
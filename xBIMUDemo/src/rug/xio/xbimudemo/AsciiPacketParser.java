@@ -0,0 +1,338 @@
+package rug.xio.xbimudemo;
+
+// Streaming parser for ASCII packets, e.g. "S,12,-3,...,counter,checksum\r".
+//
+// Bytes are parsed one at a time straight into a fixed-size array of integer
+// fields; no Strings are built. The LRC checksum is accumulated as the bytes
+// arrive and covers every byte up to and including the last comma.
+class AsciiPacketParser {
+
+	// Maximum number of numeric fields stored per line, further fields are counted but ignored
+	private static final int MAX_FIELDS = 16;
+
+	// Maximum number of digits in a field, longer fields cannot be a valid int
+	private static final int MAX_DIGITS = 10;
+
+	// Maximum length of a line, longer lines cannot be a valid packet
+	private static final int MAX_LINE_LENGTH = 128;
+
+	// Bytes skipped without a line ending that count as another failed line, so data
+	// without line endings, e.g. binary packets, is recognised within a few packets
+	private static final int SKIP_FAILURE_LENGTH = 16;
+
+	// Identifiers of the "OK\r" and "ERROR ..." reply lines, which are not failed packets
+	private static final long OK_WORD = ('O' << 8) | 'K';
+	private static final int OK_LENGTH = 2;
+	private static final long ERROR_WORD = ((long)'E' << 32) | ((long)'R' << 24) | ('R' << 16) | ('O' << 8) | 'R';
+	private static final int ERROR_LENGTH = 5;
+
+	// Numeric fields of the current line, excluding the identifier
+	private final int[] mFields = new int[MAX_FIELDS];
+
+	// Number of fields (including the identifier) completed in the current line
+	private int mFieldCount = 0;
+
+	// Identifier character of the current line
+	private int mIdent = 0;
+
+	// Number of characters in the identifier field, and its last characters
+	private int mIdentLength = 0;
+	private long mIdentWord = 0;
+
+	// Set once the current line is known to be an ERROR reply
+	private boolean mReply = false;
+
+	// Value, sign and digit count of the field being parsed
+	private long mValue = 0;
+	private boolean mNegative = false;
+	private boolean mSigned = false;
+	private int mDigits = 0;
+
+	// Cleared as soon as the current line cannot be a valid packet
+	private boolean mValid = true;
+
+	// Running checksum of all bytes in the line, and of the bytes up to and including the last comma
+	private int mChecksum = 0;
+	private int mChecksumAtComma = 0;
+
+	// Number of bytes in the current line, excluding the '\r'
+	private int mLineLength = 0;
+
+	// Number of non-empty lines that were not a valid packet, excluding reply lines
+	private long mFailedLines = 0;
+
+	// Number of OK and ERROR reply lines
+	private long mReplyLines = 0;
+
+	// Results of the last completed packet
+	private boolean mComplete = false;
+	private int mPacketIdent = 0;
+	private int mPacketFieldCount = 0;
+	private int mPacketLength = 0;
+
+	/**
+	 * Parse bytes of the data stream until a packet is completed.
+	 * 
+	 * @param buffer
+	 *            Buffer holding the data stream
+	 * @param offset
+	 *            Index of the first byte to parse
+	 * @param end
+	 *            Index after the last byte to parse
+	 * @return Index after the byte that completed a packet with a valid
+	 *         checksum, or end if no packet was completed. isComplete()
+	 *         indicates which.
+	 */
+	public int processBytes(byte[] buffer, int offset, int end) {
+
+		int index = offset;
+
+		mComplete = false;
+
+		while (index < end) {
+
+			// Skip the rest of a line that cannot be a valid packet
+			if (!mValid) {
+				while (index < end && buffer[index] != '\r') {
+					index++;
+
+					if (++mLineLength > SKIP_FAILURE_LENGTH) {
+						mFailedLines++;
+						mLineLength = 0;
+					}
+				}
+
+				if (index == end) {
+					return end;
+				}
+			}
+
+			byte newByte = buffer[index];
+
+			// Parse runs of digits within a numeric field without leaving the loop
+			if (mFieldCount > 0 && newByte >= '0' && newByte <= '9') {
+				long value = mValue;
+				int digits = mDigits;
+				int checksum = mChecksum;
+				int lineLength = mLineLength;
+
+				do {
+					value = value * 10 + (newByte - '0');
+					digits++;
+					checksum ^= newByte;
+					lineLength++;
+					index++;
+				} while (index < end && (newByte = buffer[index]) >= '0' && newByte <= '9');
+
+				mValue = value;
+				mDigits = digits;
+				mChecksum = checksum;
+				mLineLength = lineLength;
+
+				if (digits > MAX_DIGITS) {
+					mValid = false;
+				}
+				else if (lineLength > MAX_LINE_LENGTH) {
+					failOverlongLine();
+				}
+				continue;
+			}
+
+			if (processByte(buffer[index++])) {
+				mComplete = true;
+				return index;
+			}
+		}
+
+		return end;
+	}
+
+	/**
+	 * Parse the next byte of the data stream.
+	 * 
+	 * @param newByte
+	 *            Newest byte received within data stream
+	 * @return true if the byte completed a packet with a valid checksum
+	 */
+	public boolean processByte(byte newByte) {
+
+		if (newByte == '\r') {
+			boolean complete = endLine();
+
+			if (!complete && mLineLength > 0) {
+				if (isReplyLine()) {
+					mReplyLines++;
+				}
+				else {
+					mFailedLines++;
+				}
+			}
+
+			reset();
+			return complete;
+		}
+
+		mLineLength++;
+		mChecksum ^= newByte;
+
+		if (!mValid) {
+			return false;
+		}
+
+		if (mLineLength > MAX_LINE_LENGTH) {
+			failOverlongLine();
+		}
+		else if (mReply) {
+			// Skip the text of the reply
+		}
+		else if (newByte == ',') {
+			endField();
+			mChecksumAtComma = mChecksum;
+		}
+		else if (mFieldCount == 0) {
+			mIdent = newByte;
+			mIdentWord = (mIdentWord << 8) | (newByte & 0xFF);
+
+			if (++mIdentLength == ERROR_LENGTH && mIdentWord == ERROR_WORD) {
+				mReply = true;
+			}
+		}
+		else if (newByte >= '0' && newByte <= '9') {
+			if (++mDigits > MAX_DIGITS) {
+				mValid = false;
+			}
+			mValue = mValue * 10 + (newByte - '0');
+		}
+		else if ((newByte == '-' || newByte == '+') && !mSigned && mDigits == 0) {
+			mNegative = newByte == '-';
+			mSigned = true;
+		}
+		else {
+			mValid = false;
+		}
+
+		return false;
+	}
+
+	// Discard any partially parsed line
+	public void reset() {
+		mFieldCount = 0;
+		mIdent = 0;
+		mIdentLength = 0;
+		mIdentWord = 0;
+		mReply = false;
+		mValid = true;
+		mChecksum = 0;
+		mChecksumAtComma = 0;
+		mLineLength = 0;
+		resetField();
+	}
+
+	// Total number of OK and ERROR reply lines, which are not counted as failed lines
+	public long getReplyLines() {
+		return mReplyLines;
+	}
+
+	// Indicates if the last call to processBytes completed a packet
+	public boolean isComplete() {
+		return mComplete;
+	}
+
+	// Total number of non-empty lines that failed to parse or failed the checksum, excluding reply lines
+	public long getFailedLines() {
+		return mFailedLines;
+	}
+
+	// Identifier character of the last completed packet, e.g. 'Q'
+	public int getIdent() {
+		return mPacketIdent;
+	}
+
+	// Number of numeric fields in the last completed packet, excluding the identifier and checksum
+	public int getFieldCount() {
+		return mPacketFieldCount;
+	}
+
+	// Numeric field of the last completed packet, excluding the identifier
+	public int getField(int index) {
+		return mFields[index];
+	}
+
+	// Length of the last completed packet in bytes, including the '\r'
+	public int getLength() {
+		return mPacketLength;
+	}
+
+	// Complete the current field, the identifier is field 0
+	private void endField() {
+
+		if (mFieldCount == 0) {
+			if (mIdentLength != 1) {
+				mValid = false;
+			}
+		}
+		else if (!storeValue(mFieldCount - 1)) {
+			return;
+		}
+
+		mFieldCount++;
+		resetField();
+	}
+
+	// Complete the line, the last field is the checksum
+	private boolean endLine() {
+
+		if (!mValid || mFieldCount < 2 || mDigits == 0) {
+			return false;
+		}
+
+		long checksum = mNegative ? -mValue : mValue;
+
+		// checksum does not include checksum characters
+		if (checksum < Byte.MIN_VALUE || checksum > Byte.MAX_VALUE || ((int)checksum & 0xFF) != (mChecksumAtComma & 0xFF)) {
+			return false;
+		}
+
+		mPacketIdent = mIdent;
+		mPacketFieldCount = mFieldCount - 1;
+		mPacketLength = mLineLength + 1;
+
+		return true;
+	}
+
+	// Store the value of the current field, returns false if it is not a valid int
+	private boolean storeValue(int index) {
+
+		long value = mNegative ? -mValue : mValue;
+
+		if (mDigits == 0 || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			mValid = false;
+			return false;
+		}
+
+		if (index < MAX_FIELDS) {
+			mFields[index] = (int)value;
+		}
+
+		return true;
+	}
+
+	// Indicates if the line being ended is an "OK" or "ERROR ..." reply to a command
+	private boolean isReplyLine() {
+		return mValid && (mReply || (mFieldCount == 0 && mIdentLength == OK_LENGTH && mIdentWord == OK_WORD));
+	}
+
+	// Count a line that exceeded MAX_LINE_LENGTH without a line ending as failed now, and skip the rest
+	private void failOverlongLine() {
+		mFailedLines++;
+		mLineLength = 0;
+		mValid = false;
+	}
+
+	private void resetField() {
+		mValue = 0;
+		mNegative = false;
+		mSigned = false;
+		mDigits = 0;
+	}
+}
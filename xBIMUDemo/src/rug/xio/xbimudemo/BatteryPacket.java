@@ -0,0 +1,42 @@
+package rug.xio.xbimudemo;
+
+// Battery packet, see SerialDecoder.PACKET_Battery
+public class BatteryPacket extends SerialPacket {
+
+	// battery voltage
+	public int voltage;
+
+	public BatteryPacket() {
+		super(SerialDecoder.PACKET_Battery);
+	}
+
+	@Override
+	public int getValueCount() {
+		return 1;
+	}
+
+	@Override
+	public int getValue(int index) {
+		if (index != 0) {
+			throw new IndexOutOfBoundsException("Battery value index " + index);
+		}
+
+		return voltage;
+	}
+
+	@Override
+	public void setValue(int index, int value) {
+		if (index != 0) {
+			throw new IndexOutOfBoundsException("Battery value index " + index);
+		}
+
+		voltage = value;
+	}
+
+	@Override
+	public BatteryPacket copy() {
+		BatteryPacket packet = new BatteryPacket();
+		packet.copyFrom(this);
+		return packet;
+	}
+}
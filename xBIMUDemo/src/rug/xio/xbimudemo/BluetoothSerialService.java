@@ -19,13 +19,9 @@
 package rug.xio.xbimudemo;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -43,9 +39,6 @@ public class BluetoothSerialService {
 	// Debugging
 	private static final String TAG = "BluetoothReadService";
 
-	// The UUID of SPP 
-	private static final UUID SerialPortServiceClass_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
 	// Member fields
 	private final BluetoothAdapter mAdapter;
 	private final Handler mHandler;
@@ -55,6 +48,21 @@ public class BluetoothSerialService {
 
 	private SerialConsumer mSerialConsumer;
 
+	// Bus carrying the OK and ERROR replies to written commands
+	private final SerialPacketBus mReplyBus;
+
+	// Identifier of the device, sent as arg2 of state change messages
+	private int mDeviceId = -1;
+
+	// Default latency budget, the socket otherwise delivers a few bytes per read
+	public static final long DEFAULT_LATENCY_BUDGET_NANOS = 2000000;
+
+	// Time the reader collects bytes before passing them on
+	private long mLatencyBudgetNanos = DEFAULT_LATENCY_BUDGET_NANOS;
+
+	// Reconnection attempts after the connection drops
+	private int mReconnectAttempts = ReconnectingReader.DEFAULT_MAX_ATTEMPTS;
+
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0; // we're doing nothing
 	public static final int STATE_LISTEN = 1; // now listening for incoming connections
@@ -68,13 +76,19 @@ public class BluetoothSerialService {
 	 *            The UI Activity Context
 	 * @param handler
 	 *            A Handler to send messages back to the UI Activity
+	 * @param serialConsumer
+	 *            Consumer of the received bytes
+	 * @param replyBus
+	 *            Bus the decoder publishes OK and ERROR replies on, used to
+	 *            acknowledge written commands
 	 */
-	public BluetoothSerialService(Context context, Handler handler, SerialConsumer serialConsumer) {
+	public BluetoothSerialService(Context context, Handler handler, SerialConsumer serialConsumer, SerialPacketBus replyBus) {
 		
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
 		mState = STATE_NONE;
 		mHandler = handler;
 		mSerialConsumer = serialConsumer;
+		mReplyBus = replyBus;
 	}
 
 	/**
@@ -89,7 +103,57 @@ public class BluetoothSerialService {
 		mState = state;
 
 		// Give the new state to the Handler so the UI Activity can update
-		mHandler.obtainMessage(Terminal.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+		mHandler.obtainMessage(Terminal.MESSAGE_STATE_CHANGE, state, mDeviceId).sendToTarget();
+	}
+
+	/**
+	 * Set the device identifier sent as arg2 of MESSAGE_STATE_CHANGE messages,
+	 * so one Handler can serve several services.
+	 */
+	public synchronized void setDeviceId(int deviceId) {
+		mDeviceId = deviceId;
+	}
+
+	/**
+	 * Set the time the reader collects received bytes before passing them to
+	 * the consumer, 0 to pass on every read. Applies from the next connection.
+	 */
+	public synchronized void setLatencyBudget(long nanos) {
+		mLatencyBudgetNanos = nanos;
+	}
+
+	/**
+	 * Return the read loop statistics of the current connection, or null if
+	 * not connected.
+	 */
+	public synchronized SerialReaderStatistics getReaderStatistics() {
+		SerialReader reader = mConnectedThread != null ? mConnectedThread.mmReader.getReader() : null;
+
+		return reader != null ? reader.getStatistics() : null;
+	}
+
+	/**
+	 * Set the number of reconnection attempts after the connection drops, 0
+	 * to not reconnect. Applies from the next connection.
+	 */
+	public synchronized void setReconnectAttempts(int attempts) {
+		mReconnectAttempts = attempts;
+	}
+
+	/**
+	 * Return the reconnecting read loop of the current connection, with its
+	 * reconnect latency and data gap metrics, or null if not connected.
+	 */
+	public synchronized ReconnectingReader getReconnectingReader() {
+		return mConnectedThread != null ? mConnectedThread.mmReader : null;
+	}
+
+	/**
+	 * Return the command queue of the current connection, or null if not
+	 * connected.
+	 */
+	public synchronized SerialCommandQueue getCommandQueue() {
+		return mConnectedThread != null ? mConnectedThread.mmCommands : null;
 	}
 
 	/**
@@ -154,12 +218,12 @@ public class BluetoothSerialService {
 	/**
 	 * Start the ConnectedThread to begin managing a Bluetooth connection
 	 * 
-	 * @param socket
-	 *            The BluetoothSocket on which the connection was made
+	 * @param transport
+	 *            The open transport of the connection
 	 * @param device
 	 *            The BluetoothDevice that has been connected
 	 */
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+	public synchronized void connected(SerialTransport transport, BluetoothDevice device) {
 		Log.d(TAG, "connected");
 
 		// Cancel the thread that completed the connection
@@ -175,7 +239,7 @@ public class BluetoothSerialService {
 		}
 
 		// Start the thread to manage the connection and perform transmissions
-		mConnectedThread = new ConnectedThread(socket);
+		mConnectedThread = new ConnectedThread(transport, device);
 		mConnectedThread.start();
 
 		// Send the name of the connected device back to the UI Activity
@@ -208,13 +272,29 @@ public class BluetoothSerialService {
 	}
 
 	/**
-	 * Write to the ConnectedThread in an unsynchronized manner
+	 * Queue a command to the ConnectedThread, it is written by the command
+	 * queue's own thread
 	 * 
 	 * @param out
 	 *            The bytes to write
-	 * @see ConnectedThread#write(byte[])
+	 * @return The queued command, or null if not connected
+	 * @see ConnectedThread#write(byte[], SerialCommandListener)
 	 */
-	public void write(byte[] out) {
+	public SerialCommand write(byte[] out) {
+		return write(out, null);
+	}
+
+	/**
+	 * Queue a command to the ConnectedThread
+	 * 
+	 * @param out
+	 *            The bytes to write
+	 * @param listener
+	 *            Listener called when the command is acknowledged, times out
+	 *            or fails, may be null
+	 * @return The queued command, or null if not connected
+	 */
+	public SerialCommand write(byte[] out, SerialCommandListener listener) {
 		
 		// Create temporary object
 		ConnectedThread r;
@@ -222,14 +302,14 @@ public class BluetoothSerialService {
 		// Synchronize a copy of the ConnectedThread
 		synchronized (this) {
 			if (mState != STATE_CONNECTED) { 
-				return;
+				return null;
 			}
 			
 			r = mConnectedThread;
 		}
 		
-		// Perform the write unsynchronized
-		r.write(out);
+		// Queue the write unsynchronized
+		return r.write(out, listener);
 	}
 
 	/**
@@ -266,21 +346,12 @@ public class BluetoothSerialService {
 	 * fails.
 	 */
 	private class ConnectThread extends Thread {
-		private final BluetoothSocket mmSocket;
+		private final BluetoothTransport mmTransport;
 		private final BluetoothDevice mmDevice;
 
 		public ConnectThread(BluetoothDevice device) {
 			mmDevice = device;
-			BluetoothSocket tmp = null;
-
-			// Get a BluetoothSocket for a connection with the
-			// given BluetoothDevice
-			try {
-				tmp = device.createRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
-			} catch (IOException e) {
-				Log.e(TAG, "create() failed", e);
-			}
-			mmSocket = tmp;
+			mmTransport = new BluetoothTransport(mAdapter, device);
 		}
 
 		public void run() {
@@ -289,21 +360,12 @@ public class BluetoothSerialService {
 			
 			setName("ConnectThread");
 
-			// Always cancel discovery because it will slow down a connection
-			mAdapter.cancelDiscovery();
-
-			// Make a connection to the BluetoothSocket
+			// Make a connection, the transport closes itself if this fails
 			try {
 				// This is a blocking call and will only return on a successful connection or an exception
-				mmSocket.connect();
+				mmTransport.open();
 			} catch (IOException e) {
 				connectionFailed();
-				// Close the socket
-				try {
-					mmSocket.close();
-				} catch (IOException e2) {
-					Log.e(TAG, "unable to close() socket during connection failure", e2);
-				}
 				
 				// Start the service over to restart listening mode
 				// BluetoothSerialService.this.start();
@@ -316,15 +378,11 @@ public class BluetoothSerialService {
 			}
 
 			// Start the connected thread
-			connected(mmSocket, mmDevice);
+			connected(mmTransport, mmDevice);
 		}
 
 		public void cancel() {
-			try {
-				mmSocket.close();
-			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
-			}
+			mmTransport.close();
 		}
 	}
 
@@ -332,75 +390,104 @@ public class BluetoothSerialService {
 	 * This thread runs during a connection with a remote device. It handles all
 	 * incoming and outgoing transmissions.
 	 */
-	private class ConnectedThread extends Thread {
+	private class ConnectedThread extends Thread implements ReconnectListener {
 		
-		private final BluetoothSocket mmSocket;
-		private final InputStream mmInStream;
-		private final OutputStream mmOutStream;
+		private final ReconnectingReader mmReader;
+		private volatile SerialCommandQueue mmCommands;
+
+		// Set while mmCommands is started and not yet stopped, read thread only
+		private boolean mmCommandsRunning = false;
 
-		public ConnectedThread(BluetoothSocket socket) {
+		public ConnectedThread(SerialTransport transport, final BluetoothDevice device) {
 			Log.d(TAG, "create ConnectedThread");
-			mmSocket = socket;
-			InputStream tmpIn = null;
-			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
-			try {
-				tmpIn = socket.getInputStream();
-				tmpOut = socket.getOutputStream();
-			} catch (IOException e) {
-				Log.e(TAG, "temp sockets not created", e);
-			}
+			// Reconnect to the same device, no discovery needed
+			SerialTransportFactory factory = new SerialTransportFactory() {
+				@Override
+				public SerialTransport createTransport() {
+					return new BluetoothTransport(mAdapter, device);
+				}
+			};
 
-			mmInStream = tmpIn;
-			mmOutStream = tmpOut;
+			mmReader = new ReconnectingReader(transport, factory, mSerialConsumer, this);
+			mmReader.setLatencyBudget(mLatencyBudgetNanos);
+			mmReader.setMaxAttempts(mReconnectAttempts);
+			mmCommands = new SerialCommandQueue(transport);
 		}
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectedThread");
-			byte[] buffer = new byte[1024];
-			int bytes;
-
-			// Keep listening to the InputStream while connected
-			while (true) {
-				try {
-					// Read from the InputStream
-					bytes = mmInStream.read(buffer);
-
-					// Send the obtained bytes to the whoever is consuming it
-					mSerialConsumer.reciveBytes(buffer, bytes);					
-				} catch (IOException e) {
-					Log.e(TAG, "disconnected", e);
-					connectionLost();
-					break;
-				}
+
+			// Write queued commands on their own thread, acknowledged by the decoder's replies
+			startCommands(mmCommands);
+
+			// Keep listening to the transport while connected, reconnecting when it drops
+			mmReader.run();
+
+			// Unless the last connection was lost and its commands were stopped then
+			stopCommands();
+
+			// A cancelled connection was closed on purpose
+			if (!mmReader.isCancelled()) {
+				Log.e(TAG, "disconnected", mmReader.getFailure());
+				connectionLost();
+			}
+		}
+
+		private void startCommands(SerialCommandQueue commands) {
+			mmCommands = commands;
+			mReplyBus.addMessageHandler(commands);
+			commands.start();
+			mmCommandsRunning = true;
+		}
+
+		// Stop the commands of the current connection, once
+		private void stopCommands() {
+			if (!mmCommandsRunning) {
+				return;
 			}
+
+			mmCommandsRunning = false;
+			mmCommands.shutdown();
+			mReplyBus.removeMessageHandler(mmCommands);
+		}
+
+		@Override
+		public void onConnectionLost(IOException cause) {
+			Log.w(TAG, "connection lost, reconnecting", cause);
+
+			// Commands awaiting a reply fail, writes are refused until reconnected
+			stopCommands();
+			setState(STATE_CONNECTING);
+		}
+
+		@Override
+		public void onReconnecting(int attempt, long delayNanos) {
+			Log.d(TAG, "reconnect attempt " + attempt + " in " + delayNanos / 1000000 + " ms");
+		}
+
+		@Override
+		public void onReconnected(SerialTransport transport, long latencyNanos) {
+			Log.i(TAG, "reconnected after " + latencyNanos / 1000000 + " ms");
+
+			startCommands(new SerialCommandQueue(transport));
+			setState(STATE_CONNECTED);
 		}
 
 		/**
-		 * Write to the connected OutStream.
+		 * Queue a command to the connected transport.
 		 * 
 		 * @param buffer
 		 *            The bytes to write
+		 * @param listener
+		 *            Listener called when the command completes, may be null
 		 */
-		public void write(byte[] buffer) {
-			try {
-				mmOutStream.write(buffer);
-
-				// Share the sent message back to the UI Activity
-				mHandler.obtainMessage(Terminal.MESSAGE_WRITE, buffer.length, -1, buffer).sendToTarget();
-				
-			} catch (IOException e) {
-				Log.e(TAG, "Exception during write", e);
-			}
+		public SerialCommand write(byte[] buffer, SerialCommandListener listener) {
+			return mmCommands.send(buffer, listener);
 		}
 
 		public void cancel() {
-			try {
-				mmSocket.close();
-			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
-			}
+			mmReader.cancel();
 		}
 	}
-}
\ No newline at end of file
+}
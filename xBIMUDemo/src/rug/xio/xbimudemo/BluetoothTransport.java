@@ -0,0 +1,145 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * SerialTransport over a Bluetooth RFCOMM (Serial Port Profile) socket.
+ */
+public class BluetoothTransport implements SerialTransport {
+
+	// The UUID of SPP 
+	private static final UUID SerialPortServiceClass_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	private final BluetoothAdapter mAdapter;
+	private final BluetoothDevice mDevice;
+
+	private volatile BluetoothSocket mSocket;
+	private volatile InputStream mInStream;
+	private volatile OutputStream mOutStream;
+	private volatile int mState = STATE_CLOSED;
+
+	// Guards opening against a concurrent close, a closed transport cannot be opened again
+	private final Object mLock = new Object();
+	private boolean mClosed = false;
+
+	public BluetoothTransport(BluetoothAdapter adapter, BluetoothDevice device) {
+		mAdapter = adapter;
+		mDevice = device;
+	}
+
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	@Override
+	public void open() throws IOException {
+
+		try {
+			BluetoothSocket socket;
+
+			// Create and publish the socket under the lock close takes, so a close at any time closes it
+			synchronized (mLock) {
+				if (mClosed) {
+					throw new IOException("Transport closed");
+				}
+
+				mState = STATE_OPENING;
+
+				// Get a BluetoothSocket for a connection with the given BluetoothDevice
+				socket = mDevice.createRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
+
+				mSocket = socket;
+			}
+
+			// Always cancel discovery because it will slow down a connection
+			mAdapter.cancelDiscovery();
+
+			// This is a blocking call and will only return on a successful connection or an exception
+			socket.connect();
+
+			synchronized (mLock) {
+				// Closed while connecting
+				if (mClosed) {
+					throw new IOException("Transport closed");
+				}
+
+				mInStream = socket.getInputStream();
+				mOutStream = socket.getOutputStream();
+				mState = STATE_OPEN;
+			}
+		}
+		catch (IOException e) {
+			// Also leaves STATE_OPENING if the socket could not be created
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		InputStream in = mInStream;
+
+		if (in == null) {
+			throw new IOException("Transport not open");
+		}
+
+		return in.read(buffer, offset, length);
+	}
+
+	@Override
+	public int available() throws IOException {
+
+		InputStream in = mInStream;
+
+		if (in == null) {
+			throw new IOException("Transport not open");
+		}
+
+		return in.available();
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+
+		OutputStream out = mOutStream;
+
+		if (out == null) {
+			throw new IOException("Transport not open");
+		}
+
+		out.write(buffer, offset, length);
+	}
+
+	@Override
+	public void close() {
+
+		BluetoothSocket socket;
+
+		synchronized (mLock) {
+			mClosed = true;
+			mState = STATE_CLOSED;
+			socket = mSocket;
+		}
+
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more can be done, the socket is unusable either way
+			}
+		}
+	}
+
+	@Override
+	public int getState() {
+		return mState;
+	}
+}
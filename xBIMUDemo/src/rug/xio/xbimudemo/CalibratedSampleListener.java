@@ -0,0 +1,21 @@
+package rug.xio.xbimudemo;
+
+// Receives packets with their values in engineering units from a CalibrationStage.
+//
+// The value arrays are reused for every packet, like the packets themselves,
+// so they are only valid for the duration of the callback.
+public interface CalibratedSampleListener {
+
+	// quaternion normalised to a unit quaternion, elements 0 - 3
+	void onQuaternion(QuaternionPacket packet, float[] quaternion);
+
+	// gyroscope (deg/s), accelerometer (g) and magnetometer (gauss), in SensorsPacket order
+	void onSensors(SensorsPacket packet, float[] values);
+
+	// battery voltage in volts
+	void onBattery(BatteryPacket packet, float voltage);
+
+	// temperature in degrees Celsius
+	void onThermometer(ThermometerPacket packet, float temperature);
+
+}
@@ -0,0 +1,92 @@
+package rug.xio.xbimudemo;
+
+import java.io.File;
+import java.io.IOException;
+
+// Pipeline stage that converts decoded packets to engineering units with the
+// calibration of the device each packet came from.
+//
+// The calibration table is held in a volatile reference and may be replaced
+// from any thread, e.g. after reloading the calibration file, while packets
+// keep flowing; each packet is converted with either the old or the new table,
+// never a mix. The calibration of the last device is cached so the table is
+// only looked up when the device or the table changes.
+//
+// Packets must be delivered from one thread, as by a SerialDecoder or a
+// SampleDispatcher.
+public class CalibrationStage implements SerialPacketListener {
+
+	private final CalibratedSampleListener mListener;
+
+	private volatile CalibrationTable mTable;
+
+	// Cached calibration, packet thread only
+	private CalibrationTable mCachedTable;
+	private int mCachedDeviceId;
+	private SensorCalibration mCachedCalibration;
+
+	// Converted values, reused for every packet
+	private final float[] mQuaternion = new float[4];
+	private final float[] mSensors = new float[9];
+
+	public CalibrationStage(CalibratedSampleListener listener) {
+		this(listener, CalibrationTable.NOMINAL);
+	}
+
+	public CalibrationStage(CalibratedSampleListener listener, CalibrationTable table) {
+		mListener = listener;
+		mTable = table;
+	}
+
+	// Replace the calibration table, from any thread
+	public void setTable(CalibrationTable table) {
+		mTable = table;
+	}
+
+	public CalibrationTable getTable() {
+		return mTable;
+	}
+
+	/**
+	 * Load a calibration file and replace the table with it. On failure the
+	 * current table is kept.
+	 */
+	public void load(File file) throws IOException {
+		setTable(CalibrationTable.load(file));
+	}
+
+	private SensorCalibration getCalibration(int deviceId) {
+
+		CalibrationTable table = mTable;
+
+		if (table != mCachedTable || deviceId != mCachedDeviceId || mCachedCalibration == null) {
+			mCachedTable = table;
+			mCachedDeviceId = deviceId;
+			mCachedCalibration = table.get(deviceId);
+		}
+
+		return mCachedCalibration;
+	}
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) {
+		QuaternionConverter.normalize(packet, mQuaternion, 0);
+		mListener.onQuaternion(packet, mQuaternion);
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+		getCalibration(packet.deviceId).apply(packet, mSensors, 0);
+		mListener.onSensors(packet, mSensors);
+	}
+
+	@Override
+	public void onBattery(BatteryPacket packet) {
+		mListener.onBattery(packet, getCalibration(packet.deviceId).applyBattery(packet));
+	}
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) {
+		mListener.onThermometer(packet, getCalibration(packet.deviceId).applyThermometer(packet));
+	}
+}
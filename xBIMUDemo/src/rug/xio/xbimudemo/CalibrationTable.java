@@ -0,0 +1,202 @@
+package rug.xio.xbimudemo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+// Immutable set of per-device calibrations, loaded from a text file.
+//
+// File format, one entry per line, '#' starts a comment:
+//
+//   device <id>|default
+//   gyroscope <m00> <m01> <m02> <m10> <m11> <m12> <m20> <m21> <m22> <biasX> <biasY> <biasZ>
+//   accelerometer <12 values as gyroscope>
+//   magnetometer <12 values as gyroscope>
+//   battery <scale> <offset>
+//   thermometer <scale> <offset>
+//
+// The lines after a device line calibrate that device; sensors not listed keep
+// the nominal calibration, see SensorCalibration.NOMINAL. Devices not in the
+// file use the default entry, or the nominal calibration if there is none.
+public final class CalibrationTable {
+
+	// Table without entries, every device uses the nominal calibration
+	public static final CalibrationTable NOMINAL = new CalibrationTable(new HashMap<Integer, SensorCalibration>(), SensorCalibration.NOMINAL);
+
+	private final Map<Integer, SensorCalibration> mDevices;
+	private final SensorCalibration mDefault;
+
+	public CalibrationTable(Map<Integer, SensorCalibration> devices, SensorCalibration defaultCalibration) {
+		mDevices = new HashMap<Integer, SensorCalibration>(devices);
+		mDefault = defaultCalibration;
+	}
+
+	// Calibration of a device, the default calibration if it has none
+	public SensorCalibration get(int deviceId) {
+
+		SensorCalibration calibration = mDevices.get(deviceId);
+
+		return calibration != null ? calibration : mDefault;
+	}
+
+	public SensorCalibration getDefault() {
+		return mDefault;
+	}
+
+	/**
+	 * Load a calibration file.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or has an error, with the line number
+	 */
+	public static CalibrationTable load(File file) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+
+		try {
+			return parse(reader, file.getName());
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	static CalibrationTable parse(BufferedReader reader, String name) throws IOException {
+
+		Map<Integer, SensorCalibration> devices = new HashMap<Integer, SensorCalibration>();
+		SensorCalibration defaultCalibration = SensorCalibration.NOMINAL;
+
+		// Device being read, null before the first device line
+		Builder builder = null;
+		String line;
+		int lineNumber = 0;
+
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+
+			int comment = line.indexOf('#');
+
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+
+			String[] words = line.trim().split("\\s+");
+
+			if (words.length == 1 && words[0].length() == 0) {
+				continue;
+			}
+
+			try {
+				if (words[0].equals("device")) {
+					expect(words, 2);
+
+					if (builder != null) {
+						if (builder.deviceId == null) {
+							defaultCalibration = builder.build();
+						}
+						else {
+							devices.put(builder.deviceId, builder.build());
+						}
+					}
+
+					builder = new Builder(words[1].equals("default") ? null : Integer.valueOf(words[1]));
+					continue;
+				}
+
+				if (builder == null) {
+					throw new IllegalArgumentException("expected a device line first");
+				}
+
+				if (words[0].equals("gyroscope")) {
+					builder.setTriplet(SensorCalibration.SENSOR_Gyroscope, words);
+				}
+				else if (words[0].equals("accelerometer")) {
+					builder.setTriplet(SensorCalibration.SENSOR_Accelerometer, words);
+				}
+				else if (words[0].equals("magnetometer")) {
+					builder.setTriplet(SensorCalibration.SENSOR_Magnetometer, words);
+				}
+				else if (words[0].equals("battery")) {
+					expect(words, 3);
+					builder.batteryScale = Float.parseFloat(words[1]);
+					builder.batteryOffset = Float.parseFloat(words[2]);
+				}
+				else if (words[0].equals("thermometer")) {
+					expect(words, 3);
+					builder.thermometerScale = Float.parseFloat(words[1]);
+					builder.thermometerOffset = Float.parseFloat(words[2]);
+				}
+				else {
+					throw new IllegalArgumentException("unknown entry " + words[0]);
+				}
+			}
+			catch (IllegalArgumentException e) {
+				// includes NumberFormatException
+				throw new IOException(name + ":" + lineNumber + ": " + e.getMessage());
+			}
+		}
+
+		if (builder != null) {
+			if (builder.deviceId == null) {
+				defaultCalibration = builder.build();
+			}
+			else {
+				devices.put(builder.deviceId, builder.build());
+			}
+		}
+
+		return new CalibrationTable(devices, defaultCalibration);
+	}
+
+	private static void expect(String[] words, int count) {
+		if (words.length != count) {
+			throw new IllegalArgumentException(words[0] + " needs " + (count - 1) + " values");
+		}
+	}
+
+	// Calibration of one device while it is read, starting from the nominal calibration
+	private static class Builder {
+
+		final Integer deviceId;
+		final float[][] matrices = new float[3][];
+		final float[][] biases = new float[3][];
+		float batteryScale = SensorCalibration.NOMINAL.getBatteryScale();
+		float batteryOffset = SensorCalibration.NOMINAL.getBatteryOffset();
+		float thermometerScale = SensorCalibration.NOMINAL.getThermometerScale();
+		float thermometerOffset = SensorCalibration.NOMINAL.getThermometerOffset();
+
+		Builder(Integer deviceId) {
+			this.deviceId = deviceId;
+
+			for (int sensor = 0; sensor < 3; sensor++) {
+				matrices[sensor] = SensorCalibration.NOMINAL.getMatrix(sensor);
+				biases[sensor] = SensorCalibration.NOMINAL.getBias(sensor);
+			}
+		}
+
+		void setTriplet(int sensor, String[] words) {
+
+			expect(words, 13);
+
+			for (int i = 0; i < 9; i++) {
+				matrices[sensor][i] = Float.parseFloat(words[1 + i]);
+			}
+
+			for (int i = 0; i < 3; i++) {
+				biases[sensor][i] = Float.parseFloat(words[10 + i]);
+			}
+		}
+
+		SensorCalibration build() {
+			return new SensorCalibration(
+					matrices[SensorCalibration.SENSOR_Gyroscope], biases[SensorCalibration.SENSOR_Gyroscope],
+					matrices[SensorCalibration.SENSOR_Accelerometer], biases[SensorCalibration.SENSOR_Accelerometer],
+					matrices[SensorCalibration.SENSOR_Magnetometer], biases[SensorCalibration.SENSOR_Magnetometer],
+					batteryScale, batteryOffset, thermometerScale, thermometerOffset);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package rug.xio.xbimudemo;
+
+// Attaches a WindowedStatistics operator to one channel of the decoded packets,
+// e.g. accelerometer Z of the sensor packets, and passes the statistics to a
+// listener each time a result is due.
+//
+// Add it as a packet listener, e.g. on a SampleDispatcher; packets of other
+// types, and of other devices if a device is set, are ignored.
+public class ChannelStatistics extends SerialPacketAdapter {
+
+	// Receives the statistics of a channel
+	public interface Listener {
+
+		// statistics are due, packet is the packet of the last sample
+		void onStatistics(ChannelStatistics channel, SerialPacket packet);
+
+	}
+
+	// Device identifier matching every device
+	public static final int DEVICE_Any = -1;
+
+	private final int mPacketType;
+	private final int mValueIndex;
+	private final WindowedStatistics mStatistics;
+	private final Listener mListener;
+
+	private int mDeviceId = DEVICE_Any;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param packetType
+	 *            One of the SerialDecoder.PACKET_ constants
+	 * @param valueIndex
+	 *            Index of the value in the packet, see SerialPacket.getValue
+	 */
+	public ChannelStatistics(int packetType, int valueIndex, WindowedStatistics statistics, Listener listener) {
+		mPacketType = packetType;
+		mValueIndex = valueIndex;
+		mStatistics = statistics;
+		mListener = listener;
+	}
+
+	// Only use packets of one device, or DEVICE_Any
+	public void setDeviceId(int deviceId) {
+		mDeviceId = deviceId;
+	}
+
+	public int getPacketType() {
+		return mPacketType;
+	}
+
+	public int getValueIndex() {
+		return mValueIndex;
+	}
+
+	public WindowedStatistics getStatistics() {
+		return mStatistics;
+	}
+
+	@Override
+	public void onPacket(SerialPacket packet) {
+
+		if (packet.type != mPacketType || (mDeviceId != DEVICE_Any && packet.deviceId != mDeviceId)) {
+			return;
+		}
+
+		if (mStatistics.add(packet.getValue(mValueIndex))) {
+			mListener.onStatistics(this, packet);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package rug.xio.xbimudemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Reads a columnar store written by ColumnStoreWriter.
+//
+// next moves to the next chunk and reads only its header and column
+// directory, so chunks can be skipped by packet type or by the column minimum
+// and maximum; readColumn then reads and decodes the bytes of a single column.
+public class ColumnStoreReader {
+
+	private final RandomAccessFile mFile;
+
+	// Current chunk
+	private long mChunkStart = -1;
+	private long mNextChunk = 0;
+	private int mPacketType;
+	private int mColumnCount;
+	private int mRowCount;
+	private int[] mOffsets = new int[16];
+	private int[] mLengths = new int[16];
+	private long[] mMins = new long[16];
+	private long[] mMaxs = new long[16];
+
+	private byte[] mHeader = new byte[ColumnStoreWriter.CHUNK_HEADER + 16 * ColumnStoreWriter.COLUMN_ENTRY];
+	private byte[] mData = new byte[1024];
+
+	public ColumnStoreReader(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	/**
+	 * Move to the next chunk.
+	 * 
+	 * @return false at the end of the store
+	 * @throws IOException
+	 *             if the chunk is truncated or not a chunk
+	 */
+	public boolean next() throws IOException {
+
+		if (mNextChunk + ColumnStoreWriter.CHUNK_HEADER > mFile.length()) {
+			return false;
+		}
+
+		mFile.seek(mNextChunk);
+		mFile.readFully(mHeader, 0, ColumnStoreWriter.CHUNK_HEADER);
+
+		if (getInt(mHeader, 0) != ColumnStoreWriter.MAGIC) {
+			throw new IOException("Not a column chunk at " + mNextChunk);
+		}
+
+		int length = getInt(mHeader, 4);
+		int columns = mHeader[9] & 0xFF;
+		int directory = columns * ColumnStoreWriter.COLUMN_ENTRY;
+
+		if (mHeader.length < ColumnStoreWriter.CHUNK_HEADER + directory) {
+			byte[] header = new byte[ColumnStoreWriter.CHUNK_HEADER + directory];
+			System.arraycopy(mHeader, 0, header, 0, ColumnStoreWriter.CHUNK_HEADER);
+			mHeader = header;
+			mOffsets = new int[columns];
+			mLengths = new int[columns];
+			mMins = new long[columns];
+			mMaxs = new long[columns];
+		}
+
+		mFile.readFully(mHeader, ColumnStoreWriter.CHUNK_HEADER, directory);
+
+		mChunkStart = mNextChunk;
+		mNextChunk += 8 + (length & 0xFFFFFFFFL);
+		mPacketType = mHeader[8];
+		mColumnCount = columns;
+		mRowCount = getInt(mHeader, 12);
+
+		for (int c = 0; c < columns; c++) {
+			int entry = ColumnStoreWriter.CHUNK_HEADER + c * ColumnStoreWriter.COLUMN_ENTRY;
+
+			mOffsets[c] = getInt(mHeader, entry);
+			mLengths[c] = getInt(mHeader, entry + 4);
+			mMins[c] = getLong(mHeader, entry + 8);
+			mMaxs[c] = getLong(mHeader, entry + 16);
+		}
+
+		return true;
+	}
+
+	// Packet type of the current chunk, one of the SerialDecoder.PACKET_ constants
+	public int getPacketType() {
+		return mPacketType;
+	}
+
+	public int getRowCount() {
+		return mRowCount;
+	}
+
+	public int getColumnCount() {
+		return mColumnCount;
+	}
+
+	// Minimum value of a column in the current chunk
+	public long getMin(int column) {
+		return mMins[column];
+	}
+
+	// Maximum value of a column in the current chunk
+	public long getMax(int column) {
+		return mMaxs[column];
+	}
+
+	/**
+	 * Decode one column of the current chunk.
+	 * 
+	 * @param column
+	 *            Column index, see the ColumnStoreWriter.COLUMN_ constants
+	 * @param values
+	 *            Array of at least getRowCount() values to decode into
+	 * @return The number of values decoded
+	 */
+	public int readColumn(int column, long[] values) throws IOException {
+
+		if (mChunkStart < 0) {
+			throw new IllegalStateException("No current chunk");
+		}
+
+		if (column < 0 || column >= mColumnCount) {
+			throw new IndexOutOfBoundsException("Column " + column + " of " + mColumnCount);
+		}
+
+		int length = mLengths[column];
+
+		if (mData.length < length) {
+			mData = new byte[Math.max(length, mData.length * 2)];
+		}
+
+		mFile.seek(mChunkStart + mOffsets[column]);
+		mFile.readFully(mData, 0, length);
+
+		byte[] data = mData;
+		int position = 0;
+		long value = 0;
+
+		for (int row = 0; row < mRowCount; row++) {
+			long zigzag = 0;
+			int shift = 0;
+			int b;
+
+			do {
+				b = data[position++];
+				zigzag |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			value += (zigzag >>> 1) ^ -(zigzag & 1);
+			values[row] = value;
+		}
+
+		return mRowCount;
+	}
+
+	private static int getInt(byte[] buffer, int index) {
+		return ((buffer[index] & 0xFF) << 24) | ((buffer[index + 1] & 0xFF) << 16)
+				| ((buffer[index + 2] & 0xFF) << 8) | (buffer[index + 3] & 0xFF);
+	}
+
+	private static long getLong(byte[] buffer, int index) {
+		return ((long)getInt(buffer, index) << 32) | (getInt(buffer, index + 4) & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,285 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes decoded packets to a columnar store.
+//
+// Packets are collected per packet type into chunks of up to chunkRows rows.
+// Each column of a chunk (sample time, receive time, device identifier, counter
+// and every data value) is stored separately as zig-zag varints of the
+// difference to the previous row, with the column minimum and maximum in the
+// chunk directory, so a reader can skip chunks by range, e.g. chunks without
+// packets of a device, and decode one column without touching the others.
+// Sample times in a chunk are not in order, e.g. across devices; the ranges
+// hold all the same.
+//
+// Chunk layout, all values big-endian:
+//   int   MAGIC
+//   int   length of the rest of the chunk
+//   byte  packet type, one of the SerialDecoder.PACKET_ constants
+//   byte  number of columns
+//   short reserved
+//   int   number of rows
+//   column directory, COLUMN_ENTRY bytes per column:
+//     int   offset of the column data from the start of the chunk
+//     int   length of the column data
+//     long  minimum value
+//     long  maximum value
+//   column data
+//
+// The writer does blocking I/O, so it should be called from a consumer thread,
+// e.g. through a SampleRingBuffer and SampleDispatcher, never from the read thread.
+public class ColumnStoreWriter extends SerialPacketAdapter {
+
+	// "XBCC"
+	public static final int MAGIC = 0x58424343;
+
+	public static final int CHUNK_HEADER = 16;
+	public static final int COLUMN_ENTRY = 24;
+
+	// Columns, followed by one column per data value of the packet type
+	public static final int COLUMN_Timestamp = 0;		// SerialPacket.timestamp, the sample time
+	public static final int COLUMN_ReceiveTime = 1;
+	public static final int COLUMN_Device = 2;
+	public static final int COLUMN_Counter = 3;
+	public static final int COLUMN_Values = 4;
+
+	// Default number of rows per chunk
+	public static final int DEFAULT_CHUNK_ROWS = 4096;
+
+	// Longest varint of a 64-bit value
+	private static final int MAX_VARINT = 10;
+
+	private final OutputStream mOut;
+	private final int mChunkRows;
+
+	// Rows being collected, one builder per packet type
+	private final ChunkBuilder mQuaternionChunk;
+	private final ChunkBuilder mSensorsChunk;
+	private final ChunkBuilder mBatteryChunk;
+	private final ChunkBuilder mThermometerChunk;
+
+	// Encoded chunk, reused
+	private byte[] mChunk = new byte[1024];
+
+	private long mChunks = 0;
+	private long mBytes = 0;
+
+	// First write failure of onPacket, reported by flush
+	private IOException mFailure;
+
+	// Columns of one packet type
+	private static class ChunkBuilder {
+
+		final int type;
+		final long[][] columns;
+		int rows = 0;
+
+		ChunkBuilder(int type, int valueCount, int chunkRows) {
+			this.type = type;
+			this.columns = new long[COLUMN_Values + valueCount][chunkRows];
+		}
+	}
+
+	public ColumnStoreWriter(OutputStream out) {
+		this(out, DEFAULT_CHUNK_ROWS);
+	}
+
+	public ColumnStoreWriter(OutputStream out, int chunkRows) {
+
+		if (chunkRows < 1) {
+			throw new IllegalArgumentException("Chunk rows must be at least 1");
+		}
+
+		mOut = out;
+		mChunkRows = chunkRows;
+
+		mQuaternionChunk = new ChunkBuilder(SerialDecoder.PACKET_Quaternion, new QuaternionPacket().getValueCount(), chunkRows);
+		mSensorsChunk = new ChunkBuilder(SerialDecoder.PACKET_Sensors, new SensorsPacket().getValueCount(), chunkRows);
+		mBatteryChunk = new ChunkBuilder(SerialDecoder.PACKET_Battery, new BatteryPacket().getValueCount(), chunkRows);
+		mThermometerChunk = new ChunkBuilder(SerialDecoder.PACKET_Thermometer, new ThermometerPacket().getValueCount(), chunkRows);
+	}
+
+	// Number of chunks written
+	public long getChunkCount() {
+		return mChunks;
+	}
+
+	// Number of bytes written
+	public long getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * Add a packet. Write failures are reported by flush and close, the
+	 * listener interface cannot throw; use write to get them immediately.
+	 */
+	@Override
+	public void onPacket(SerialPacket packet) {
+		try {
+			write(packet);
+		} catch (IOException e) {
+			mFailure = e;
+		}
+	}
+
+	// Add a packet, writes the chunk of its type when it is full
+	public void write(SerialPacket packet) throws IOException {
+
+		ChunkBuilder chunk = getChunk(packet.type);
+
+		if (chunk == null) {
+			return;
+		}
+
+		long[][] columns = chunk.columns;
+		int row = chunk.rows;
+
+		columns[COLUMN_Timestamp][row] = packet.timestamp;
+		columns[COLUMN_ReceiveTime][row] = packet.receiveTime;
+		columns[COLUMN_Device][row] = packet.deviceId;
+		columns[COLUMN_Counter][row] = packet.counter;
+
+		for (int i = COLUMN_Values; i < columns.length; i++) {
+			columns[i][row] = packet.getValue(i - COLUMN_Values);
+		}
+
+		chunk.rows = row + 1;
+
+		if (chunk.rows == mChunkRows) {
+			writeChunk(chunk);
+		}
+	}
+
+	// Write all partly filled chunks and flush the stream
+	public void flush() throws IOException {
+
+		checkFailure();
+
+		writeChunk(mQuaternionChunk);
+		writeChunk(mSensorsChunk);
+		writeChunk(mBatteryChunk);
+		writeChunk(mThermometerChunk);
+
+		mOut.flush();
+	}
+
+	// Flush and close the stream
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			mOut.close();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+
+		IOException failure = mFailure;
+
+		if (failure != null) {
+			mFailure = null;
+			throw failure;
+		}
+	}
+
+	private ChunkBuilder getChunk(int type) {
+		switch (type) {
+		case SerialDecoder.PACKET_Quaternion: return mQuaternionChunk;
+		case SerialDecoder.PACKET_Sensors: return mSensorsChunk;
+		case SerialDecoder.PACKET_Battery: return mBatteryChunk;
+		case SerialDecoder.PACKET_Thermometer: return mThermometerChunk;
+		default: return null;
+		}
+	}
+
+	// Encode and write a chunk, then empty it
+	private void writeChunk(ChunkBuilder chunk) throws IOException {
+
+		int rows = chunk.rows;
+
+		if (rows == 0) {
+			return;
+		}
+
+		long[][] columns = chunk.columns;
+		int directory = CHUNK_HEADER;
+		int position = directory + columns.length * COLUMN_ENTRY;
+
+		ensureCapacity(position + columns.length * rows * MAX_VARINT);
+
+		byte[] out = mChunk;
+
+		for (int c = 0; c < columns.length; c++) {
+			long[] column = columns[c];
+			long min = column[0];
+			long max = column[0];
+			long previous = 0;
+			int start = position;
+
+			for (int row = 0; row < rows; row++) {
+				long value = column[row];
+
+				if (value < min) {
+					min = value;
+				}
+				if (value > max) {
+					max = value;
+				}
+
+				long delta = value - previous;
+				previous = value;
+
+				// Zig-zag encode so small negative differences stay short
+				long zigzag = (delta << 1) ^ (delta >> 63);
+
+				while ((zigzag & ~0x7FL) != 0) {
+					out[position++] = (byte)((zigzag & 0x7F) | 0x80);
+					zigzag >>>= 7;
+				}
+				out[position++] = (byte)zigzag;
+			}
+
+			int entry = directory + c * COLUMN_ENTRY;
+
+			putInt(out, entry, start);
+			putInt(out, entry + 4, position - start);
+			putLong(out, entry + 8, min);
+			putLong(out, entry + 16, max);
+		}
+
+		putInt(out, 0, MAGIC);
+		putInt(out, 4, position - 8);
+		out[8] = (byte)chunk.type;
+		out[9] = (byte)columns.length;
+		out[10] = 0;
+		out[11] = 0;
+		putInt(out, 12, rows);
+
+		mOut.write(out, 0, position);
+
+		chunk.rows = 0;
+		mChunks++;
+		mBytes += position;
+	}
+
+	private void ensureCapacity(int size) {
+		if (mChunk.length < size) {
+			mChunk = new byte[Math.max(size, mChunk.length * 2)];
+		}
+	}
+
+	private static void putInt(byte[] buffer, int index, int value) {
+		buffer[index] = (byte)(value >> 24);
+		buffer[index + 1] = (byte)(value >> 16);
+		buffer[index + 2] = (byte)(value >> 8);
+		buffer[index + 3] = (byte)value;
+	}
+
+	private static void putLong(byte[] buffer, int index, long value) {
+		putInt(buffer, index, (int)(value >>> 32));
+		putInt(buffer, index + 4, (int)value);
+	}
+}
@@ -0,0 +1,81 @@
+package rug.xio.xbimudemo;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * One x-BIMU connection managed by a DeviceSessionManager: the Bluetooth
+ * service with its own reader thread, the decoder state of the device, and the
+ * ring buffer that holds decoded packets until they are merged.
+ */
+public class DeviceSession {
+
+	private final int mDeviceId;
+	private final BluetoothDevice mDevice;
+	private final SerialDecoder mDecoder;
+	private final SampleRingBuffer mBuffer;
+	private final BluetoothSerialService mService;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *            The UI Activity Context
+	 * @param handler
+	 *            A Handler to send connection state messages to, shared by all sessions
+	 * @param deviceId
+	 *            Identifier set on every packet and state message of this session
+	 * @param device
+	 *            The BluetoothDevice to connect to
+	 * @param bufferCapacity
+	 *            Number of decoded packets buffered for merging
+	 */
+	DeviceSession(Context context, Handler handler, int deviceId, BluetoothDevice device, int bufferCapacity) {
+
+		mDeviceId = deviceId;
+		mDevice = device;
+
+		mDecoder = new SerialDecoder();
+		mDecoder.setDeviceId(deviceId);
+
+		mBuffer = new SampleRingBuffer(bufferCapacity, SampleRingBuffer.OVERFLOW_DropOldest);
+		mDecoder.getBus().subscribe(mBuffer, SerialPacketBus.MASK_All);
+
+		mService = new BluetoothSerialService(context, handler, mDecoder, mDecoder.getBus());
+		mService.setDeviceId(deviceId);
+	}
+
+	public int getDeviceId() {
+		return mDeviceId;
+	}
+
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	public SerialDecoder getDecoder() {
+		return mDecoder;
+	}
+
+	public SampleRingBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	public BluetoothSerialService getService() {
+		return mService;
+	}
+
+	// Connection state, one of the BluetoothSerialService.STATE_ constants
+	public int getState() {
+		return mService.getState();
+	}
+
+	void connect() {
+		mService.connect(mDevice);
+	}
+
+	void stop() {
+		mService.stop();
+	}
+}
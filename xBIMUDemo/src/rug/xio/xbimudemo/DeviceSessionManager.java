@@ -0,0 +1,133 @@
+package rug.xio.xbimudemo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Manages concurrent connections to several x-BIMUs.
+ * 
+ * Every device gets its own DeviceSession with a reader thread, decoder and
+ * ring buffer. Decoded packets carry the device identifier and are merged into
+ * a single stream ordered by receive time, delivered to one listener on the
+ * merge thread. Connection state changes for all devices go to one Handler,
+ * with the device identifier in arg2; decoded packets never go through it.
+ */
+public class DeviceSessionManager {
+
+	// Debugging
+	private static final String TAG = "DeviceSessionManager";
+
+	// Default number of decoded packets buffered per device
+	public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+	private final Context mContext;
+	private final Handler mHandler;
+	private final int mBufferCapacity;
+	private final MergedSampleStream mMergedStream;
+
+	private final List<DeviceSession> mSessions = new ArrayList<DeviceSession>();
+	private int mNextDeviceId = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *            The UI Activity Context
+	 * @param handler
+	 *            A Handler to send connection state messages to
+	 * @param listener
+	 *            Listener receiving the merged packets of all devices, called on
+	 *            the merge thread
+	 */
+	public DeviceSessionManager(Context context, Handler handler, SerialPacketListener listener) {
+		this(context, handler, listener, DEFAULT_BUFFER_CAPACITY, MergedSampleStream.DEFAULT_HOLDBACK_NANOS);
+	}
+
+	public DeviceSessionManager(Context context, Handler handler, SerialPacketListener listener, int bufferCapacity, long holdbackNanos) {
+
+		mContext = context;
+		mHandler = handler;
+		mBufferCapacity = bufferCapacity;
+
+		mMergedStream = new MergedSampleStream(listener, holdbackNanos);
+		mMergedStream.start();
+	}
+
+	/**
+	 * Add a device and start connecting to it.
+	 * 
+	 * @param device
+	 *            The BluetoothDevice to connect
+	 * @return The session of the device
+	 */
+	public synchronized DeviceSession connect(BluetoothDevice device) {
+		Log.d(TAG, "connect to: " + device);
+
+		DeviceSession session = new DeviceSession(mContext, mHandler, mNextDeviceId++, device, mBufferCapacity);
+
+		mSessions.add(session);
+		mMergedStream.addSource(session.getBuffer());
+
+		session.connect();
+
+		return session;
+	}
+
+	/**
+	 * Disconnect a device and remove its session.
+	 * 
+	 * @param deviceId
+	 *            Identifier of the device
+	 */
+	public synchronized void disconnect(int deviceId) {
+
+		DeviceSession session = getSession(deviceId);
+
+		if (session == null) {
+			return;
+		}
+
+		session.stop();
+
+		mMergedStream.removeSource(session.getBuffer());
+		mSessions.remove(session);
+	}
+
+	// Get a session by device identifier, null if there is none
+	public synchronized DeviceSession getSession(int deviceId) {
+
+		for (DeviceSession session : mSessions) {
+			if (session.getDeviceId() == deviceId) {
+				return session;
+			}
+		}
+
+		return null;
+	}
+
+	// Get a copy of the list of sessions
+	public synchronized List<DeviceSession> getSessions() {
+		return new ArrayList<DeviceSession>(mSessions);
+	}
+
+	/**
+	 * Disconnect all devices and stop the merge thread. The manager cannot be
+	 * used afterwards.
+	 */
+	public synchronized void stop() {
+		Log.d(TAG, "stop");
+
+		for (DeviceSession session : mSessions) {
+			session.stop();
+			mMergedStream.removeSource(session.getBuffer());
+		}
+
+		mSessions.clear();
+		mMergedStream.shutdown();
+	}
+}
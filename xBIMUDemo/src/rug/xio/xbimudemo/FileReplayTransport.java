@@ -0,0 +1,170 @@
+package rug.xio.xbimudemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// SerialTransport that replays a file of raw received bytes, e.g. a capture of
+// the x-BIMU data stream.
+//
+// Reads can be limited in size to mimic the chunks delivered by a Bluetooth
+// socket and paced to a byte rate to mimic the link speed; by default the file
+// is read as fast as possible. Writes are discarded.
+public class FileReplayTransport implements SerialTransport {
+
+	private final File mFile;
+	private final boolean mLoop;
+
+	// Maximum bytes returned per read
+	private volatile int mReadSize = Integer.MAX_VALUE;
+
+	// Bytes per second to pace reads to, 0 for as fast as possible
+	private volatile long mByteRate = 0;
+
+	private volatile RandomAccessFile mInput;
+	private volatile int mState = STATE_CLOSED;
+
+	// Pacing reference, only used by the reader thread
+	private long mStartTime;
+	private long mBytesRead;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *            File to replay
+	 * @param loop
+	 *            true to start again from the beginning at the end of the file,
+	 *            false to end the stream
+	 */
+	public FileReplayTransport(File file, boolean loop) {
+		mFile = file;
+		mLoop = loop;
+	}
+
+	// Limit the number of bytes returned per read
+	public void setReadSize(int readSize) {
+		if (readSize < 1) {
+			throw new IllegalArgumentException("Read size must be at least 1");
+		}
+
+		mReadSize = readSize;
+	}
+
+	// Pace reads to a number of bytes per second, 0 for as fast as possible
+	public void setByteRate(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Byte rate must not be negative");
+		}
+
+		mByteRate = bytesPerSecond;
+	}
+
+	@Override
+	public void open() throws IOException {
+
+		mState = STATE_OPENING;
+		mInput = new RandomAccessFile(mFile, "r");
+		mStartTime = System.nanoTime();
+		mBytesRead = 0;
+		mState = STATE_OPEN;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		RandomAccessFile input = mInput;
+
+		if (input == null || mState != STATE_OPEN) {
+			throw new IOException("Transport not open");
+		}
+
+		pace();
+
+		int bytes = input.read(buffer, offset, Math.min(length, mReadSize));
+
+		if (bytes < 0 && mLoop && input.length() > 0) {
+			input.seek(0);
+			bytes = input.read(buffer, offset, Math.min(length, mReadSize));
+		}
+
+		if (bytes > 0) {
+			mBytesRead += bytes;
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public int available() throws IOException {
+
+		RandomAccessFile input = mInput;
+
+		if (input == null || mState != STATE_OPEN) {
+			throw new IOException("Transport not open");
+		}
+
+		long available = input.length() - input.getFilePointer();
+		long byteRate = mByteRate;
+
+		// Only the bytes already due at the configured byte rate
+		if (byteRate != 0) {
+			long due = (System.nanoTime() - mStartTime) * byteRate / 1000000000L - mBytesRead;
+
+			available = mLoop ? Math.max(0, due) : Math.min(available, Math.max(0, due));
+		}
+
+		return (int)Math.min(available, Integer.MAX_VALUE);
+	}
+
+	// Wait until the bytes read so far are due at the configured byte rate
+	private void pace() throws IOException {
+
+		long byteRate = mByteRate;
+
+		if (byteRate == 0) {
+			return;
+		}
+
+		long due = mStartTime + mBytesRead * 1000000000L / byteRate;
+		long wait = due - System.nanoTime();
+
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+
+		if (mState != STATE_OPEN) {
+			throw new IOException("Transport not open");
+		}
+	}
+
+	@Override
+	public void close() {
+
+		mState = STATE_CLOSED;
+
+		RandomAccessFile input = mInput;
+
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				// nothing more can be done, the file is unusable either way
+			}
+		}
+	}
+
+	@Override
+	public int getState() {
+		return mState;
+	}
+}
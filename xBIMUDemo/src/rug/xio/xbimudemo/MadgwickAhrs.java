@@ -0,0 +1,325 @@
+package rug.xio.xbimudemo;
+
+// Madgwick gradient descent orientation filter (AHRS).
+//
+// Fuses the gyroscope, accelerometer and magnetometer values of sensor packets
+// into an orientation quaternion, one sample at a time. The filter state is a
+// handful of floats and an update allocates nothing, so one instance per
+// device can run on the thread that receives its packets. Falls back to the
+// gyroscope and accelerometer (IMU) update when the magnetometer reads zero.
+//
+// Not thread-safe; updates and reads of one instance must be on one thread.
+//
+// S. O. H. Madgwick, "An efficient orientation filter for inertial and
+// inertial/magnetic sensor arrays", 2010.
+public class MadgwickAhrs extends SerialPacketAdapter {
+
+	// Number of values per sample in the batch API, in SensorsPacket order
+	public static final int SAMPLE_STRIDE = 9;
+
+	// Default algorithm gain
+	public static final float DEFAULT_BETA = 0.1f;
+
+	private float mSamplePeriod;
+	private float mBeta;
+
+	// Orientation quaternion, earth frame relative to sensor frame as in the x-BIMU quaternion packet
+	private float mQ0 = 1f;
+	private float mQ1 = 0f;
+	private float mQ2 = 0f;
+	private float mQ3 = 0f;
+
+	private long mUpdates = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param sampleRate
+	 *            Sensor packet rate in Hz, as configured on the x-BIMU
+	 */
+	public MadgwickAhrs(float sampleRate) {
+		this(sampleRate, DEFAULT_BETA);
+	}
+
+	public MadgwickAhrs(float sampleRate, float beta) {
+		setSampleRate(sampleRate);
+		mBeta = beta;
+	}
+
+	public void setSampleRate(float sampleRate) {
+		if (!(sampleRate > 0)) {
+			throw new IllegalArgumentException("Sample rate must be positive");
+		}
+
+		mSamplePeriod = 1f / sampleRate;
+	}
+
+	// Algorithm gain, higher converges faster but is noisier
+	public void setBeta(float beta) {
+		mBeta = beta;
+	}
+
+	// Reset to the identity orientation
+	public void reset() {
+		mQ0 = 1f;
+		mQ1 = 0f;
+		mQ2 = 0f;
+		mQ3 = 0f;
+		mUpdates = 0;
+	}
+
+	public float getQ0() {
+		return mQ0;
+	}
+
+	public float getQ1() {
+		return mQ1;
+	}
+
+	public float getQ2() {
+		return mQ2;
+	}
+
+	public float getQ3() {
+		return mQ3;
+	}
+
+	// Copy the quaternion into out[offset] to out[offset + 3]
+	public void getQuaternion(float[] out, int offset) {
+		out[offset] = mQ0;
+		out[offset + 1] = mQ1;
+		out[offset + 2] = mQ2;
+		out[offset + 3] = mQ3;
+	}
+
+	// Number of samples processed since construction or reset
+	public long getUpdateCount() {
+		return mUpdates;
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+		update(packet);
+	}
+
+	// Update with the values of a sensor packet
+	public void update(SensorsPacket packet) {
+		update(packet.gyroscopeX * XbimuUnits.GYROSCOPE_RADIANS,
+				packet.gyroscopeY * XbimuUnits.GYROSCOPE_RADIANS,
+				packet.gyroscopeZ * XbimuUnits.GYROSCOPE_RADIANS,
+				packet.accelerometerX, packet.accelerometerY, packet.accelerometerZ,
+				packet.magnetometerX, packet.magnetometerY, packet.magnetometerZ);
+	}
+
+	/**
+	 * Update with a batch of raw sensor packet values.
+	 * 
+	 * @param sensors
+	 *            Packet values, SAMPLE_STRIDE per sample in SensorsPacket order
+	 *            (gyroscope, accelerometer, magnetometer; X, Y, Z)
+	 * @param offset
+	 *            Index of the first value of the first sample
+	 * @param count
+	 *            Number of samples
+	 * @param quaternions
+	 *            If not null, receives the quaternion after each sample, 4 per
+	 *            sample starting at index 0
+	 */
+	public void update(int[] sensors, int offset, int count, float[] quaternions) {
+
+		int index = offset;
+
+		for (int i = 0; i < count; i++) {
+			update(sensors[index] * XbimuUnits.GYROSCOPE_RADIANS,
+					sensors[index + 1] * XbimuUnits.GYROSCOPE_RADIANS,
+					sensors[index + 2] * XbimuUnits.GYROSCOPE_RADIANS,
+					sensors[index + 3], sensors[index + 4], sensors[index + 5],
+					sensors[index + 6], sensors[index + 7], sensors[index + 8]);
+
+			if (quaternions != null) {
+				getQuaternion(quaternions, i * 4);
+			}
+
+			index += SAMPLE_STRIDE;
+		}
+	}
+
+	/**
+	 * Update with one sample. The accelerometer and magnetometer are
+	 * normalised, so may be in any unit.
+	 * 
+	 * @param gx
+	 *            Gyroscope X, radians per second
+	 */
+	public void update(float gx, float gy, float gz, float ax, float ay, float az, float mx, float my, float mz) {
+
+		if (mx == 0f && my == 0f && mz == 0f) {
+			update(gx, gy, gz, ax, ay, az);
+			return;
+		}
+
+		float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+		float recipNorm;
+
+		// Rate of change of quaternion from gyroscope
+		float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+		float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+		float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+		float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+		// Compute feedback only if accelerometer measurement valid (avoids NaN in accelerometer normalisation)
+		if (!(ax == 0f && ay == 0f && az == 0f)) {
+
+			// Normalise accelerometer measurement
+			recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+			ax *= recipNorm;
+			ay *= recipNorm;
+			az *= recipNorm;
+
+			// Normalise magnetometer measurement
+			recipNorm = invSqrt(mx * mx + my * my + mz * mz);
+			mx *= recipNorm;
+			my *= recipNorm;
+			mz *= recipNorm;
+
+			// Auxiliary variables to avoid repeated arithmetic
+			float _2q0mx = 2f * q0 * mx;
+			float _2q0my = 2f * q0 * my;
+			float _2q0mz = 2f * q0 * mz;
+			float _2q1mx = 2f * q1 * mx;
+			float _2q0 = 2f * q0;
+			float _2q1 = 2f * q1;
+			float _2q2 = 2f * q2;
+			float _2q3 = 2f * q3;
+			float _2q0q2 = 2f * q0 * q2;
+			float _2q2q3 = 2f * q2 * q3;
+			float q0q0 = q0 * q0;
+			float q0q1 = q0 * q1;
+			float q0q2 = q0 * q2;
+			float q0q3 = q0 * q3;
+			float q1q1 = q1 * q1;
+			float q1q2 = q1 * q2;
+			float q1q3 = q1 * q3;
+			float q2q2 = q2 * q2;
+			float q2q3 = q2 * q3;
+			float q3q3 = q3 * q3;
+
+			// Reference direction of Earth's magnetic field
+			float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2 + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+			float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+			float _2bx = (float)Math.sqrt(hx * hx + hy * hy);
+			float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1 + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+			float _4bx = 2f * _2bx;
+			float _4bz = 2f * _2bz;
+
+			// Gradient descent algorithm corrective step
+			float s0 = -_2q2 * (2f * q1q3 - _2q0q2 - ax) + _2q1 * (2f * q0q1 + _2q2q3 - ay) - _2bz * q2 * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (-_2bx * q3 + _2bz * q1) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + _2bx * q2 * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+			float s1 = _2q3 * (2f * q1q3 - _2q0q2 - ax) + _2q0 * (2f * q0q1 + _2q2q3 - ay) - 4f * q1 * (1 - 2f * q1q1 - 2f * q2q2 - az) + _2bz * q3 * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (_2bx * q2 + _2bz * q0) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + (_2bx * q3 - _4bz * q1) * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+			float s2 = -_2q0 * (2f * q1q3 - _2q0q2 - ax) + _2q3 * (2f * q0q1 + _2q2q3 - ay) - 4f * q2 * (1 - 2f * q1q1 - 2f * q2q2 - az) + (-_4bx * q2 - _2bz * q0) * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (_2bx * q1 + _2bz * q3) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + (_2bx * q0 - _4bz * q2) * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+			float s3 = _2q1 * (2f * q1q3 - _2q0q2 - ax) + _2q2 * (2f * q0q1 + _2q2q3 - ay) + (-_4bx * q3 + _2bz * q1) * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (-_2bx * q0 + _2bz * q2) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + _2bx * q1 * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+
+			// Normalise step magnitude, there is no step if the estimate already fits the measurement
+			float norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+
+			if (norm > 0f) {
+				recipNorm = invSqrt(norm);
+
+				// Apply feedback step
+				qDot1 -= mBeta * s0 * recipNorm;
+				qDot2 -= mBeta * s1 * recipNorm;
+				qDot3 -= mBeta * s2 * recipNorm;
+				qDot4 -= mBeta * s3 * recipNorm;
+			}
+		}
+
+		integrate(q0, q1, q2, q3, qDot1, qDot2, qDot3, qDot4);
+	}
+
+	/**
+	 * Update with one sample without magnetometer (IMU).
+	 * 
+	 * @param gx
+	 *            Gyroscope X, radians per second
+	 */
+	public void update(float gx, float gy, float gz, float ax, float ay, float az) {
+
+		float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+		float recipNorm;
+
+		// Rate of change of quaternion from gyroscope
+		float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+		float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+		float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+		float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+		// Compute feedback only if accelerometer measurement valid (avoids NaN in accelerometer normalisation)
+		if (!(ax == 0f && ay == 0f && az == 0f)) {
+
+			// Normalise accelerometer measurement
+			recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+			ax *= recipNorm;
+			ay *= recipNorm;
+			az *= recipNorm;
+
+			// Auxiliary variables to avoid repeated arithmetic
+			float _2q0 = 2f * q0;
+			float _2q1 = 2f * q1;
+			float _2q2 = 2f * q2;
+			float _2q3 = 2f * q3;
+			float _4q0 = 4f * q0;
+			float _4q1 = 4f * q1;
+			float _4q2 = 4f * q2;
+			float _8q1 = 8f * q1;
+			float _8q2 = 8f * q2;
+			float q0q0 = q0 * q0;
+			float q1q1 = q1 * q1;
+			float q2q2 = q2 * q2;
+			float q3q3 = q3 * q3;
+
+			// Gradient descent algorithm corrective step
+			float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+			float s1 = _4q1 * q3q3 - _2q3 * ax + 4f * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+			float s2 = 4f * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+			float s3 = 4f * q1q1 * q3 - _2q1 * ax + 4f * q2q2 * q3 - _2q2 * ay;
+
+			// Normalise step magnitude, there is no step if the estimate already fits the measurement
+			float norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+
+			if (norm > 0f) {
+				recipNorm = invSqrt(norm);
+
+				// Apply feedback step
+				qDot1 -= mBeta * s0 * recipNorm;
+				qDot2 -= mBeta * s1 * recipNorm;
+				qDot3 -= mBeta * s2 * recipNorm;
+				qDot4 -= mBeta * s3 * recipNorm;
+			}
+		}
+
+		integrate(q0, q1, q2, q3, qDot1, qDot2, qDot3, qDot4);
+	}
+
+	// Integrate rate of change of quaternion and normalise
+	private void integrate(float q0, float q1, float q2, float q3, float qDot1, float qDot2, float qDot3, float qDot4) {
+
+		float dt = mSamplePeriod;
+
+		q0 += qDot1 * dt;
+		q1 += qDot2 * dt;
+		q2 += qDot3 * dt;
+		q3 += qDot4 * dt;
+
+		float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+
+		mQ0 = q0 * recipNorm;
+		mQ1 = q1 * recipNorm;
+		mQ2 = q2 * recipNorm;
+		mQ3 = q3 * recipNorm;
+
+		mUpdates++;
+	}
+
+	private static float invSqrt(float x) {
+		return (float)(1.0 / Math.sqrt(x));
+	}
+}
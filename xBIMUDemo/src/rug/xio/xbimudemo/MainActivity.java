@@ -18,7 +18,7 @@ import android.view.Window;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class MainActivity extends Activity implements SerialMessageHandler, SerialPacketHandler {
+public class MainActivity extends Activity implements SerialMessageHandler {
 
 	public static final String LOG_TAG = "xBIMUDemo";
 
@@ -38,6 +38,13 @@ public class MainActivity extends Activity implements SerialMessageHandler, Seri
 	private static TextView mTitle;	
 	
 	private static SerialDecoder mSerialDecoder;
+	
+	// Number of decoded packets buffered between the serial decoder and the UI
+	private static final int SAMPLE_BUFFER_CAPACITY = 1024;
+	
+	private static SerialPacketBus.Subscription mUiSubscription;
+	
+	private static UiUpdatePublisher mUiPublisher;
 
 	private static TextView mBatteryLevel;
 	private static TextView mGyroscope;
@@ -79,15 +86,17 @@ public class MainActivity extends Activity implements SerialMessageHandler, Seri
     	// set up the serial decoder
         mSerialDecoder = new SerialDecoder();         		
         
-        mSerialDecoder.OKReceived = this;
-        mSerialDecoder.ErrorReceived = this; 
-        mSerialDecoder.QuaternionReceived = this; 
-        mSerialDecoder.BatteryReceived = this;
-        mSerialDecoder.SensorsReceived = this; 
-        mSerialDecoder.ThermometerReceived = this;
+        mSerialDecoder.getBus().addMessageHandler(this);
+        
+        // the UI shows the latest packet of each type, updated at most once per display frame
+        mUiPublisher = new UiUpdatePublisher(mHandlerSerial, mUiPacketListener, UiUpdatePublisher.DEFAULT_RATE);
+        
+        // decoded packets are queued and delivered on a dispatcher thread so the UI can never stall the read thread
+        mUiSubscription = mSerialDecoder.getBus().subscribe(mUiPublisher, SerialPacketBus.MASK_All, 
+        		SAMPLE_BUFFER_CAPACITY, SampleRingBuffer.OVERFLOW_DropOldest);
         
         // create the serial service, assign the bluetooth state handler and the serial decoder as the SerialConsumer
-		mSerialService = new BluetoothSerialService(this, mHandlerBT, mSerialDecoder);
+		mSerialService = new BluetoothSerialService(this, mHandlerBT, mSerialDecoder, mSerialDecoder.getBus());
 	}
 	
 
@@ -103,53 +112,39 @@ public class MainActivity extends Activity implements SerialMessageHandler, Seri
 
 		@Override
 		public void handleMessage(Message msg) {
-			int[] values; 
-			
 			switch (msg.what) {
 			case SerialDecoder.MESSAGE_OK:	
 				break;
 			case SerialDecoder.MESSAGE_Error:				
 				break;
-			case SerialDecoder.PACKET_Battery:	
-				values = (int[])msg.obj;
-				
-				mBatteryLevel.setText(Integer.toString(values[0]));	// setText(int) does not do what you think!
-				
-				break;
-			case SerialDecoder.PACKET_Quaternion:
-				values = (int[])msg.obj;
-				
-				mQuaternion.setText(values[0] + ", " + values[1] + ", " + values[2] + ", " + values[3]);
-
-				break;
-			case SerialDecoder.PACKET_Sensors:
-				values = (int[])msg.obj;
-				
-				mGyroscope.setText(values[0] + ", " + values[1] + ", " + values[2]);
-				mAccelerometer.setText(values[3] + ", " + values[4] + ", " + values[5]);
-				mMagnetometer.setText(values[6] + ", " + values[7] + ", " + values[8]);
-
-				break;
-			case SerialDecoder.PACKET_Thermometer:
-				
-				break;			
 			}
 		}
 	};
 
-	
-	@Override
-	public void onSerialPacket(int type, int length, int[] args) {
-		
-		// Send the serial packet to the UI Thread
-		Message msg = mHandlerSerial.obtainMessage(type);
-		
-		msg.arg1 = length; 
-		
-		msg.obj = args;
+	// Receives the latest decoded packets on the UI thread
+	private final SerialPacketListener mUiPacketListener = new SerialPacketListener() {
 
-		mHandlerSerial.sendMessage(msg);		
-	}
+		@Override
+		public void onBattery(BatteryPacket packet) {
+			mBatteryLevel.setText(Integer.toString(packet.voltage));	// setText(int) does not do what you think!
+		}
+
+		@Override
+		public void onQuaternion(QuaternionPacket packet) {
+			mQuaternion.setText(packet.element0 + ", " + packet.element1 + ", " + packet.element2 + ", " + packet.element3);
+		}
+
+		@Override
+		public void onSensors(SensorsPacket packet) {
+			mGyroscope.setText(packet.gyroscopeX + ", " + packet.gyroscopeY + ", " + packet.gyroscopeZ);
+			mAccelerometer.setText(packet.accelerometerX + ", " + packet.accelerometerY + ", " + packet.accelerometerZ);
+			mMagnetometer.setText(packet.magnetometerX + ", " + packet.magnetometerY + ", " + packet.magnetometerZ);
+		}
+
+		@Override
+		public void onThermometer(ThermometerPacket packet) {
+		}
+	};
 
 
 	@Override
@@ -235,6 +230,14 @@ public class MainActivity extends Activity implements SerialMessageHandler, Seri
         if (mSerialService != null) { 
         	mSerialService.stop();
         }        
+        
+        if (mUiSubscription != null) {
+        	mUiSubscription.cancel();
+        }
+        
+        if (mUiPublisher != null) {
+        	mUiPublisher.cancel();
+        }
 	}
 
 	@Override
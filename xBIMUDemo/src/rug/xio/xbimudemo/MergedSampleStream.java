@@ -0,0 +1,137 @@
+package rug.xio.xbimudemo;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Merges the packets of several SampleRingBuffers into one stream ordered by
+// timestamp, the estimated sample time.
+//
+// Each buffer is filled by its own read thread. This thread repeatedly delivers
+// the oldest packet at the head of any buffer. A packet is delivered once every
+// source has a packet to compare against, or once it is older than the holdback
+// time, so a quiet or disconnected device delays the stream by at most the
+// holdback time. With OVERFLOW_DropOldest sources a producer may drop the head
+// packet between the comparison and the poll, so the order is only approximate
+// while a source overflows.
+public class MergedSampleStream extends Thread {
+
+	// Default maximum time a packet is held back waiting for other sources
+	public static final long DEFAULT_HOLDBACK_NANOS = 20000000;
+
+	// Maximum time to wait for packets before checking for shutdown
+	private static final long AWAIT_NANOS = 10000000;
+
+	private final SerialPacketListener mListener;
+	private final long mHoldbackNanos;
+
+	// Sources, replaced as a whole when sources are added or removed
+	private volatile SampleRingBuffer[] mSources = new SampleRingBuffer[0];
+
+	private volatile boolean mRunning = true;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param listener
+	 *            Listener receiving the merged stream on this thread
+	 * @param holdbackNanos
+	 *            Maximum time a packet is held back waiting for other sources
+	 */
+	public MergedSampleStream(SerialPacketListener listener, long holdbackNanos) {
+		super("MergedSampleStream");
+
+		mListener = listener;
+		mHoldbackNanos = holdbackNanos;
+
+		setDaemon(true);
+	}
+
+	// Add a source, its consumer side is owned by this stream from now on
+	public synchronized void addSource(SampleRingBuffer source) {
+
+		SampleRingBuffer[] sources = new SampleRingBuffer[mSources.length + 1];
+
+		System.arraycopy(mSources, 0, sources, 0, mSources.length);
+		sources[mSources.length] = source;
+
+		mSources = sources;
+	}
+
+	// Remove a source, packets still in it are not delivered
+	public synchronized void removeSource(SampleRingBuffer source) {
+
+		SampleRingBuffer[] sources = mSources;
+
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] == source) {
+				SampleRingBuffer[] remaining = new SampleRingBuffer[sources.length - 1];
+
+				System.arraycopy(sources, 0, remaining, 0, i);
+				System.arraycopy(sources, i + 1, remaining, i, sources.length - i - 1);
+
+				mSources = remaining;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+
+		while (mRunning) {
+			SampleRingBuffer[] sources = mSources;
+			SampleRingBuffer oldest = null;
+			long oldestTimestamp = 0;
+			boolean allReady = true;
+
+			for (SampleRingBuffer source : sources) {
+				if (source.isEmpty()) {
+					allReady = false;
+					continue;
+				}
+
+				long timestamp = source.peekTimestamp();
+
+				if (oldest == null || timestamp - oldestTimestamp < 0) {
+					oldest = source;
+					oldestTimestamp = timestamp;
+				}
+			}
+
+			if (oldest != null) {
+				long waited = System.nanoTime() - oldestTimestamp;
+
+				if (allReady || waited >= mHoldbackNanos) {
+					oldest.poll(mListener);
+					continue;
+				}
+
+				await(sources, mHoldbackNanos - waited);
+			}
+			else {
+				await(sources, AWAIT_NANOS);
+			}
+		}
+	}
+
+	// Wait for a packet on any source
+	private void await(SampleRingBuffer[] sources, long timeoutNanos) {
+
+		Thread thread = Thread.currentThread();
+
+		for (SampleRingBuffer source : sources) {
+			source.setWaiter(thread);
+		}
+
+		LockSupport.parkNanos(this, Math.min(timeoutNanos, AWAIT_NANOS));
+
+		for (SampleRingBuffer source : sources) {
+			source.setWaiter(null);
+		}
+	}
+
+	// Stop delivering packets
+	public void shutdown() {
+		mRunning = false;
+		interrupt();
+	}
+}
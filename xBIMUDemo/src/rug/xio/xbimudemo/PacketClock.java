@@ -0,0 +1,240 @@
+package rug.xio.xbimudemo;
+
+// Estimates the sample time of each packet of one packet type from the receive
+// times of the buffers it arrived in, and the drift between the device clock
+// and the host clock.
+//
+// All packets of a received buffer share one receive time, and that time is
+// late by the variable Bluetooth and read latency. The x-BIMU sends packets of
+// a type at a fixed rate with an 8-bit counter, so the unwrapped counter is a
+// sample index on the device clock. A line, time = offset + period * index, is
+// fitted to the (index, receive time) pairs by exponentially weighted linear
+// regression, updated in O(1) per packet with centred sums. The line is then
+// moved down to the earliest arrivals (the smallest residual, slowly released)
+// so the timestamps track the sample times rather than the mean latency. The
+// fitted period against the nominal period, if one is set, is the clock drift.
+//
+// Until enough buffers have been seen the receive time is used as is.
+//
+// Like PacketSequenceTracker, the estimates are updated by the decoding thread
+// and published once per received buffer; the getters may be called from any
+// thread.
+public class PacketClock {
+
+	// Default number of packets in the regression time constant
+	public static final int DEFAULT_WINDOW = 4096;
+
+	// Minimum number of distinct receive times before the fit is used
+	private static final int LOCK_BUFFERS = 4;
+
+	// Fraction of the period the earliest arrival offset is released by per packet
+	private static final double RESIDUAL_RELEASE = 0.001;
+
+	// Forgetting factor of the regression
+	private final double mLambda;
+
+	// Nominal period in nanoseconds, 0 if unknown, may be set from any thread
+	private volatile double mNominalPeriod = 0;
+
+	// Last packet counter, -1 if the clock is not started
+	private int mLastCounter = -1;
+
+	// Unwrapped counter of the last packet, relative to the first packet
+	private long mIndex;
+
+	// Receive time of the first packet, times are relative to it
+	private long mOrigin;
+
+	// Last receive time and number of distinct receive times
+	private long mLastReceiveTime;
+	private int mBuffers;
+
+	// Weighted regression state: weight total, means and centred sums
+	private double mWeight;
+	private double mMeanX;
+	private double mMeanY;
+	private double mSxx;
+	private double mSxy;
+
+	// Smallest residual to the fitted line, the earliest arrival
+	private double mMinResidual;
+
+	// Last timestamp given, timestamps never go backwards
+	private long mLastTimestamp;
+
+	// Published results
+	private volatile boolean mPublishedLocked;
+	private volatile double mPublishedPeriod;
+	private volatile double mPublishedDrift = Double.NaN;
+	private volatile double mPublishedLatency;
+
+	public PacketClock() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param window
+	 *            Time constant of the regression in packets
+	 */
+	public PacketClock(int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("Window must be at least 2 packets");
+		}
+
+		mLambda = 1.0 - 1.0 / window;
+	}
+
+	/**
+	 * Set the rate the x-BIMU is configured to send packets of this type at.
+	 * Only used for getDrift, which is NaN until a rate is set; the timestamps
+	 * come from the fitted period alone. The rates are configured on the device,
+	 * so only a caller that knows them can set them.
+	 * 
+	 * @param rate
+	 *            Packets per second, 0 if unknown
+	 */
+	public void setNominalRate(double rate) {
+		mNominalPeriod = rate > 0 ? 1e9 / rate : 0;
+	}
+
+	// Start again from the next packet, e.g. after a reconnection
+	public void restart() {
+		mLastCounter = -1;
+	}
+
+	/**
+	 * Estimate the sample time of a packet.
+	 * 
+	 * @param counter
+	 *            Packet counter (0 - 255)
+	 * @param receiveTime
+	 *            Receive time of the buffer the packet completed in (System.nanoTime)
+	 * @return Estimated sample time on the System.nanoTime clock
+	 */
+	long onPacket(int counter, long receiveTime) {
+
+		if (mLastCounter < 0) {
+			start(counter, receiveTime);
+			return receiveTime;
+		}
+
+		mIndex += (counter - mLastCounter) & 0xFF;
+		mLastCounter = counter;
+
+		if (receiveTime != mLastReceiveTime) {
+			mLastReceiveTime = receiveTime;
+			mBuffers++;
+		}
+
+		double x = mIndex;
+		double y = receiveTime - mOrigin;
+
+		// A gap of a whole counter cycle or more cannot be unwrapped, start again
+		if (hasFit() && Math.abs(y - fit(x)) > 128 * fittedPeriod()) {
+			start(counter, receiveTime);
+			return receiveTime;
+		}
+
+		// Exponentially weighted update of the centred sums
+		mWeight = mLambda * mWeight + 1.0;
+
+		double dx = x - mMeanX;
+		double alpha = 1.0 / mWeight;
+
+		mMeanX += alpha * dx;
+		mMeanY += alpha * (y - mMeanY);
+		mSxx = mLambda * mSxx + dx * (x - mMeanX);
+		mSxy = mLambda * mSxy + dx * (y - mMeanY);
+
+		if (!hasFit()) {
+			return receiveTime;
+		}
+
+		// Follow the earliest arrivals, releasing slowly so a changing latency is tracked
+		double residual = y - fit(x);
+
+		mMinResidual = Math.min(residual, mMinResidual + RESIDUAL_RELEASE * fittedPeriod());
+
+		long timestamp = mOrigin + (long)(fit(x) + mMinResidual);
+
+		if (timestamp <= mLastTimestamp) {
+			timestamp = mLastTimestamp + 1;
+		}
+
+		mLastTimestamp = timestamp;
+
+		return timestamp;
+	}
+
+	private void start(int counter, long receiveTime) {
+		mLastCounter = counter;
+		mIndex = 0;
+		mOrigin = receiveTime;
+		mLastReceiveTime = receiveTime;
+		mBuffers = 1;
+		mWeight = 1.0;
+		mMeanX = 0;
+		mMeanY = 0;
+		mSxx = 0;
+		mSxy = 0;
+		mMinResidual = 0;
+		mLastTimestamp = receiveTime;
+	}
+
+	private boolean hasFit() {
+		return mLastCounter >= 0 && mBuffers >= LOCK_BUFFERS && mSxx > 0;
+	}
+
+	// Fitted period in nanoseconds, the nominal period (or 0) if there are not enough packets for a fit
+	private double fittedPeriod() {
+		return mSxx > 0 ? mSxy / mSxx : mNominalPeriod;
+	}
+
+	// Fitted time of a sample index, relative to the origin
+	private double fit(double x) {
+		return mMeanY + fittedPeriod() * (x - mMeanX);
+	}
+
+	// Make the estimates available to other threads
+	void publish() {
+
+		boolean locked = hasFit();
+
+		mPublishedLocked = locked;
+
+		if (locked) {
+			double period = fittedPeriod();
+
+			mPublishedPeriod = period;
+			mPublishedDrift = mNominalPeriod > 0 ? (period / mNominalPeriod - 1.0) * 1e6 : Double.NaN;
+			mPublishedLatency = -mMinResidual;
+		}
+	}
+
+	// true once timestamps are estimated rather than copied from the receive time
+	public boolean isLocked() {
+		return mPublishedLocked;
+	}
+
+	// Estimated packet period on the host clock, in nanoseconds
+	public double getPeriod() {
+		return mPublishedPeriod;
+	}
+
+	// Estimated packet rate on the host clock, in packets per second
+	public double getRate() {
+		return mPublishedPeriod > 0 ? 1e9 / mPublishedPeriod : 0;
+	}
+
+	// Device clock drift against the nominal rate in parts per million, NaN if the nominal rate is unknown
+	public double getDrift() {
+		return mPublishedDrift;
+	}
+
+	// Mean receive latency above the earliest arrivals, in nanoseconds
+	public double getLatency() {
+		return mPublishedLatency;
+	}
+}
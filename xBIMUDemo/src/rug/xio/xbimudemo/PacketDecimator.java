@@ -0,0 +1,217 @@
+package rug.xio.xbimudemo;
+
+// Reduces the rate of quaternion and sensor packets passed to a listener by an
+// integer factor, with a CIC (cascaded integrator-comb) low-pass filter to
+// limit aliasing.
+//
+// Each input sample costs one addition per value and filter order; the comb
+// stages and the listener only run for every factor-th packet, so a slow
+// consumer does not pay for the packets it would discard. Order 1 is a boxcar
+// average of the last factor samples, higher orders attenuate aliases more.
+// The first order - 1 outputs of a device are a start-up transient.
+// Battery and thermometer packets are passed on unchanged.
+//
+// The output packets carry the filtered values with the counter, length and
+// receive time of the last input packet. Their timestamp is the sample time
+// the filter is centred on, order * (factor - 1) / 2 input periods before the
+// last input packet, going by the timestamps of the first and last input
+// packets of the output. Quaternions are averaged per element, so
+// they are close to, but not exactly, unit quaternions. Filters are kept per
+// device; negative device identifiers share one filter.
+//
+// Packets must be delivered from one thread.
+public class PacketDecimator implements SerialPacketListener {
+
+	// Largest filter order and factor, keeps the gain within a long for 16-bit values; the
+	// integrators may wrap, which the combs undo
+	public static final int MAX_ORDER = 4;
+	public static final int MAX_FACTOR = 1024;
+
+	private final SerialPacketListener mListener;
+	private final int mFactor;
+	private final int mOrder;
+	private final double mGain;
+
+	// Filters per device identifier
+	private Filter[] mQuaternionFilters = new Filter[1];
+	private Filter[] mSensorsFilters = new Filter[1];
+
+	// Filter state of one packet type of one device
+	private static class Filter {
+
+		final SerialPacket output;
+		final long[] integrators;
+		final long[] combs;
+		int phase = 0;
+
+		// Timestamp of the first input packet of the output
+		long firstTimestamp;
+
+		Filter(SerialPacket output, int order) {
+			this.output = output;
+			this.integrators = new long[output.getValueCount() * order];
+			this.combs = new long[output.getValueCount() * order];
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param listener
+	 *            Receives the decimated packets
+	 * @param factor
+	 *            Number of input packets per output packet, 1 for no decimation
+	 * @param order
+	 *            Number of CIC stages, 1 to MAX_ORDER
+	 */
+	public PacketDecimator(SerialPacketListener listener, int factor, int order) {
+
+		if (factor < 1 || factor > MAX_FACTOR) {
+			throw new IllegalArgumentException("Factor out of range: " + factor);
+		}
+
+		if (order < 1 || order > MAX_ORDER) {
+			throw new IllegalArgumentException("Order out of range: " + order);
+		}
+
+		mListener = listener;
+		mFactor = factor;
+		mOrder = order;
+		mGain = Math.pow(factor, order);
+	}
+
+	/**
+	 * Decimation factor for a rate.
+	 * 
+	 * @param inputRate
+	 *            Packet rate of the device
+	 * @param outputRate
+	 *            Highest packet rate wanted by the listener
+	 */
+	public static int getFactor(float inputRate, float outputRate) {
+		return Math.max(1, Math.min(MAX_FACTOR, (int)Math.ceil(inputRate / outputRate)));
+	}
+
+	public int getFactor() {
+		return mFactor;
+	}
+
+	public int getOrder() {
+		return mOrder;
+	}
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) {
+
+		if (mFactor == 1) {
+			mListener.onQuaternion(packet);
+			return;
+		}
+
+		int device = Math.max(packet.deviceId, 0);
+
+		if (device >= mQuaternionFilters.length || mQuaternionFilters[device] == null) {
+			mQuaternionFilters = getFilters(mQuaternionFilters, device, new QuaternionPacket());
+		}
+
+		if (filter(mQuaternionFilters[device], packet)) {
+			mListener.onQuaternion((QuaternionPacket)mQuaternionFilters[device].output);
+		}
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+
+		if (mFactor == 1) {
+			mListener.onSensors(packet);
+			return;
+		}
+
+		int device = Math.max(packet.deviceId, 0);
+
+		if (device >= mSensorsFilters.length || mSensorsFilters[device] == null) {
+			mSensorsFilters = getFilters(mSensorsFilters, device, new SensorsPacket());
+		}
+
+		if (filter(mSensorsFilters[device], packet)) {
+			mListener.onSensors((SensorsPacket)mSensorsFilters[device].output);
+		}
+	}
+
+	@Override
+	public void onBattery(BatteryPacket packet) {
+		mListener.onBattery(packet);
+	}
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) {
+		mListener.onThermometer(packet);
+	}
+
+	// Filters with a new filter for a device, grown if needed
+	private Filter[] getFilters(Filter[] filters, int device, SerialPacket output) {
+
+		if (device >= filters.length) {
+			Filter[] grown = new Filter[Math.max(device + 1, filters.length * 2)];
+			System.arraycopy(filters, 0, grown, 0, filters.length);
+			filters = grown;
+		}
+
+		filters[device] = new Filter(output, mOrder);
+
+		return filters;
+	}
+
+	// Add a packet to a filter, returns true if the output packet holds a new sample
+	private boolean filter(Filter filter, SerialPacket packet) {
+
+		int order = mOrder;
+		int count = filter.output.getValueCount();
+		long[] integrators = filter.integrators;
+
+		if (filter.phase == 0) {
+			filter.firstTimestamp = packet.timestamp;
+		}
+
+		// Integrator stages at the input rate
+		for (int v = 0; v < count; v++) {
+			long value = packet.getValue(v);
+			int base = v * order;
+
+			for (int stage = 0; stage < order; stage++) {
+				value = integrators[base + stage] += value;
+			}
+		}
+
+		if (++filter.phase < mFactor) {
+			return false;
+		}
+
+		filter.phase = 0;
+
+		// Comb stages at the output rate
+		long[] combs = filter.combs;
+		SerialPacket output = filter.output;
+
+		for (int v = 0; v < count; v++) {
+			int base = v * order;
+			long value = integrators[base + order - 1];
+
+			for (int stage = 0; stage < order; stage++) {
+				long previous = combs[base + stage];
+				combs[base + stage] = value;
+				value -= previous;
+			}
+
+			output.setValue(v, (int)Math.round(value / mGain));
+		}
+
+		output.length = packet.length;
+		output.counter = packet.counter;
+		output.deviceId = packet.deviceId;
+		output.timestamp = packet.timestamp - (packet.timestamp - filter.firstTimestamp) * order / 2;
+		output.receiveTime = packet.receiveTime;
+
+		return true;
+	}
+}
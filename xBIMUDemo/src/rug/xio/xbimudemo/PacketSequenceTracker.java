@@ -0,0 +1,233 @@
+package rug.xio.xbimudemo;
+
+// Tracks the packet counter of one packet type to measure packet loss, arrival
+// jitter and effective sample rate.
+//
+// The 8-bit packet counter is unwrapped into a running sequence number. Loss and
+// rate are measured over a sliding window of the last received packets, and
+// jitter is a running estimate of the mean deviation of the per-packet arrival
+// interval, so memory use is constant and nothing is allocated per packet. A
+// packet with a counter up to REORDER_WINDOW - 1 behind the last one is not a
+// wrap of up to 255 lost packets: it is a duplicate if that counter was
+// received already, or else a reordered packet that is no longer counted as
+// lost. A run of more than 256 - REORDER_WINDOW lost packets therefore looks
+// like a reordered packet, but such a run cannot be told from a wrap anyway.
+//
+// Times are the receive times of the buffers the packets completed in, not
+// sample times: packets completed in the same buffer arrive together, so the
+// jitter measures arrival jitter, which includes how the transport and reader
+// chunk the stream. PacketClock estimates the sample times.
+//
+// Like SerialDecoderStatistics, the results are computed by the decoding thread
+// and published once per received buffer; the getters may be called from any
+// thread.
+public class PacketSequenceTracker {
+
+	// Default number of packets in the sliding window
+	public static final int DEFAULT_WINDOW = 256;
+
+	// Gain of the running interval and jitter estimates (as RFC 3550 jitter)
+	private static final double ESTIMATE_GAIN = 1.0 / 16.0;
+
+	// Number of sequence numbers up to the last one that a packet may arrive late for
+	private static final int REORDER_WINDOW = 16;
+
+	// Sequence number and receive time of the packets in the window, as ring buffers
+	private final long[] mSequences;
+	private final long[] mTimestamps;
+	private int mWindowIndex = 0;
+	private int mWindowCount = 0;
+
+	// Last packet counter, -1 if the sequence is unknown
+	private int mLastCounter = -1;
+
+	// Unwrapped sequence number of the last packet
+	private long mSequence = 0;
+
+	// Sequence numbers received, bit n for mSequence - n, set before the sequence started
+	private long mRecent = 0;
+
+	// Totals since creation
+	private long mReceived = 0;
+	private long mLost = 0;
+	private long mDuplicates = 0;
+	private long mReordered = 0;
+
+	// Running estimates of the arrival interval and its mean deviation, in nanoseconds
+	private double mInterval = 0;
+	private double mJitter = 0;
+	private boolean mHasInterval = false;
+
+	// Published results
+	private volatile long mPublishedReceived;
+	private volatile long mPublishedLost;
+	private volatile long mPublishedDuplicates;
+	private volatile long mPublishedReordered;
+	private volatile double mPublishedLossRatio;
+	private volatile double mPublishedRate;
+	private volatile double mPublishedJitter;
+
+	public PacketSequenceTracker() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param window
+	 *            Number of received packets over which loss ratio and rate are
+	 *            measured
+	 */
+	public PacketSequenceTracker(int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("Window must hold at least 2 packets");
+		}
+
+		mSequences = new long[window];
+		mTimestamps = new long[window];
+	}
+
+	/**
+	 * Track a received packet.
+	 * 
+	 * @param counter
+	 *            Packet counter (0 - 255)
+	 * @param timestamp
+	 *            Receive time of the buffer the packet completed in, in
+	 *            nanoseconds (System.nanoTime)
+	 * @return The number of packets missing before this packet, 0 for a
+	 *         duplicate or reordered packet
+	 */
+	int onPacket(int counter, long timestamp) {
+
+		counter &= 0xFF;
+
+		int gap = 0;
+
+		if (mLastCounter < 0) {
+			// Start a new sequence, packets before it are not counted as lost
+			mWindowCount = 0;
+			mRecent = -1L;
+		}
+		else if (((mLastCounter - counter) & 0xFF) < REORDER_WINDOW) {
+			// Repeated or late counter, not a sequence of up to 255 lost packets
+			long bit = 1L << ((mLastCounter - counter) & 0xFF);
+
+			if ((mRecent & bit) != 0) {
+				mDuplicates++;
+			}
+			else {
+				// Counted as lost when the packets after it arrived
+				mRecent |= bit;
+				mReordered++;
+				mReceived++;
+				mLost--;
+			}
+			return 0;
+		}
+		else {
+			gap = (counter - mLastCounter - 1) & 0xFF;
+
+			int previous = (mWindowIndex == 0 ? mSequences.length : mWindowIndex) - 1;
+			double interval = (double)(timestamp - mTimestamps[previous]) / (gap + 1);
+
+			if (!mHasInterval) {
+				mInterval = interval;
+				mHasInterval = true;
+			}
+
+			mInterval += (interval - mInterval) * ESTIMATE_GAIN;
+			mJitter += (Math.abs(interval - mInterval) - mJitter) * ESTIMATE_GAIN;
+		}
+
+		mSequence += gap + 1;
+		mRecent = gap < 63 ? (mRecent << (gap + 1)) | 1 : 1;
+		mLastCounter = counter;
+		mReceived++;
+		mLost += gap;
+
+		mSequences[mWindowIndex] = mSequence;
+		mTimestamps[mWindowIndex] = timestamp;
+		if (++mWindowIndex == mSequences.length) {
+			mWindowIndex = 0;
+		}
+
+		if (mWindowCount < mSequences.length) {
+			mWindowCount++;
+		}
+
+		return gap;
+	}
+
+	// Forget the last packet counter so the next packet starts a new sequence, e.g. after a resync
+	void restart() {
+		mLastCounter = -1;
+	}
+
+	// Publish the results to other threads
+	void publish() {
+
+		mPublishedReceived = mReceived;
+		mPublishedLost = mLost;
+		mPublishedDuplicates = mDuplicates;
+		mPublishedReordered = mReordered;
+		mPublishedJitter = mJitter;
+
+		if (mWindowCount < 2) {
+			mPublishedLossRatio = 0;
+			mPublishedRate = 0;
+			return;
+		}
+
+		int newest = (mWindowIndex + mSequences.length - 1) % mSequences.length;
+		int oldest = (mWindowIndex + mSequences.length - mWindowCount) % mSequences.length;
+
+		long sequenceSpan = mSequences[newest] - mSequences[oldest];
+		long timeSpan = mTimestamps[newest] - mTimestamps[oldest];
+
+		mPublishedLossRatio = 1.0 - (double)(mWindowCount - 1) / sequenceSpan;
+		mPublishedRate = timeSpan > 0 ? (mWindowCount - 1) * 1e9 / timeSpan : 0;
+	}
+
+	// Total packets received
+	public long getReceived() {
+		return mPublishedReceived;
+	}
+
+	// Total packets lost, going by gaps in the packet counter
+	public long getLost() {
+		return mPublishedLost;
+	}
+
+	// Packets received with the counter of a packet received shortly before them
+	public long getDuplicates() {
+		return mPublishedDuplicates;
+	}
+
+	// Packets received after packets that followed them, not counted as lost
+	public long getReordered() {
+		return mPublishedReordered;
+	}
+
+	// Fraction of packets lost within the window (0 - 1), counting reordered packets as lost
+	public double getLossRatio() {
+		return mPublishedLossRatio;
+	}
+
+	// Packets received per second within the window
+	public double getEffectiveRate() {
+		return mPublishedRate;
+	}
+
+	// Mean deviation of the per-packet arrival interval, in nanoseconds, including read chunking
+	public double getJitter() {
+		return mPublishedJitter;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("received=%d lost=%d duplicates=%d reordered=%d loss=%.3f rate=%.1fHz jitter=%.3fms",
+				getReceived(), getLost(), getDuplicates(), getReordered(), getLossRatio(), getEffectiveRate(),
+				getJitter() / 1e6);
+	}
+}
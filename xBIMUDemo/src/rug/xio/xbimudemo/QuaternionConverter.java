@@ -0,0 +1,193 @@
+package rug.xio.xbimudemo;
+
+// Conversions of x-BIMU orientation quaternions to Euler angles and rotation
+// matrices.
+//
+// Quaternions use the x-BIMU convention: the orientation of the earth frame
+// relative to the sensor frame, as sent in quaternion packets and estimated by
+// MadgwickAhrs. Euler angles are in degrees, ZYX (yaw, pitch, roll) order.
+//
+// The batch methods work on structure-of-arrays data, one primitive array per
+// component, with simple counted loops the JIT can unroll and vectorise. They
+// allocate nothing; callers keep the arrays and reuse them.
+public final class QuaternionConverter {
+
+	private static final float RADIANS_TO_DEGREES = (float)(180.0 / Math.PI);
+
+	private QuaternionConverter() {
+	}
+
+	/**
+	 * Convert the fixed-point elements of a quaternion packet to a unit
+	 * quaternion.
+	 * 
+	 * @param out
+	 *            Receives elements 0 to 3 at out[offset] to out[offset + 3]
+	 */
+	public static void normalize(QuaternionPacket packet, float[] out, int offset) {
+
+		float q0 = packet.element0;
+		float q1 = packet.element1;
+		float q2 = packet.element2;
+		float q3 = packet.element3;
+		float norm = (float)Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		float scale = norm > 0f ? 1f / norm : 0f;
+
+		out[offset] = q0 * scale;
+		out[offset + 1] = q1 * scale;
+		out[offset + 2] = q2 * scale;
+		out[offset + 3] = q3 * scale;
+	}
+
+	/**
+	 * Convert fixed-point quaternion elements to unit quaternions. The
+	 * normalisation removes the fixed-point scale, see XbimuUnits.QUATERNION.
+	 * 
+	 * @param e0
+	 *            Element 0 of each quaternion, as in the packets
+	 * @param q0
+	 *            Receives element 0 of each unit quaternion; a zero quaternion
+	 *            gives zeros
+	 */
+	public static void normalize(int[] e0, int[] e1, int[] e2, int[] e3,
+			float[] q0, float[] q1, float[] q2, float[] q3, int offset, int count) {
+
+		int end = offset + count;
+
+		for (int i = offset; i < end; i++) {
+			float a = e0[i];
+			float b = e1[i];
+			float c = e2[i];
+			float d = e3[i];
+			float norm = (float)Math.sqrt(a * a + b * b + c * c + d * d);
+			float scale = norm > 0f ? 1f / norm : 0f;
+
+			q0[i] = a * scale;
+			q1[i] = b * scale;
+			q2[i] = c * scale;
+			q3[i] = d * scale;
+		}
+	}
+
+	/**
+	 * Convert a unit quaternion to a rotation matrix.
+	 * 
+	 * @param out
+	 *            Receives the matrix in row-major order at out[offset] to
+	 *            out[offset + 8]
+	 */
+	public static void toRotationMatrix(float q0, float q1, float q2, float q3, float[] out, int offset) {
+
+		float q0q0 = 2f * q0 * q0 - 1f;
+
+		out[offset] = q0q0 + 2f * q1 * q1;
+		out[offset + 1] = 2f * (q1 * q2 + q0 * q3);
+		out[offset + 2] = 2f * (q1 * q3 - q0 * q2);
+		out[offset + 3] = 2f * (q1 * q2 - q0 * q3);
+		out[offset + 4] = q0q0 + 2f * q2 * q2;
+		out[offset + 5] = 2f * (q2 * q3 + q0 * q1);
+		out[offset + 6] = 2f * (q1 * q3 + q0 * q2);
+		out[offset + 7] = 2f * (q2 * q3 - q0 * q1);
+		out[offset + 8] = q0q0 + 2f * q3 * q3;
+	}
+
+	/**
+	 * Convert unit quaternions to rotation matrices.
+	 * 
+	 * @param matrix
+	 *            Nine arrays, one per matrix element in row-major order;
+	 *            matrix[k][i] receives element k of quaternion i
+	 */
+	public static void toRotationMatrix(float[] q0, float[] q1, float[] q2, float[] q3, float[][] matrix, int offset, int count) {
+
+		float[] r00 = matrix[0], r01 = matrix[1], r02 = matrix[2];
+		float[] r10 = matrix[3], r11 = matrix[4], r12 = matrix[5];
+		float[] r20 = matrix[6], r21 = matrix[7], r22 = matrix[8];
+
+		int end = offset + count;
+
+		for (int i = offset; i < end; i++) {
+			float a = q0[i];
+			float b = q1[i];
+			float c = q2[i];
+			float d = q3[i];
+			float aa = 2f * a * a - 1f;
+
+			r00[i] = aa + 2f * b * b;
+			r01[i] = 2f * (b * c + a * d);
+			r02[i] = 2f * (b * d - a * c);
+			r10[i] = 2f * (b * c - a * d);
+			r11[i] = aa + 2f * c * c;
+			r12[i] = 2f * (c * d + a * b);
+			r20[i] = 2f * (b * d + a * c);
+			r21[i] = 2f * (c * d - a * b);
+			r22[i] = aa + 2f * d * d;
+		}
+	}
+
+	/**
+	 * Convert a unit quaternion to Euler angles in degrees.
+	 * 
+	 * @param out
+	 *            Receives roll, pitch and yaw at out[offset] to out[offset + 2]
+	 */
+	public static void toEuler(float q0, float q1, float q2, float q3, float[] out, int offset) {
+
+		float q0q0 = 2f * q0 * q0 - 1f;
+
+		out[offset] = roll(q0q0, q0, q1, q2, q3);
+		out[offset + 1] = pitch(q0, q1, q2, q3);
+		out[offset + 2] = yaw(q0q0, q0, q1, q2, q3);
+	}
+
+	/**
+	 * Convert unit quaternions to Euler angles in degrees.
+	 * 
+	 * @param roll
+	 *            Receives the rotation about X of each quaternion
+	 * @param pitch
+	 *            Receives the rotation about Y of each quaternion
+	 * @param yaw
+	 *            Receives the rotation about Z of each quaternion
+	 */
+	public static void toEuler(float[] q0, float[] q1, float[] q2, float[] q3,
+			float[] roll, float[] pitch, float[] yaw, int offset, int count) {
+
+		int end = offset + count;
+
+		for (int i = offset; i < end; i++) {
+			float a = q0[i];
+			float b = q1[i];
+			float c = q2[i];
+			float d = q3[i];
+			float aa = 2f * a * a - 1f;
+
+			roll[i] = roll(aa, a, b, c, d);
+			pitch[i] = pitch(a, b, c, d);
+			yaw[i] = yaw(aa, a, b, c, d);
+		}
+	}
+
+	private static float roll(float q0q0, float q0, float q1, float q2, float q3) {
+		return (float)Math.atan2(2f * (q2 * q3 - q0 * q1), q0q0 + 2f * q3 * q3) * RADIANS_TO_DEGREES;
+	}
+
+	private static float pitch(float q0, float q1, float q2, float q3) {
+
+		float sin = 2f * (q1 * q3 + q0 * q2);
+
+		// Rounding can take a unit quaternion slightly outside the domain of asin
+		if (sin > 1f) {
+			sin = 1f;
+		}
+		else if (sin < -1f) {
+			sin = -1f;
+		}
+
+		return -(float)Math.asin(sin) * RADIANS_TO_DEGREES;
+	}
+
+	private static float yaw(float q0q0, float q0, float q1, float q2, float q3) {
+		return (float)Math.atan2(2f * (q1 * q2 - q0 * q3), q0q0 + 2f * q1 * q1) * RADIANS_TO_DEGREES;
+	}
+}
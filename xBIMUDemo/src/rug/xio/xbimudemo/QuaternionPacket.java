@@ -0,0 +1,49 @@
+package rug.xio.xbimudemo;
+
+// Quaternion packet, see SerialDecoder.PACKET_Quaternion
+public class QuaternionPacket extends SerialPacket {
+
+	// quaternion elements 0, 1, 2, 3
+	public int element0;
+	public int element1;
+	public int element2;
+	public int element3;
+
+	public QuaternionPacket() {
+		super(SerialDecoder.PACKET_Quaternion);
+	}
+
+	@Override
+	public int getValueCount() {
+		return 4;
+	}
+
+	@Override
+	public int getValue(int index) {
+		switch (index) {
+		case 0: return element0;
+		case 1: return element1;
+		case 2: return element2;
+		case 3: return element3;
+		default: throw new IndexOutOfBoundsException("Quaternion value index " + index);
+		}
+	}
+
+	@Override
+	public void setValue(int index, int value) {
+		switch (index) {
+		case 0: element0 = value; break;
+		case 1: element1 = value; break;
+		case 2: element2 = value; break;
+		case 3: element3 = value; break;
+		default: throw new IndexOutOfBoundsException("Quaternion value index " + index);
+		}
+	}
+
+	@Override
+	public QuaternionPacket copy() {
+		QuaternionPacket packet = new QuaternionPacket();
+		packet.copyFrom(this);
+		return packet;
+	}
+}
@@ -0,0 +1,18 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+
+// Listener for the connection events of a ReconnectingReader, called on its
+// read thread
+public interface ReconnectListener {
+
+	// The connection failed and reconnection starts, the old transport is closed
+	void onConnectionLost(IOException cause);
+
+	// Reconnection attempt number attempt (from 1) starts after a backoff delay
+	void onReconnecting(int attempt, long delayNanos);
+
+	// A new transport is open and reading starts again
+	void onReconnected(SerialTransport transport, long latencyNanos);
+
+}
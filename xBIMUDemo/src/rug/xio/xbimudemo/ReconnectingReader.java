@@ -0,0 +1,341 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+
+// Read loop that reconnects when its transport fails.
+//
+// Runs a SerialReader on an open transport. When the transport fails, and the
+// reader was not cancelled, new transports from a SerialTransportFactory are
+// opened after exponentially growing delays until one opens or the attempts
+// run out. The consumer is reset before reading from the new transport, so a
+// packet cut off by the drop is not joined to the bytes that follow it. A
+// TimedSerialConsumer is given the receive times of the readers.
+//
+// The time from losing the connection to having a new one open and the gap
+// between the last byte before the drop and the first byte after it are
+// measured. Like the other read thread statistics, they are published with
+// volatile writes and may be read from any thread.
+public class ReconnectingReader implements Runnable {
+
+	// Default delay before the first reconnection attempt
+	public static final long DEFAULT_INITIAL_BACKOFF_NANOS = 250000000L;
+
+	// Default limit of the delay between attempts
+	public static final long DEFAULT_MAX_BACKOFF_NANOS = 8000000000L;
+
+	// Default number of attempts before giving up, about half a minute with the default backoff
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+	private final SerialTransportFactory mFactory;
+	private final SerialConsumer mConsumer;
+	private final TimedSerialConsumer mTimedConsumer;
+	private final ReconnectListener mListener;
+
+	private volatile long mInitialBackoffNanos = DEFAULT_INITIAL_BACKOFF_NANOS;
+	private volatile long mMaxBackoffNanos = DEFAULT_MAX_BACKOFF_NANOS;
+	private volatile int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile long mLatencyBudgetNanos = 0;
+
+	// Current transport and reader, replaced on every reconnection
+	private volatile SerialTransport mTransport;
+	private volatile SerialReader mReader;
+
+	private volatile boolean mCancelled = false;
+	private final Object mBackoffLock = new Object();
+
+	private volatile IOException mFailure;
+
+	// Byte times, only used by the read thread
+	private long mLastByteTime;
+	private boolean mAwaitingFirstByte = false;
+	private long mLostByteTime;
+
+	// Published metrics
+	private volatile int mReconnects;
+	private volatile long mFailedAttempts;
+	private volatile long mLastReconnectLatency;
+	private volatile long mMaxReconnectLatency;
+	private volatile long mLastDataGap;
+	private volatile long mMaxDataGap;
+	private volatile long mTotalDataGap;
+
+	// Passes the bytes on, noting when they arrived
+	private final TimedSerialConsumer mTimingConsumer = new TimedSerialConsumer() {
+		@Override
+		public void reciveBytes(byte[] buffer, int bytes) {
+			reciveBytes(buffer, bytes, System.nanoTime());
+		}
+
+		@Override
+		public void reciveBytes(byte[] buffer, int bytes, long receiveTime) {
+
+			if (mAwaitingFirstByte) {
+				long gap = receiveTime - mLostByteTime;
+
+				mLastDataGap = gap;
+				mMaxDataGap = Math.max(mMaxDataGap, gap);
+				mTotalDataGap += gap;
+				mAwaitingFirstByte = false;
+			}
+
+			mLastByteTime = receiveTime;
+
+			if (mTimedConsumer != null) {
+				mTimedConsumer.reciveBytes(buffer, bytes, receiveTime);
+			}
+			else {
+				mConsumer.reciveBytes(buffer, bytes);
+			}
+		}
+
+		@Override
+		public void reset() {
+			mConsumer.reset();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param transport
+	 *            Open transport to read from first
+	 * @param factory
+	 *            Creates the transports to reconnect with
+	 * @param consumer
+	 *            Consumer of the received bytes
+	 * @param listener
+	 *            Listener for connection events, may be null
+	 */
+	public ReconnectingReader(SerialTransport transport, SerialTransportFactory factory, SerialConsumer consumer,
+			ReconnectListener listener) {
+		mTransport = transport;
+		mFactory = factory;
+		mConsumer = consumer;
+		mTimedConsumer = consumer instanceof TimedSerialConsumer ? (TimedSerialConsumer)consumer : null;
+		mListener = listener;
+	}
+
+	// Set the delay before the first attempt, doubled for every further attempt up to the maximum
+	public void setBackoff(long initialNanos, long maxNanos) {
+		if (initialNanos < 0 || maxNanos < initialNanos) {
+			throw new IllegalArgumentException("Invalid backoff " + initialNanos + " to " + maxNanos);
+		}
+
+		mInitialBackoffNanos = initialNanos;
+		mMaxBackoffNanos = maxNanos;
+	}
+
+	// Set the number of attempts per connection loss, 0 to not reconnect
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 0) {
+			throw new IllegalArgumentException("Attempts must not be negative");
+		}
+
+		mMaxAttempts = maxAttempts;
+	}
+
+	// Latency budget of the readers, see SerialReader.setLatencyBudget
+	public void setLatencyBudget(long nanos) {
+		mLatencyBudgetNanos = nanos;
+
+		SerialReader reader = mReader;
+
+		if (reader != null) {
+			reader.setLatencyBudget(nanos);
+		}
+	}
+
+	@Override
+	public void run() {
+
+		mLastByteTime = System.nanoTime();
+
+		while (!mCancelled) {
+			SerialReader reader = new SerialReader(mTransport, mTimingConsumer);
+
+			reader.setLatencyBudget(mLatencyBudgetNanos);
+			mReader = reader;
+			reader.run();
+			mTransport.close();
+
+			if (mCancelled) {
+				return;
+			}
+
+			long lostTime = System.nanoTime();
+
+			mFailure = reader.getFailure();
+
+			if (mListener != null) {
+				mListener.onConnectionLost(reader.getFailure());
+			}
+
+			if (!reconnect(lostTime)) {
+				return;
+			}
+		}
+	}
+
+	// Open new transports until one opens, returns false if cancelled or out of attempts
+	private boolean reconnect(long lostTime) {
+
+		long backoff = mInitialBackoffNanos;
+
+		for (int attempt = 1; attempt <= mMaxAttempts; attempt++) {
+
+			if (mListener != null) {
+				mListener.onReconnecting(attempt, backoff);
+			}
+
+			if (!sleep(backoff)) {
+				return false;
+			}
+
+			SerialTransport transport = mFactory.createTransport();
+
+			mTransport = transport;
+
+			// A cancel from now on closes this transport, check for one that came before
+			if (mCancelled) {
+				transport.close();
+				return false;
+			}
+
+			try {
+				transport.open();
+			}
+			catch (IOException e) {
+				transport.close();
+
+				if (mCancelled) {
+					return false;
+				}
+
+				mFailure = e;
+				mFailedAttempts++;
+				backoff = Math.min(backoff * 2, mMaxBackoffNanos);
+				continue;
+			}
+
+			long latency = System.nanoTime() - lostTime;
+
+			mLastReconnectLatency = latency;
+			mMaxReconnectLatency = Math.max(mMaxReconnectLatency, latency);
+			mReconnects++;
+
+			// Measure the gap up to the first byte of the new connection
+			mLostByteTime = mLastByteTime;
+			mAwaitingFirstByte = true;
+
+			mConsumer.reset();
+
+			if (mListener != null) {
+				mListener.onReconnected(transport, latency);
+			}
+
+			return true;
+		}
+
+		return false;
+	}
+
+	// Wait for a backoff delay, returns false if cancelled meanwhile
+	private boolean sleep(long nanos) {
+
+		long deadline = System.nanoTime() + nanos;
+
+		synchronized (mBackoffLock) {
+			while (!mCancelled) {
+				long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0) {
+					return true;
+				}
+
+				try {
+					mBackoffLock.wait(remaining / 1000000, (int)(remaining % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	// Stop reading and reconnecting, may be called from any thread
+	public void cancel() {
+
+		mCancelled = true;
+
+		synchronized (mBackoffLock) {
+			mBackoffLock.notifyAll();
+		}
+
+		mTransport.close();
+	}
+
+	// true once cancel was called
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	// The exception of the last connection failure or failed attempt, null if none
+	public IOException getFailure() {
+		return mFailure;
+	}
+
+	// Current transport
+	public SerialTransport getTransport() {
+		return mTransport;
+	}
+
+	// Reader of the current connection, null before the first
+	public SerialReader getReader() {
+		return mReader;
+	}
+
+	// Successful reconnections
+	public int getReconnects() {
+		return mReconnects;
+	}
+
+	// Reconnection attempts that failed to open a transport
+	public long getFailedAttempts() {
+		return mFailedAttempts;
+	}
+
+	// Time from losing the connection to the new transport being open, of the last and of the slowest reconnection
+	public long getLastReconnectLatency() {
+		return mLastReconnectLatency;
+	}
+
+	public long getMaxReconnectLatency() {
+		return mMaxReconnectLatency;
+	}
+
+	// Time from the last byte before a drop to the first byte after reconnecting, last, longest and summed
+	public long getLastDataGap() {
+		return mLastDataGap;
+	}
+
+	public long getMaxDataGap() {
+		return mMaxDataGap;
+	}
+
+	public long getTotalDataGap() {
+		return mTotalDataGap;
+	}
+
+	@Override
+	public String toString() {
+		return "reconnects=" + mReconnects
+			+ " failedAttempts=" + mFailedAttempts
+			+ " lastReconnectLatency=" + mLastReconnectLatency
+			+ " maxReconnectLatency=" + mMaxReconnectLatency
+			+ " lastDataGap=" + mLastDataGap
+			+ " maxDataGap=" + mMaxDataGap
+			+ " totalDataGap=" + mTotalDataGap;
+	}
+}
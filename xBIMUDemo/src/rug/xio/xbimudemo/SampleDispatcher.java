@@ -0,0 +1,44 @@
+package rug.xio.xbimudemo;
+
+// Consumer thread that delivers packets from a SampleRingBuffer to a listener.
+//
+// The listener is called on this thread, never on the read thread, so it may
+// take as long as it needs; while it does, the ring buffer absorbs the incoming
+// packets according to its overflow policy.
+public class SampleDispatcher extends Thread {
+
+	// Maximum time to wait for packets before checking for shutdown
+	private static final long AWAIT_NANOS = 10000000;
+
+	// Maximum number of packets delivered between checks for shutdown
+	private static final int DRAIN_BATCH = 64;
+
+	private final SampleRingBuffer mBuffer;
+	private final SerialPacketListener mListener;
+
+	private volatile boolean mRunning = true;
+
+	public SampleDispatcher(SampleRingBuffer buffer, SerialPacketListener listener) {
+		super("SampleDispatcher");
+
+		mBuffer = buffer;
+		mListener = listener;
+
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			if (mBuffer.drain(mListener, DRAIN_BATCH) == 0) {
+				mBuffer.await(AWAIT_NANOS);
+			}
+		}
+	}
+
+	// Stop delivering packets, packets still in the buffer are not delivered
+	public void shutdown() {
+		mRunning = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,345 @@
+package rug.xio.xbimudemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Single-producer, single-consumer ring buffer of decoded packets.
+//
+// Sits between the SerialDecoder (the producer, on the read thread) and a
+// consumer thread so that slow consumers never stall the read loop. Packets are
+// copied into preallocated primitive slots; nothing is allocated per packet.
+// Publishing is wait-free unless the OVERFLOW_Block policy is selected.
+//
+// Exactly one thread may call the SerialPacketListener methods (offer) and
+// exactly one thread may call poll / drain / await.
+public class SampleRingBuffer implements SerialPacketListener {
+
+	// Overflow policies, applied when a packet is offered to a full buffer
+	public static final int OVERFLOW_DropOldest = 0;	// discard the oldest packet in the buffer
+	public static final int OVERFLOW_DropNewest = 1;	// discard the packet being offered
+	public static final int OVERFLOW_Block = 2;			// wait for the consumer to make space
+
+	// Maximum number of data values in a packet
+	private static final int MAX_VALUES = 9;
+
+	// Time the producer parks between checks for space with OVERFLOW_Block
+	private static final long BLOCK_PARK_NANOS = 100000;
+
+	private final int mCapacity;
+	private final int mMask;
+	private final int mOverflowPolicy;
+
+	// Packet slots
+	private final int[] mTypes;
+	private final int[] mLengths;
+	private final int[] mCounters;
+	private final int[] mDeviceIds;
+	private final long[] mTimestamps;
+	private final long[] mReceiveTimes;
+	private final int[] mValues;
+
+	// Index of the next packet to read and the next slot to write, increasing without wrapping
+	private final AtomicLong mHead = new AtomicLong();
+	private final AtomicLong mTail = new AtomicLong();
+
+	// Consumer thread waiting in await, null if none
+	private volatile Thread mWaiter;
+
+	// Number of packets discarded or delayed because the buffer was full
+	private volatile long mOverflows = 0;
+
+	// Set once the consumer has stopped, packets offered after that are discarded
+	private volatile boolean mClosed = false;
+
+	// Packets handed to the consumer, reused for every packet of each type
+	private final QuaternionPacket mQuaternionPacket = new QuaternionPacket();
+	private final SensorsPacket mSensorsPacket = new SensorsPacket();
+	private final BatteryPacket mBatteryPacket = new BatteryPacket();
+	private final ThermometerPacket mThermometerPacket = new ThermometerPacket();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            Number of packets the buffer holds, rounded up to a power of two
+	 * @param overflowPolicy
+	 *            One of the OVERFLOW_ constants
+	 */
+	public SampleRingBuffer(int capacity, int overflowPolicy) {
+
+		if (capacity < 1 || capacity > (1 << 24)) {
+			throw new IllegalArgumentException("Capacity out of range: " + capacity);
+		}
+
+		if (overflowPolicy != OVERFLOW_DropOldest && overflowPolicy != OVERFLOW_DropNewest && overflowPolicy != OVERFLOW_Block) {
+			throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+		}
+
+		int size = Integer.highestOneBit(capacity);
+
+		if (size < capacity) {
+			size <<= 1;
+		}
+
+		mCapacity = size;
+		mMask = size - 1;
+		mOverflowPolicy = overflowPolicy;
+
+		mTypes = new int[size];
+		mLengths = new int[size];
+		mCounters = new int[size];
+		mDeviceIds = new int[size];
+		mTimestamps = new long[size];
+		mReceiveTimes = new long[size];
+		mValues = new int[size * MAX_VALUES];
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	// Number of packets in the buffer
+	public int size() {
+		return (int)(mTail.get() - mHead.get());
+	}
+
+	public boolean isEmpty() {
+		return mTail.get() == mHead.get();
+	}
+
+	/**
+	 * Get the timestamp of the oldest packet without removing it. Consumer
+	 * thread only, and only if the buffer is not empty. With
+	 * OVERFLOW_DropOldest the packet may be dropped before it is polled, so
+	 * the next packet polled may be newer than the timestamp returned.
+	 */
+	public long peekTimestamp() {
+
+		while (true) {
+			long head = mHead.get();
+			long timestamp = mTimestamps[(int)head & mMask];
+
+			// Fails if the producer dropped this packet and may be overwriting its slot
+			if (mHead.compareAndSet(head, head)) {
+				return timestamp;
+			}
+		}
+	}
+
+	// Number of packets discarded (or, with OVERFLOW_Block, delayed) because the buffer was full
+	public long getOverflows() {
+		return mOverflows;
+	}
+
+	/**
+	 * Discard packets offered from now on, e.g. because the consumer has
+	 * stopped. A producer blocked with OVERFLOW_Block returns within a park
+	 * interval. May be called from any thread.
+	 */
+	public void close() {
+		mClosed = true;
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) {
+		offer(packet);
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+		offer(packet);
+	}
+
+	@Override
+	public void onBattery(BatteryPacket packet) {
+		offer(packet);
+	}
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) {
+		offer(packet);
+	}
+
+	/**
+	 * Copy a packet into the buffer. Producer thread only.
+	 * 
+	 * @return false if the packet was discarded
+	 */
+	public boolean offer(SerialPacket packet) {
+
+		if (mClosed) {
+			return false;
+		}
+
+		long tail = mTail.get();
+
+		if (tail - mHead.get() >= mCapacity && !makeSpace(tail)) {
+			return false;
+		}
+
+		int slot = (int)tail & mMask;
+
+		mTypes[slot] = packet.type;
+		mLengths[slot] = packet.length;
+		mCounters[slot] = packet.counter;
+		mDeviceIds[slot] = packet.deviceId;
+		mTimestamps[slot] = packet.timestamp;
+		mReceiveTimes[slot] = packet.receiveTime;
+
+		int count = packet.getValueCount();
+		int base = slot * MAX_VALUES;
+
+		for (int i = 0; i < count; i++) {
+			mValues[base + i] = packet.getValue(i);
+		}
+
+		// Publish the slot to the consumer
+		mTail.lazySet(tail + 1);
+
+		Thread waiter = mWaiter;
+
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+
+		return true;
+	}
+
+	// Apply the overflow policy to a full buffer, returns false if the new packet must be discarded
+	private boolean makeSpace(long tail) {
+
+		mOverflows++;
+
+		switch (mOverflowPolicy) {
+		case OVERFLOW_DropOldest:
+			// Claim the oldest slot, fails only if the consumer just freed one
+			long head = mHead.get();
+			mHead.compareAndSet(head, head + 1);
+			return true;
+
+		case OVERFLOW_Block:
+			while (tail - mHead.get() >= mCapacity) {
+				if (mClosed || Thread.currentThread().isInterrupted()) {
+					return false;
+				}
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			}
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Remove the oldest packet and pass it to a listener. Consumer thread only.
+	 * The packet passed to the listener is reused by the next call.
+	 * 
+	 * @return false if the buffer was empty
+	 */
+	public boolean poll(SerialPacketListener listener) {
+
+		SerialPacket packet;
+
+		while (true) {
+			long head = mHead.get();
+
+			if (head == mTail.get()) {
+				return false;
+			}
+
+			int slot = (int)head & mMask;
+
+			packet = getPacket(mTypes[slot]);
+			packet.length = mLengths[slot];
+			packet.counter = mCounters[slot];
+			packet.deviceId = mDeviceIds[slot];
+			packet.timestamp = mTimestamps[slot];
+			packet.receiveTime = mReceiveTimes[slot];
+
+			int count = packet.getValueCount();
+			int base = slot * MAX_VALUES;
+
+			for (int i = 0; i < count; i++) {
+				packet.setValue(i, mValues[base + i]);
+			}
+
+			// Fails if the producer dropped this packet while it was being copied
+			if (mHead.compareAndSet(head, head + 1)) {
+				break;
+			}
+		}
+
+		switch (packet.type) {
+		case SerialDecoder.PACKET_Quaternion: listener.onQuaternion((QuaternionPacket)packet); break;
+		case SerialDecoder.PACKET_Sensors: listener.onSensors((SensorsPacket)packet); break;
+		case SerialDecoder.PACKET_Battery: listener.onBattery((BatteryPacket)packet); break;
+		case SerialDecoder.PACKET_Thermometer: listener.onThermometer((ThermometerPacket)packet); break;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Pass up to maxPackets packets to a listener. Consumer thread only.
+	 * 
+	 * @return The number of packets passed to the listener
+	 */
+	public int drain(SerialPacketListener listener, int maxPackets) {
+
+		int count = 0;
+
+		while (count < maxPackets && poll(listener)) {
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Wait until the buffer is not empty. Consumer thread only.
+	 * 
+	 * @param timeoutNanos
+	 *            Maximum time to wait. A wake-up may occasionally be missed, so
+	 *            this also bounds the delivery latency.
+	 * @return true if the buffer is not empty
+	 */
+	public boolean await(long timeoutNanos) {
+
+		if (size() > 0) {
+			return true;
+		}
+
+		setWaiter(Thread.currentThread());
+
+		try {
+			if (size() == 0) {
+				LockSupport.parkNanos(this, timeoutNanos);
+			}
+		}
+		finally {
+			setWaiter(null);
+		}
+
+		return size() > 0;
+	}
+
+	// Set the thread unparked when a packet is offered, for consumers waiting on several buffers
+	void setWaiter(Thread waiter) {
+		mWaiter = waiter;
+	}
+
+	// Consumer side packet object for a packet type
+	private SerialPacket getPacket(int type) {
+		switch (type) {
+		case SerialDecoder.PACKET_Quaternion: return mQuaternionPacket;
+		case SerialDecoder.PACKET_Sensors: return mSensorsPacket;
+		case SerialDecoder.PACKET_Battery: return mBatteryPacket;
+		default: return mThermometerPacket;
+		}
+	}
+}
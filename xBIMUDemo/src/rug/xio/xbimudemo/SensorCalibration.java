@@ -0,0 +1,154 @@
+package rug.xio.xbimudemo;
+
+// Calibration of one device, converting raw packet values to engineering units.
+//
+// Each sensor triplet is corrected as out = M * (raw - bias), where the 3x3
+// matrix M combines the unit scale, per-axis gain and misalignment, and the bias
+// is in raw packet units. Battery and thermometer values are scaled and offset.
+// Instances are immutable so they can be shared with the read thread.
+public final class SensorCalibration {
+
+	// Triplets, see getMatrix and getBias
+	public static final int SENSOR_Gyroscope = 0;		// degrees per second
+	public static final int SENSOR_Accelerometer = 1;	// g
+	public static final int SENSOR_Magnetometer = 2;	// gauss
+
+	// Calibration using the nominal x-BIMU scaling, see XbimuUnits
+	public static final SensorCalibration NOMINAL = new SensorCalibration(
+			diagonal(XbimuUnits.GYROSCOPE), new float[3],
+			diagonal(XbimuUnits.ACCELEROMETER), new float[3],
+			diagonal(XbimuUnits.MAGNETOMETER), new float[3],
+			XbimuUnits.BATTERY, 0f, XbimuUnits.THERMOMETER, 0f);
+
+	// Row-major matrices and biases of the three triplets, 9 and 3 values per triplet
+	private final float[] mMatrix = new float[27];
+	private final float[] mBias = new float[9];
+
+	private final float mBatteryScale;
+	private final float mBatteryOffset;
+	private final float mThermometerScale;
+	private final float mThermometerOffset;
+
+	/**
+	 * Constructor. The arrays are copied.
+	 * 
+	 * @param gyroscopeMatrix
+	 *            Row-major 3x3 matrix
+	 * @param gyroscopeBias
+	 *            X, Y and Z bias in raw units
+	 */
+	public SensorCalibration(float[] gyroscopeMatrix, float[] gyroscopeBias,
+			float[] accelerometerMatrix, float[] accelerometerBias,
+			float[] magnetometerMatrix, float[] magnetometerBias,
+			float batteryScale, float batteryOffset, float thermometerScale, float thermometerOffset) {
+
+		setTriplet(SENSOR_Gyroscope, gyroscopeMatrix, gyroscopeBias);
+		setTriplet(SENSOR_Accelerometer, accelerometerMatrix, accelerometerBias);
+		setTriplet(SENSOR_Magnetometer, magnetometerMatrix, magnetometerBias);
+
+		mBatteryScale = batteryScale;
+		mBatteryOffset = batteryOffset;
+		mThermometerScale = thermometerScale;
+		mThermometerOffset = thermometerOffset;
+	}
+
+	private void setTriplet(int sensor, float[] matrix, float[] bias) {
+
+		if (matrix.length != 9 || bias.length != 3) {
+			throw new IllegalArgumentException("Calibration needs a 3x3 matrix and 3 biases");
+		}
+
+		System.arraycopy(matrix, 0, mMatrix, sensor * 9, 9);
+		System.arraycopy(bias, 0, mBias, sensor * 3, 3);
+	}
+
+	private static float[] diagonal(float scale) {
+		return new float[] { scale, 0f, 0f, 0f, scale, 0f, 0f, 0f, scale };
+	}
+
+	// Copy of the matrix of a triplet, one of the SENSOR_ constants
+	public float[] getMatrix(int sensor) {
+		float[] matrix = new float[9];
+		System.arraycopy(mMatrix, sensor * 9, matrix, 0, 9);
+		return matrix;
+	}
+
+	// Copy of the bias of a triplet, one of the SENSOR_ constants
+	public float[] getBias(int sensor) {
+		float[] bias = new float[3];
+		System.arraycopy(mBias, sensor * 3, bias, 0, 3);
+		return bias;
+	}
+
+	/**
+	 * Calibrate the values of a sensor packet.
+	 * 
+	 * @param out
+	 *            Receives the 9 values in SensorsPacket order at out[offset]
+	 */
+	public void apply(SensorsPacket packet, float[] out, int offset) {
+		applyTriplet(SENSOR_Gyroscope, packet.gyroscopeX, packet.gyroscopeY, packet.gyroscopeZ, out, offset);
+		applyTriplet(SENSOR_Accelerometer, packet.accelerometerX, packet.accelerometerY, packet.accelerometerZ, out, offset + 3);
+		applyTriplet(SENSOR_Magnetometer, packet.magnetometerX, packet.magnetometerY, packet.magnetometerZ, out, offset + 6);
+	}
+
+	/**
+	 * Calibrate a batch of raw sensor packet values.
+	 * 
+	 * @param raw
+	 *            Packet values, 9 per sample in SensorsPacket order
+	 * @param out
+	 *            Receives the calibrated values in the same layout
+	 */
+	public void apply(int[] raw, int rawOffset, float[] out, int outOffset, int count) {
+
+		int end = rawOffset + count * 9;
+
+		for (int i = rawOffset, o = outOffset; i < end; i += 9, o += 9) {
+			applyTriplet(SENSOR_Gyroscope, raw[i], raw[i + 1], raw[i + 2], out, o);
+			applyTriplet(SENSOR_Accelerometer, raw[i + 3], raw[i + 4], raw[i + 5], out, o + 3);
+			applyTriplet(SENSOR_Magnetometer, raw[i + 6], raw[i + 7], raw[i + 8], out, o + 6);
+		}
+	}
+
+	private void applyTriplet(int sensor, int rawX, int rawY, int rawZ, float[] out, int offset) {
+
+		float[] m = mMatrix;
+		int mi = sensor * 9;
+		int bi = sensor * 3;
+
+		float x = rawX - mBias[bi];
+		float y = rawY - mBias[bi + 1];
+		float z = rawZ - mBias[bi + 2];
+
+		out[offset] = m[mi] * x + m[mi + 1] * y + m[mi + 2] * z;
+		out[offset + 1] = m[mi + 3] * x + m[mi + 4] * y + m[mi + 5] * z;
+		out[offset + 2] = m[mi + 6] * x + m[mi + 7] * y + m[mi + 8] * z;
+	}
+
+	// Battery voltage in volts
+	public float applyBattery(BatteryPacket packet) {
+		return packet.voltage * mBatteryScale + mBatteryOffset;
+	}
+
+	// Temperature in degrees Celsius
+	public float applyThermometer(ThermometerPacket packet) {
+		return packet.temperature * mThermometerScale + mThermometerOffset;
+	}
+
+	public float getBatteryScale() {
+		return mBatteryScale;
+	}
+
+	public float getBatteryOffset() {
+		return mBatteryOffset;
+	}
+
+	public float getThermometerScale() {
+		return mThermometerScale;
+	}
+
+	public float getThermometerOffset() {
+		return mThermometerOffset;
+	}
+}
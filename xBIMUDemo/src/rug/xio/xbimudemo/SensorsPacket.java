@@ -0,0 +1,68 @@
+package rug.xio.xbimudemo;
+
+// Sensor packet, see SerialDecoder.PACKET_Sensors
+public class SensorsPacket extends SerialPacket {
+
+	// gyroscope, X, Y, Z axes
+	public int gyroscopeX;
+	public int gyroscopeY;
+	public int gyroscopeZ;
+
+	// accelerometer, X, Y, Z axes
+	public int accelerometerX;
+	public int accelerometerY;
+	public int accelerometerZ;
+
+	// magnetometer, X, Y, Z axes
+	public int magnetometerX;
+	public int magnetometerY;
+	public int magnetometerZ;
+
+	public SensorsPacket() {
+		super(SerialDecoder.PACKET_Sensors);
+	}
+
+	@Override
+	public int getValueCount() {
+		return 9;
+	}
+
+	@Override
+	public int getValue(int index) {
+		switch (index) {
+		case 0: return gyroscopeX;
+		case 1: return gyroscopeY;
+		case 2: return gyroscopeZ;
+		case 3: return accelerometerX;
+		case 4: return accelerometerY;
+		case 5: return accelerometerZ;
+		case 6: return magnetometerX;
+		case 7: return magnetometerY;
+		case 8: return magnetometerZ;
+		default: throw new IndexOutOfBoundsException("Sensor value index " + index);
+		}
+	}
+
+	@Override
+	public void setValue(int index, int value) {
+		switch (index) {
+		case 0: gyroscopeX = value; break;
+		case 1: gyroscopeY = value; break;
+		case 2: gyroscopeZ = value; break;
+		case 3: accelerometerX = value; break;
+		case 4: accelerometerY = value; break;
+		case 5: accelerometerZ = value; break;
+		case 6: magnetometerX = value; break;
+		case 7: magnetometerY = value; break;
+		case 8: magnetometerZ = value; break;
+		default: throw new IndexOutOfBoundsException("Sensor value index " + index);
+		}
+	}
+
+	@Override
+	public SensorsPacket copy() {
+		SensorsPacket packet = new SensorsPacket();
+		packet.copyFrom(this);
+		return packet;
+	}
+}
@@ -0,0 +1,119 @@
+package rug.xio.xbimudemo;
+
+// Command sent through a SerialCommandQueue and its outcome.
+//
+// The state moves from queued to sent, possibly back to queued for a retry,
+// and ends in one of the final states. Times are on the System.nanoTime clock.
+public class SerialCommand {
+
+	// Command states
+	public static final int STATE_Queued = 0;	// waiting to be written
+	public static final int STATE_Sent = 1;		// written, waiting for a reply
+	public static final int STATE_Ok = 2;		// OK received
+	public static final int STATE_Error = 3;	// ERROR received
+	public static final int STATE_TimedOut = 4;	// no reply after all retries
+	public static final int STATE_Failed = 5;	// not sent because the connection failed or closed
+
+	private final byte[] mBytes;
+	private final SerialCommandListener mListener;
+	private final long mQueueTime;
+
+	// Written by the queue
+	private volatile int mState = STATE_Queued;
+	private volatile int mAttempts;
+	private volatile long mSendTime;
+	private volatile long mCompleteTime;
+
+	SerialCommand(byte[] bytes, SerialCommandListener listener, long queueTime) {
+		mBytes = bytes;
+		mListener = listener;
+		mQueueTime = queueTime;
+	}
+
+	// Mark a write of the command
+	void onSent(long time) {
+		mSendTime = time;
+		mAttempts++;
+		mState = STATE_Sent;
+	}
+
+	// Mark the command as waiting for a retry
+	void onRetry() {
+		mState = STATE_Queued;
+	}
+
+	// Set the final state, wake waiting threads and call the listener
+	void complete(int state, long time) {
+
+		synchronized (this) {
+			mCompleteTime = time;
+			mState = state;
+			notifyAll();
+		}
+
+		if (mListener != null) {
+			mListener.onCommandComplete(this);
+		}
+	}
+
+	// Bytes of the command, must not be modified once queued
+	public byte[] getBytes() {
+		return mBytes;
+	}
+
+	// Current state, one of the STATE_ constants
+	public int getState() {
+		return mState;
+	}
+
+	// true once the command is in a final state
+	public boolean isDone() {
+		return mState >= STATE_Ok;
+	}
+
+	// Number of times the command was written
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+	// Time of the last write
+	long getSendTime() {
+		return mSendTime;
+	}
+
+	// Time from queueing to the last write, -1 if not written
+	public long getQueueDelay() {
+		return mAttempts > 0 ? mSendTime - mQueueTime : -1;
+	}
+
+	// Time from the last write to the reply, -1 if no reply was received
+	public long getLatency() {
+		int state = mState;
+
+		return state == STATE_Ok || state == STATE_Error ? mCompleteTime - mSendTime : -1;
+	}
+
+	/**
+	 * Wait for the command to complete.
+	 * 
+	 * @param timeoutNanos
+	 *            Maximum time to wait
+	 * @return true if the command is done
+	 */
+	public synchronized boolean await(long timeoutNanos) throws InterruptedException {
+
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		while (!isDone()) {
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				return false;
+			}
+
+			wait(remaining / 1000000, (int)(remaining % 1000000));
+		}
+
+		return true;
+	}
+}
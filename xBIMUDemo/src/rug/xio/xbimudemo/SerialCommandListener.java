@@ -0,0 +1,9 @@
+package rug.xio.xbimudemo;
+
+// Listener for completed commands of a SerialCommandQueue
+public interface SerialCommandListener {
+
+	// Called once per command, on the read thread for replies and on the writer thread otherwise
+	void onCommandComplete(SerialCommand command);
+
+}
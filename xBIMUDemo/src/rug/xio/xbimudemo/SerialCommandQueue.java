@@ -0,0 +1,444 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+// Asynchronous command writer for an x-BIMU connection.
+//
+// Commands are queued by any thread and written by this thread, so callers
+// never block on the socket. Commands queued together are written as one
+// batch of up to MAX_BATCH_BYTES, and up to a window of commands may await a
+// reply at once. The x-BIMU answers every command with OK or ERROR in order,
+// so each reply, from the decoder's bus via onSerialMessage, completes the
+// oldest command sent.
+//
+// A command without a reply within the timeout is resent up to the retry
+// limit. As a late reply would then be matched with the wrong command, every
+// command awaiting a reply is queued again in order and writing pauses for
+// half the timeout, during which replies are ignored. Replies are only lost if
+// received bytes are lost, which an RFCOMM link does not do; if one is lost
+// anyway, the replies to the commands sent after it are matched one command
+// early until the timeout. Use a window of 1 where that matters.
+public class SerialCommandQueue extends Thread implements SerialMessageHandler {
+
+	// Default number of commands awaiting a reply at once
+	public static final int DEFAULT_WINDOW = 8;
+
+	// Default time to wait for a reply
+	public static final long DEFAULT_TIMEOUT_NANOS = 1000000000L;
+
+	// Default number of resends after a timeout
+	public static final int DEFAULT_RETRIES = 2;
+
+	// Maximum bytes per write, unless a single command is larger
+	public static final int MAX_BATCH_BYTES = 256;
+
+	private final SerialTransport mTransport;
+	private final int mWindow;
+	private final long mTimeoutNanos;
+	private final int mRetries;
+
+	private final Object mLock = new Object();
+
+	// Guarded by mLock
+	private final LinkedList<SerialCommand> mQueued = new LinkedList<SerialCommand>();
+	private final LinkedList<SerialCommand> mInFlight = new LinkedList<SerialCommand>();
+	private boolean mRunning = true;
+	private boolean mSettling = false;
+	private long mSettleEnd;
+
+	// Counters, guarded by mLock
+	private long mWrites;
+	private long mSentCommands;
+	private long mOkReplies;
+	private long mErrorReplies;
+	private long mUnexpectedReplies;
+	private long mTimeouts;
+	private long mRetried;
+	private long mFailed;
+	private long mLatencySum;
+	private long mLatencyMax;
+
+	private final byte[] mBatch = new byte[MAX_BATCH_BYTES];
+
+	private volatile IOException mFailure;
+
+	public SerialCommandQueue(SerialTransport transport) {
+		this(transport, DEFAULT_WINDOW, DEFAULT_TIMEOUT_NANOS, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param transport
+	 *            Transport to write to
+	 * @param window
+	 *            Maximum number of commands awaiting a reply at once
+	 * @param timeoutNanos
+	 *            Time to wait for a reply
+	 * @param retries
+	 *            Number of resends after a timeout
+	 */
+	public SerialCommandQueue(SerialTransport transport, int window, long timeoutNanos, int retries) {
+
+		super("SerialCommandQueue");
+
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1");
+		}
+
+		mTransport = transport;
+		mWindow = window;
+		mTimeoutNanos = timeoutNanos;
+		mRetries = retries;
+
+		setDaemon(true);
+	}
+
+	// Queue a command
+	public SerialCommand send(byte[] bytes) {
+		return send(bytes, null);
+	}
+
+	// Queue a command, the listener is called when it completes
+	public SerialCommand send(byte[] bytes, SerialCommandListener listener) {
+
+		SerialCommand command = new SerialCommand(bytes, listener, System.nanoTime());
+
+		synchronized (mLock) {
+			if (mRunning) {
+				mQueued.add(command);
+				mLock.notifyAll();
+				return command;
+			}
+
+			mFailed++;
+		}
+
+		command.complete(SerialCommand.STATE_Failed, System.nanoTime());
+
+		return command;
+	}
+
+	// Stop writing, commands not yet completed fail
+	public void shutdown() {
+		synchronized (mLock) {
+			mRunning = false;
+			mLock.notifyAll();
+		}
+	}
+
+	// A reply detected by the decoder, called on the read thread
+	@Override
+	public void onSerialMessage(int type, int length) {
+
+		long now = System.nanoTime();
+		SerialCommand command;
+
+		synchronized (mLock) {
+			command = mSettling ? null : mInFlight.poll();
+
+			if (command == null) {
+				mUnexpectedReplies++;
+				return;
+			}
+
+			long latency = now - command.getSendTime();
+
+			mLatencySum += latency;
+			mLatencyMax = Math.max(mLatencyMax, latency);
+
+			if (type == SerialDecoder.MESSAGE_OK) {
+				mOkReplies++;
+			}
+			else {
+				mErrorReplies++;
+			}
+
+			// A slot in the window is free
+			mLock.notifyAll();
+		}
+
+		command.complete(type == SerialDecoder.MESSAGE_OK ? SerialCommand.STATE_Ok : SerialCommand.STATE_Error, now);
+	}
+
+	@Override
+	public void run() {
+
+		List<SerialCommand> batch = new ArrayList<SerialCommand>();
+		List<SerialCommand> timedOut = new ArrayList<SerialCommand>();
+
+		try {
+			while (true) {
+				int length = 0;
+
+				batch.clear();
+				timedOut.clear();
+
+				synchronized (mLock) {
+					if (!awaitWork(timedOut)) {
+						break;
+					}
+
+					// Take the queued commands that fit the window and the batch, none while settling
+					while (!mSettling && !mQueued.isEmpty() && mInFlight.size() < mWindow) {
+						int size = mQueued.getFirst().getBytes().length;
+
+						if (!batch.isEmpty() && length + size > MAX_BATCH_BYTES) {
+							break;
+						}
+
+						SerialCommand command = mQueued.removeFirst();
+
+						batch.add(command);
+						mInFlight.add(command);
+						length += size;
+					}
+
+					// Mark as sent before writing, the reply may arrive before write returns
+					long now = System.nanoTime();
+
+					for (SerialCommand command : batch) {
+						command.onSent(now);
+					}
+
+					if (!batch.isEmpty()) {
+						mWrites++;
+						mSentCommands += batch.size();
+					}
+				}
+
+				completeAll(timedOut, SerialCommand.STATE_TimedOut);
+
+				// Woken only to complete timed out commands
+				if (batch.isEmpty()) {
+					continue;
+				}
+
+				if (batch.size() == 1) {
+					byte[] bytes = batch.get(0).getBytes();
+					mTransport.write(bytes, 0, bytes.length);
+				}
+				else {
+					int offset = 0;
+
+					for (SerialCommand command : batch) {
+						byte[] bytes = command.getBytes();
+						System.arraycopy(bytes, 0, mBatch, offset, bytes.length);
+						offset += bytes.length;
+					}
+
+					mTransport.write(mBatch, 0, offset);
+				}
+			}
+		}
+		catch (IOException e) {
+			mFailure = e;
+		}
+
+		// Fail whatever is left
+		List<SerialCommand> remaining = new ArrayList<SerialCommand>();
+
+		synchronized (mLock) {
+			mRunning = false;
+			remaining.addAll(mInFlight);
+			remaining.addAll(mQueued);
+			mInFlight.clear();
+			mQueued.clear();
+			mFailed += remaining.size();
+		}
+
+		completeAll(timedOut, SerialCommand.STATE_TimedOut);
+		completeAll(remaining, SerialCommand.STATE_Failed);
+	}
+
+	// Wait until commands can be written, handling timeouts meanwhile; returns false once shut down
+	private boolean awaitWork(List<SerialCommand> timedOut) {
+
+		while (mRunning) {
+			long now = System.nanoTime();
+			long wait = 0;
+
+			if (!mInFlight.isEmpty()) {
+				long deadline = mInFlight.getFirst().getSendTime() + mTimeoutNanos;
+
+				if (deadline - now <= 0) {
+					onTimeout(now, timedOut);
+					continue;
+				}
+
+				wait = deadline - now;
+			}
+
+			if (mSettling) {
+				if (mSettleEnd - now > 0) {
+					wait = mSettleEnd - now;
+				}
+				else {
+					mSettling = false;
+				}
+			}
+
+			if (!mSettling && !mQueued.isEmpty() && mInFlight.size() < mWindow) {
+				return true;
+			}
+
+			// Completions of timed out commands are not delayed by waiting
+			if (!timedOut.isEmpty()) {
+				return true;
+			}
+
+			try {
+				if (wait > 0) {
+					mLock.wait(wait / 1000000, (int)(wait % 1000000));
+				}
+				else {
+					mLock.wait();
+				}
+			} catch (InterruptedException e) {
+				mRunning = false;
+			}
+		}
+
+		return false;
+	}
+
+	// The oldest command has no reply, resend everything awaiting a reply after a pause
+	private void onTimeout(long now, List<SerialCommand> timedOut) {
+
+		mTimeouts++;
+
+		SerialCommand oldest = mInFlight.getFirst();
+
+		// Queue the commands awaiting a reply again, in their original order
+		while (!mInFlight.isEmpty()) {
+			SerialCommand command = mInFlight.removeLast();
+
+			if (command == oldest && command.getAttempts() > mRetries) {
+				timedOut.add(command);
+				continue;
+			}
+
+			command.onRetry();
+			mQueued.addFirst(command);
+			mRetried++;
+		}
+
+		mSettling = true;
+		mSettleEnd = now + mTimeoutNanos / 2;
+	}
+
+	private static void completeAll(List<SerialCommand> commands, int state) {
+
+		long now = System.nanoTime();
+
+		for (SerialCommand command : commands) {
+			command.complete(state, now);
+		}
+
+		commands.clear();
+	}
+
+	// The exception that stopped writing, null while writes succeed
+	public IOException getFailure() {
+		return mFailure;
+	}
+
+	// Commands waiting to be written
+	public int getQueued() {
+		synchronized (mLock) {
+			return mQueued.size();
+		}
+	}
+
+	// Commands written and awaiting a reply
+	public int getInFlight() {
+		synchronized (mLock) {
+			return mInFlight.size();
+		}
+	}
+
+	// Writes to the transport, each carrying one or more commands
+	public long getWrites() {
+		synchronized (mLock) {
+			return mWrites;
+		}
+	}
+
+	// Commands written, including resends
+	public long getSentCommands() {
+		synchronized (mLock) {
+			return mSentCommands;
+		}
+	}
+
+	// Replies matched with a command, by SerialDecoder.MESSAGE_ type
+	public long getReplies(int type) {
+		synchronized (mLock) {
+			return type == SerialDecoder.MESSAGE_OK ? mOkReplies : mErrorReplies;
+		}
+	}
+
+	// Replies without a command awaiting one, e.g. late replies after a timeout
+	public long getUnexpectedReplies() {
+		synchronized (mLock) {
+			return mUnexpectedReplies;
+		}
+	}
+
+	// Times the oldest command had no reply within the timeout
+	public long getTimeouts() {
+		synchronized (mLock) {
+			return mTimeouts;
+		}
+	}
+
+	// Commands queued again after a timeout
+	public long getRetried() {
+		synchronized (mLock) {
+			return mRetried;
+		}
+	}
+
+	// Commands failed because the connection failed or the queue was shut down
+	public long getFailed() {
+		synchronized (mLock) {
+			return mFailed;
+		}
+	}
+
+	// Mean time from write to reply
+	public long getMeanLatency() {
+		synchronized (mLock) {
+			long replies = mOkReplies + mErrorReplies;
+			return replies > 0 ? mLatencySum / replies : 0;
+		}
+	}
+
+	// Longest time from write to reply
+	public long getMaxLatency() {
+		synchronized (mLock) {
+			return mLatencyMax;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (mLock) {
+			long replies = mOkReplies + mErrorReplies;
+
+			return "writes=" + mWrites
+				+ " sent=" + mSentCommands
+				+ " ok=" + mOkReplies
+				+ " error=" + mErrorReplies
+				+ " unexpected=" + mUnexpectedReplies
+				+ " timeouts=" + mTimeouts
+				+ " retried=" + mRetried
+				+ " failed=" + mFailed
+				+ " meanLatency=" + (replies > 0 ? mLatencySum / replies : 0)
+				+ " maxLatency=" + mLatencyMax;
+		}
+	}
+}
@@ -5,4 +5,7 @@ public interface SerialConsumer {
 	// process all bytes
 	void reciveBytes(byte[] buffer, int bytes);
 
+	// discard partially processed bytes, the stream was interrupted, e.g. by a reconnection
+	void reset();
+
 }
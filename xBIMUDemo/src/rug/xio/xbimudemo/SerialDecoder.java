@@ -1,8 +1,6 @@
 package rug.xio.xbimudemo;
 
-import android.util.Log;
-
-class SerialDecoder implements SerialConsumer {
+class SerialDecoder implements TimedSerialConsumer {
 	
 	public static final int MESSAGE_OK = 1;
 	public static final int MESSAGE_Error = 2;
@@ -11,172 +9,599 @@ class SerialDecoder implements SerialConsumer {
 	public static final int PACKET_Thermometer = 5;
 	public static final int PACKET_Battery = 6;
 	
+	// Protocol modes
+	public static final int MODE_Auto = 0;		// detect binary or ASCII framing from valid checksums
+	public static final int MODE_Binary = 1;	// decode binary packets only
+	public static final int MODE_ASCII = 2;		// decode ASCII packets only
+	
+	/// <summary>
+    /// Decode all bytes in a buffer received from the data stream. The buffer is scanned
+    /// once per active decoder; only a partial binary packet at the end of the buffer is
+    /// carried over to the next call. OK and ERROR replies are detected in every mode.
+    /// </summary>
+    /// <param name="buffer">
+    /// Buffer holding the received bytes.
+    /// </param>
+    /// <param name="bytes">
+    /// Number of bytes received, starting at index 0.
+    /// </param>
 	@Override
 	public void reciveBytes(byte[] buffer, int bytes) {
-		for (int i = 0; i < bytes; i++) { 
-			ProcessNewByte(buffer[i]); 
-		}
+		reciveBytes(buffer, bytes, System.nanoTime());
 	}
 
-	
 	/// <summary>
-    /// Process new byte in data stream to decode ASCII and binary packets and detect the OK string.
+    /// Decode all bytes in a buffer with a given receive time, e.g. when replaying a recording.
     /// </summary>
-    /// <param name="newByte">
-    /// Newest byte received within data stream.
+    /// <param name="receiveTime">
+    /// Receive time of the buffer in nanoseconds (System.nanoTime clock).
     /// </param>
-    public void ProcessNewByte(byte newByte) {
+	@Override
+	public void reciveBytes(byte[] buffer, int bytes, long receiveTime) {
+		
+		this.receiveTime = receiveTime;
+		
+		UpdateActiveMode();
+		
+		long failures = statistics.checksumFailures;
+		
+		switch (activeMode) {
+		case MODE_Binary:
+			DecodeBinary(buffer, 0, bytes);
+			ProbeOtherFraming(buffer, bytes, statistics.checksumFailures != failures || binFailureRun > 0);
+			break;
+		case MODE_ASCII:
+			DecodeASCII(buffer, 0, bytes);
+			ProbeOtherFraming(buffer, bytes, statistics.checksumFailures != failures || asciiFailureRun > 0);
+			break;
+		default:
+			DecodeASCII(buffer, 0, bytes);
+			DecodeBinary(buffer, 0, bytes);
+			break;
+		}
+		
+		if (activeMode != MODE_Auto && probedMode == MODE_Auto) {
+			AppendHistory(buffer, bytes);
+		}
+		else {
+			historyLength = 0;
+		}
+		
+		DetectOK(buffer, 0, bytes);
+		
+		statistics.bytes += bytes;
+		statistics.publish();
+		
+		quaternionSequence.publish();
+		sensorsSequence.publish();
+		batterySequence.publish();
+		thermometerSequence.publish();
+		
+		quaternionClock.publish();
+		sensorsClock.publish();
+		batteryClock.publish();
+		thermometerClock.publish();
+	}
+
+    /// <summary>
+    /// Identifier of the device decoded by this decoder, set on every packet.
+    /// </summary>
+    private volatile int deviceId = 0;
+
+    /// <summary>
+    /// Set the identifier of the device decoded by this decoder.
+    /// </summary>
+    public void setDeviceId(int deviceId) {
+    	this.deviceId = deviceId;
+    }
+
+    public int getDeviceId() {
+    	return deviceId;
+    }
+
+    /// <summary>
+    /// Receive time of the buffer being decoded.
+    /// </summary>
+    private long receiveTime = 0;
+
+    /// <summary>
+    /// Packet counter trackers for each packet type.
+    /// </summary>
+    private final PacketSequenceTracker quaternionSequence = new PacketSequenceTracker();
+    private final PacketSequenceTracker sensorsSequence = new PacketSequenceTracker();
+    private final PacketSequenceTracker batterySequence = new PacketSequenceTracker();
+    private final PacketSequenceTracker thermometerSequence = new PacketSequenceTracker();
+
+    /// <summary>
+    /// Get the packet loss, jitter and rate tracker for a packet type.
+    /// </summary>
+    /// <param name="type">
+    /// One of the PACKET_ constants.
+    /// </param>
+    public PacketSequenceTracker getSequenceTracker(int type) {
     	
-        DecodeASCII((char)newByte);
-        DecodeBinary(newByte);
-        DetectOK(newByte);
+    	switch (type) {
+    	case PACKET_Quaternion: return quaternionSequence;
+    	case PACKET_Sensors: return sensorsSequence;
+    	case PACKET_Battery: return batterySequence;
+    	case PACKET_Thermometer: return thermometerSequence;
+    	default: throw new IllegalArgumentException("Unknown packet type " + type);
+    	}
     }
 
     /// <summary>
-    /// Buffer for detecting "OK\r".
+    /// Sample clocks for each packet type, estimating per-packet sample times.
     /// </summary>
-    private byte[] okBuf = new byte[256];
+    private final PacketClock quaternionClock = new PacketClock();
+    private final PacketClock sensorsClock = new PacketClock();
+    private final PacketClock batteryClock = new PacketClock();
+    private final PacketClock thermometerClock = new PacketClock();
 
     /// <summary>
-    /// Buffer index for detecting "OK\r".
+    /// Get the sample clock for a packet type, e.g. to set its nominal rate or read its drift.
     /// </summary>
-    private int okBufIndex = 0;
+    /// <param name="type">
+    /// One of the PACKET_ constants.
+    /// </param>
+    public PacketClock getClock(int type) {
+    	
+    	switch (type) {
+    	case PACKET_Quaternion: return quaternionClock;
+    	case PACKET_Sensors: return sensorsClock;
+    	case PACKET_Battery: return batteryClock;
+    	case PACKET_Thermometer: return thermometerClock;
+    	default: throw new IllegalArgumentException("Unknown packet type " + type);
+    	}
+    }
 
-    // unsigned byte to int 
-    private int ToInt(byte b) { 
+    /// <summary>
+    /// Timestamp a decoded packet and update its sequence tracker and the statistics.
+    /// </summary>
+    private void TrackPacket(SerialPacket packet, PacketSequenceTracker tracker, PacketClock clock) {
     	
-    	return b & 0xFF;
+    	packet.deviceId = deviceId;
+    	packet.receiveTime = receiveTime;
+    	packet.timestamp = clock.onPacket(packet.counter, receiveTime);
     	
+    	statistics.onPacket(packet.type, tracker.onPacket(packet.counter, receiveTime));
     }
-    
-    // int to unsigned byte with overflow
-    private byte ToByte(int i) { 
+
+    /// <summary>
+    /// Health counters, updated by the decoding thread and readable from any thread.
+    /// </summary>
+    private final SerialDecoderStatistics statistics = new SerialDecoderStatistics();
+
+    /// <summary>
+    /// Get the decoder health counters.
+    /// </summary>
+    public SerialDecoderStatistics getStatistics() {
+    	return statistics;
+    }
+
+    /// <summary>
+    /// Protocol mode requested by the user.
+    /// </summary>
+    private volatile int mode = MODE_Auto;
+
+    /// <summary>
+    /// Protocol currently decoded, MODE_Auto while probing for the framing in use.
+    /// </summary>
+    private volatile int activeMode = MODE_Auto;
+
+    /// <summary>
+    /// Number of consecutive valid packets required to lock onto a framing.
+    /// </summary>
+    private volatile int lockPackets = 3;
+
+    /// <summary>
+    /// Number of consecutive checksum failures after which a locked framing is probed again.
+    /// </summary>
+    private volatile int reprobeFailures = 8;
+
+    /// <summary>
+    /// Valid packets in a row and checksum failures in a row for each framing.
+    /// </summary>
+    private int binValidRun = 0;
+    private int binFailureRun = 0;
+    private int asciiValidRun = 0;
+    private int asciiFailureRun = 0;
+
+    /// <summary>
+    /// Framing decoded alongside the locked framing since its last failure, MODE_Auto if none.
+    /// </summary>
+    private int probedMode = MODE_Auto;
+
+    /// <summary>
+    /// Number of bytes kept for a probe, enough for the longest ASCII line.
+    /// </summary>
+    private static final int HISTORY_LENGTH = 128;
+
+    /// <summary>
+    /// Last bytes of the data stream not decoded with the framing that is not locked, as a
+    /// ring, so a probe also decodes the packets that arrived just before the failure.
+    /// </summary>
+    private final byte[] history = new byte[HISTORY_LENGTH];
+    private final byte[] historyCopy = new byte[HISTORY_LENGTH];
+    private int historyLength = 0;
+    private int historyIndex = 0;
+
+    /// <summary>
+    /// Parser failure count when last checked.
+    /// </summary>
+    private long asciiFailedLines = 0;
+
+    /// <summary>
+    /// Discard partially received packets and restart the packet counter trackers and clocks,
+    /// e.g. after a reconnection or when a replay is moved, so bytes from before and after the
+    /// break are not joined.
+    /// Subscribers, statistics and the protocol mode are kept. Call it on the decoding thread,
+    /// between buffers.
+    /// </summary>
+	@Override
+    public void reset() {
+    	
+    	binCarryLength = 0;
+    	inSync = false;
+    	okWindow = 0;
+    	asciiParser.reset();
     	
-    	return (byte)Overflow(i);
+    	quaternionSequence.restart();
+    	sensorsSequence.restart();
+    	batterySequence.restart();
+    	thermometerSequence.restart();
+    	
+    	quaternionClock.restart();
+    	sensorsClock.restart();
+    	batteryClock.restart();
+    	thermometerClock.restart();
     }
-    
-    // overflow an int as if it were an unsigned byte
-    private int Overflow(int i) { 
-    	int v = i; 
+
+    /// <summary>
+    /// Set the protocol mode, takes effect from the next buffer received.
+    /// </summary>
+    /// <param name="mode">
+    /// MODE_Auto, MODE_Binary or MODE_ASCII.
+    /// </param>
+    public void setMode(int mode) {
     	
-    	while (v < 0) { v += 256; } 
+    	if (mode != MODE_Auto && mode != MODE_Binary && mode != MODE_ASCII) {
+    		throw new IllegalArgumentException("Unknown protocol mode " + mode);
+    	}
     	
-    	return v % 256;
+    	this.mode = mode;
     }
-    
+
+    /// <summary>
+    /// Get the protocol mode requested with setMode.
+    /// </summary>
+    public int getMode() {
+    	return mode;
+    }
+
+    /// <summary>
+    /// Get the protocol currently decoded: MODE_Binary or MODE_ASCII, or MODE_Auto while
+    /// auto-detect is still probing.
+    /// </summary>
+    public int getActiveMode() {
+    	return activeMode;
+    }
+
+    /// <summary>
+    /// Set the number of consecutive valid packets auto-detect requires to lock onto a framing.
+    /// </summary>
+    public void setLockPackets(int packets) {
+    	
+    	if (packets < 1) {
+    		throw new IllegalArgumentException("Lock packets must be at least 1");
+    	}
+    	
+    	lockPackets = packets;
+    }
+
+    /// <summary>
+    /// Set the number of consecutive checksum failures after which auto-detect probes both
+    /// framings again.
+    /// </summary>
+    public void setReprobeFailures(int failures) {
+    	
+    	if (failures < 1) {
+    		throw new IllegalArgumentException("Reprobe failures must be at least 1");
+    	}
+    	
+    	reprobeFailures = failures;
+    }
+
+    /// <summary>
+    /// Apply the requested mode, and in auto-detect lock onto or release a framing.
+    /// </summary>
+    private void UpdateActiveMode() {
+    	
+    	int requested = mode;
+    	int next = activeMode;
+    	
+    	if (requested != MODE_Auto) {
+    		next = requested;
+    	}
+    	else if (activeMode == MODE_Auto) {
+    		if (binValidRun >= lockPackets && binValidRun >= asciiValidRun) {
+    			next = MODE_Binary;
+    		}
+    		else if (asciiValidRun >= lockPackets) {
+    			next = MODE_ASCII;
+    		}
+    	}
+    	else if (activeMode == MODE_Binary && asciiValidRun >= lockPackets && asciiValidRun > binValidRun) {
+    		next = MODE_ASCII;
+    	}
+    	else if (activeMode == MODE_ASCII && binValidRun >= lockPackets && binValidRun > asciiValidRun) {
+    		next = MODE_Binary;
+    	}
+    	else if ((activeMode == MODE_Binary ? binFailureRun : asciiFailureRun) >= reprobeFailures) {
+    		next = MODE_Auto;
+    	}
+    	
+    	if (next == activeMode) {
+    		return;
+    	}
+    	
+    	// A decoder that stops running discards its partial packet
+    	if (next == MODE_ASCII) {
+    		binCarryLength = 0;
+    	}
+    	
+    	if (next == MODE_Binary) {
+    		asciiParser.reset();
+    	}
+    	
+    	inSync = false;
+    	probedMode = MODE_Auto;
+    	historyLength = 0;
+    	quaternionSequence.restart();
+    	sensorsSequence.restart();
+    	batterySequence.restart();
+    	thermometerSequence.restart();
+    	binValidRun = 0;
+    	binFailureRun = 0;
+    	asciiValidRun = 0;
+    	asciiFailureRun = 0;
+    	activeMode = next;
+    }
+
     /// <summary>
-    /// Detect "OK/r" in data stream.
+    /// In auto-detect, decode a buffer with the framing that is not locked while the locked
+    /// framing fails, so the packets after a framing switch are decoded as before locking
+    /// and the switch is detected from them.
+    /// </summary>
+    /// <param name="failing">
+    /// true if the locked framing failed in this buffer or has not recovered since.
+    /// </param>
+    private void ProbeOtherFraming(byte[] buffer, int bytes, boolean failing) {
+    	
+    	int other = activeMode == MODE_Binary ? MODE_ASCII : MODE_Binary;
+    	
+    	if (mode != MODE_Auto || !failing) {
+    		probedMode = MODE_Auto;
+    		return;
+    	}
+    	
+    	// Start from a clean state with the last bytes before this buffer
+    	if (probedMode != other) {
+    		int start = (historyIndex - historyLength + HISTORY_LENGTH) % HISTORY_LENGTH;
+    		int first = Math.min(historyLength, HISTORY_LENGTH - start);
+    		
+    		System.arraycopy(history, start, historyCopy, 0, first);
+    		System.arraycopy(history, 0, historyCopy, first, historyLength - first);
+    		
+    		if (other == MODE_ASCII) {
+    			asciiParser.reset();
+    			asciiValidRun = 0;
+    			DecodeASCII(historyCopy, 0, historyLength);
+    		}
+    		else {
+    			binCarryLength = 0;
+    			binValidRun = 0;
+    			DecodeBinary(historyCopy, 0, historyLength);
+    		}
+    		
+    		probedMode = other;
+    	}
+    	
+    	if (other == MODE_ASCII) {
+    		DecodeASCII(buffer, 0, bytes);
+    	}
+    	else {
+    		DecodeBinary(buffer, 0, bytes);
+    	}
+    }
+
+    /// <summary>
+    /// Keep the last HISTORY_LENGTH bytes of the data stream for a probe.
+    /// </summary>
+    private void AppendHistory(byte[] buffer, int bytes) {
+    	
+    	int offset = Math.max(0, bytes - HISTORY_LENGTH);
+    	
+    	while (offset < bytes) {
+    		int count = Math.min(bytes - offset, HISTORY_LENGTH - historyIndex);
+    		
+    		System.arraycopy(buffer, offset, history, historyIndex, count);
+    		offset += count;
+    		historyIndex = (historyIndex + count) % HISTORY_LENGTH;
+    	}
+    	
+    	historyLength = Math.min(HISTORY_LENGTH, historyLength + bytes);
+    }
+
+	/// <summary>
+    /// Buffer used to process a single byte.
+    /// </summary>
+    private final byte[] singleByte = new byte[1];
+
+	/// <summary>
+    /// Process new byte in data stream to decode ASCII and binary packets and detect the OK string.
     /// </summary>
     /// <param name="newByte">
     /// Newest byte received within data stream.
     /// </param>
-    private void DetectOK(byte newByte) {    	
+    public void ProcessNewByte(byte newByte) {
     	
-        okBuf[okBufIndex] = newByte;
-        
-        // increment the buffer index (with overflow)
-        okBufIndex = Overflow(okBufIndex + 1); 
-        
-        if (okBuf[Overflow(okBufIndex - 3)] == 'O' &&
-            okBuf[Overflow(okBufIndex - 2)] == 'K' &&
-            okBuf[Overflow(okBufIndex - 1)] == '\r') {
-        	
-            OnOKReceived(3);
-        }
-        
-        if (okBuf[Overflow(okBufIndex - 6)] == 'E' &&
-            okBuf[Overflow(okBufIndex - 5)] == 'R' &&
-            okBuf[Overflow(okBufIndex - 4)] == 'R' &&
-            okBuf[Overflow(okBufIndex - 3)] == 'O' &&
-            okBuf[Overflow(okBufIndex - 2)] == 'R' &&
-            okBuf[Overflow(okBufIndex - 1)] == ' ') {
-        	
-            OnErrorReceived(6);
-        }
+    	singleByte[0] = newByte;
+    	
+    	reciveBytes(singleByte, 1);
     }
 
     /// <summary>
-    /// Buffer used for decoding ASCII packets.
+    /// Last six bytes received, most recent in the least significant byte.
+    /// </summary>
+    private long okWindow = 0;
+
+    /// <summary>
+    /// "OK\r" and "ERROR " as they appear in the okWindow.
     /// </summary>
-    private String asciiBuf = "";
+    private static final long OK_PATTERN = ('O' << 16) | ('K' << 8) | '\r';
+    private static final long OK_MASK = 0xFFFFFFL;
+    private static final long ERROR_PATTERN = ((long)'E' << 40) | ((long)'R' << 32) | ((long)'R' << 24) | ('O' << 16) | ('R' << 8) | ' ';
+    private static final long ERROR_MASK = 0xFFFFFFFFFFFFL;
+
+    /// <summary>
+    /// Detect "OK/r" and "ERROR " in data stream.
+    /// </summary>
+    private void DetectOK(byte[] buffer, int offset, int end) {
+    	
+    	long window = okWindow;
+    	
+    	for (int i = offset; i < end; i++) {
+    		byte newByte = buffer[i];
+    		
+    		window = (window << 8) | (newByte & 0xFF);
+    		
+    		if (newByte == '\r') {
+    			if ((window & OK_MASK) == OK_PATTERN) {
+    				OnOKReceived(3);
+    			}
+    		}
+    		else if (newByte == ' ') {
+    			if ((window & ERROR_MASK) == ERROR_PATTERN) {
+    				OnErrorReceived(6);
+    			}
+    		}
+    	}
+    	
+    	okWindow = window;
+    }
+
+    /// <summary>
+    /// Streaming parser used for decoding ASCII packets.
+    /// </summary>
+    private final AsciiPacketParser asciiParser = new AsciiPacketParser();
 
     /// <summary>
     /// Decodes ASCII packets within data stream.
     /// </summary>
-    /// <param name="newByte">
-    /// Newest byte received within data stream.
-    /// </param>
-    private void DecodeASCII(char newChar)
+    private void DecodeASCII(byte[] buffer, int offset, int end) {
+    	
+    	AsciiPacketParser parser = asciiParser;
+    	int index = offset;
+    	
+    	while (index < end) {
+    		index = parser.processBytes(buffer, index, end);
+    		
+    		// Count lines that failed since the last packet
+    		long failedLines = parser.getFailedLines();
+    		
+    		if (failedLines != asciiFailedLines) {
+    			int failures = (int)(failedLines - asciiFailedLines);
+    			
+    			statistics.checksumFailures += failures;
+    			asciiFailureRun += failures;
+    			asciiValidRun = 0;
+    			asciiFailedLines = failedLines;
+    		}
+    		
+    		if (parser.isComplete()) {
+    			if (DecodeASCIIPacket()) {
+    				asciiValidRun++;
+    				asciiFailureRun = 0;
+    			}
+    		}
+    	}
+    }
+
+    /// <summary>
+    /// Decodes the ASCII packet completed by the parser.
+    /// </summary>
+    /// <returns>
+    /// true if the packet was a known packet type.
+    /// </returns>
+    private boolean DecodeASCIIPacket()
     {
-        if (newChar == '\r') {
-            try {
-                // Split string to comma separated variables
-                String[] vars = asciiBuf.split(",");
-
-                // Validate checksum (http://en.wikipedia.org/wiki/Longitudinal_redundancy_check)
-                byte checksum = 0;
-                
-                for (int i = 0; i <= asciiBuf.lastIndexOf(','); i++) {   // checksum does not include checksum characters               
-                    checksum ^= (byte)asciiBuf.charAt(i);
-                }
-                
-                if (ToInt(checksum) != ToInt(Byte.parseByte(vars[vars.length - 1]))) {
-                    throw new Exception();  // checksum failed
-                }
-
-                // Decode according to packet header
-                String ident = vars[0];  
-                
-            	if (ident.equals("Q")) {
-            		
-                    OnQuaternionReceived(asciiBuf.length() + 1, 
-                		new int[] { 
-                			Integer.parseInt(vars[1]), /* quaternion elements 0, 1, 2, 3   */
-                			Integer.parseInt(vars[2]), 
-                			Integer.parseInt(vars[3]), 
-                			Integer.parseInt(vars[4]),  
-                			Integer.parseInt(vars[5])  	/* counter                          */
-                	});
-            	}
-            	else if (ident.equals("S")) {
-            		
-            		OnSensorsReceived(asciiBuf.length() + 1, 
-        				new int[] { 
-	            			Integer.parseInt(vars[1]),  /* gyroscope, X, Y, Z axes      */
-	            			Integer.parseInt(vars[2]), 
-	            			Integer.parseInt(vars[3]),
-	                                                      
-	            			Integer.parseInt(vars[4]), /* acceleroemter, X, Y, Z axes  */
-	            			Integer.parseInt(vars[5]), 
-	            			Integer.parseInt(vars[6]), 
-	                                                      
-	            			Integer.parseInt(vars[7]), /* magnetometer, X, Y, Z axes   */
-	            			Integer.parseInt(vars[8]), 
-	            			Integer.parseInt(vars[9]), 
-	                                                      
-	            			Integer.parseInt(vars[10]) /* counter                      */
-        			});                                         
-            	}
-            	else if (ident.equals("B")) {
-            		
-            		OnBatteryReceived(asciiBuf.length() + 1,
-        				new int[] { 
-	            			Integer.parseInt(vars[1]),	/* battery voltage */
-	            			Integer.parseInt(vars[2])	/* counter          */ 
-            		});  
-            	}
-            	else {
-            		throw new Exception();
-                }
+        AsciiPacketParser parser = asciiParser;
+        int fieldCount = parser.getFieldCount();
+
+        // Decode according to packet header
+        switch (parser.getIdent()) {
+        case 'Q':
+            if (fieldCount >= 5) {
+                QuaternionPacket packet = mQuaternionPacket;
+
+                packet.length = parser.getLength();
+                packet.element0 = parser.getField(0);	/* quaternion elements 0, 1, 2, 3   */
+                packet.element1 = parser.getField(1);
+                packet.element2 = parser.getField(2);
+                packet.element3 = parser.getField(3);
+                packet.counter = parser.getField(4);	/* counter                          */
+
+                OnQuaternionReceived(packet);
+                return true;
             }
-            catch (Exception ex) { }
-            
-            asciiBuf = "";
-        }
-        else
-        {
-            asciiBuf += newChar;
+            break;
+        case 'S':
+            if (fieldCount >= 10) {
+                SensorsPacket packet = mSensorsPacket;
+
+                packet.length = parser.getLength();
+                packet.gyroscopeX = parser.getField(0);		/* gyroscope, X, Y, Z axes      */
+                packet.gyroscopeY = parser.getField(1);
+                packet.gyroscopeZ = parser.getField(2);
+                packet.accelerometerX = parser.getField(3);	/* acceleroemter, X, Y, Z axes  */
+                packet.accelerometerY = parser.getField(4);
+                packet.accelerometerZ = parser.getField(5);
+                packet.magnetometerX = parser.getField(6);	/* magnetometer, X, Y, Z axes   */
+                packet.magnetometerY = parser.getField(7);
+                packet.magnetometerZ = parser.getField(8);
+                packet.counter = parser.getField(9);		/* counter                      */
+
+                OnSensorsReceived(packet);
+                return true;
+            }
+            break;
+        case 'B':
+            if (fieldCount >= 2) {
+                BatteryPacket packet = mBatteryPacket;
+
+                packet.length = parser.getLength();
+                packet.voltage = parser.getField(0);	/* battery voltage */
+                packet.counter = parser.getField(1);	/* counter          */
+
+                OnBatteryReceived(packet);
+                return true;
+            }
+            break;
+        case 'T':
+            if (fieldCount >= 2) {
+                ThermometerPacket packet = mThermometerPacket;
+
+                packet.length = parser.getLength();
+                packet.temperature = parser.getField(0);	/* temperature */
+                packet.counter = parser.getField(1);		/* counter     */
+
+                OnThermometerReceived(packet);
+                return true;
+            }
+            break;
         }
+
+        return false;
     }
 
 
@@ -188,6 +613,7 @@ class SerialDecoder implements SerialConsumer {
         Quaterion (11),
         Sensor (21),
         Battery (5),
+        Thermometer (5),
         Max (21);    /* maximum packet length of all packet types */
         
         PacketLengths(int value) {    	
@@ -200,14 +626,15 @@ class SerialDecoder implements SerialConsumer {
     }
 
     /// <summary>
-    /// Buffer used for decoding binary packets.
+    /// Bytes carried over from the end of the previous buffer that may be the start of a
+    /// binary packet, followed by the start of the next buffer while they are decoded.
     /// </summary>
-    private byte[] binBuf = new byte[256];
+    private final byte[] binCarry = new byte[2 * PacketLengths.Max.getValue()];
 
     /// <summary>
-    /// Buffer index for decoding binary packets.
+    /// Number of bytes carried over in binCarry.
     /// </summary>
-    private int binBufIndex = 0;
+    private int binCarryLength = 0;
 
     /// <summary>
     /// Flag indicating is binary decoding is in sync.
@@ -215,107 +642,205 @@ class SerialDecoder implements SerialConsumer {
     private boolean inSync = false;
 
     /// <summary>
-    /// Number of bytes received since assumed header byte.
+    /// Decodes binary packets within data stream.
     /// </summary>
-    private int byteCount = 0;
+    private void DecodeBinary(byte[] buffer, int offset, int end) {
+    	
+    	int index = offset;
+    	
+    	// Finish decoding any bytes carried over from the previous buffer
+    	if (binCarryLength > 0) {
+    		int carried = binCarryLength;
+    		int copied = Math.min(end - offset, PacketLengths.Max.getValue());
+    		
+    		System.arraycopy(buffer, offset, binCarry, carried, copied);
+    		
+    		int position = ScanBinary(binCarry, 0, carried + copied, carried);
+    		
+    		if (position < carried) {
+    			// Still waiting for the rest of a packet, all of this buffer was copied
+    			binCarryLength = carried + copied - position;
+    			System.arraycopy(binCarry, position, binCarry, 0, binCarryLength);
+    			return;
+    		}
+    		
+    		binCarryLength = 0;
+    		index = offset + position - carried;
+    	}
+    	
+    	int position = ScanBinary(buffer, index, end, end);
+    	
+    	// Carry over a possible partial packet at the end of the buffer
+    	if (position < end) {
+    		binCarryLength = end - position;
+    		System.arraycopy(buffer, position, binCarry, 0, binCarryLength);
+    	}
+    }
 
     /// <summary>
-    /// Decodes data packets within data stream.
+    /// Scan a contiguous range of the data stream for binary packets.
     /// </summary>
-    /// <param name="newByte">
-    /// Newest byte received within data stream.
+    /// <param name="buffer">
+    /// Buffer holding the data stream.
+    /// </param>
+    /// <param name="start">
+    /// Index of the first byte to scan.
+    /// </param>
+    /// <param name="end">
+    /// Index after the last byte available.
     /// </param>
-    private void DecodeBinary(byte newByte) {
+    /// <param name="limit">
+    /// Scanning stops at the first packet start position at or after this index.
+    /// </param>
+    /// <returns>
+    /// Index of the first position before limit that needs more bytes to be decoded, or
+    /// the index after the last byte scanned if all positions before limit were decoded.
+    /// </returns>
+    private int ScanBinary(byte[] buffer, int start, int end, int limit) {
     	
-        // Add new byte to buffer
-        binBuf[binBufIndex] = newByte;
-
-        binBufIndex = Overflow(binBufIndex + 1); 
-        
-        // Check if out of sync
-        byteCount++;
-        
-        if (byteCount > (int)PacketLengths.Max.getValue()) {
-        	
-            byteCount = (int)PacketLengths.Max.getValue(); // prevent overflow
-            inSync = false;
-        }
+    	int position = start;
+    	
+    	while (position < limit) {
+    		int length = binPacketLengths[buffer[position] & 0xFF];
+    		
+    		if (length == 0) {
+    			position++;
+    			continue;
+    		}
+    		
+    		if (position + length > end) {
+    			break;
+    		}
+    		
+    		if (CalcChecksum(buffer, position, length) != 0) {
+    			statistics.checksumFailures++;
+    			binValidRun = 0;
+    			binFailureRun++;
+    			position++;
+    			continue;
+    		}
+    		
+    		if (position != start) {
+    			statistics.discardedBytes += position - start;
+    			inSync = false;
+    		}
+    		
+    		if (!inSync) {
+    			statistics.resyncs++;
+    		}
+    		
+    		DecodeBinaryPacket(buffer, position);
+    		
+    		binValidRun++;
+    		binFailureRun = 0;
+    		inSync = true;
+    		position += length;
+    		start = position;
+    	}
+    	
+    	if (position != start) {
+    		statistics.discardedBytes += position - start;
+    		inSync = false;
+    	}
+    	
+    	return position;
+    }
 
-        // Decode quaternion packet
-        if (binBufIndex >= (byte)PacketLengths.Quaterion.getValue()) {
-        	
-            if ((inSync ? (char)binBuf[0] : (char)binBuf[binBufIndex - (byte)PacketLengths.Quaterion.getValue()]) == 'Q') {
-            	
-                if (CalcChecksum((byte)PacketLengths.Quaterion.getValue()) == 0) {
-                	
-                    OnQuaternionReceived((int)PacketLengths.Quaterion.getValue(), 
-                    	new int[] { 
-                			(short)((ToInt(binBuf[Overflow(binBufIndex - 10)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 9)])),    	/* quaternion element 0 */
-                            (short)((ToInt(binBuf[Overflow(binBufIndex - 8)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 7)])),     	/* quaternion element 1 */
-                            (short)((ToInt(binBuf[Overflow(binBufIndex - 6)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 5)])),     	/* quaternion element 2 */
-                            (short)((ToInt(binBuf[Overflow(binBufIndex - 4)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 3)])),     	/* quaternion element 3 */
-                            ToInt(binBuf[Overflow(binBufIndex - 2)])                                    		/* counter              */
-                    }); 
-                    
-                    binBufIndex = 0;
-                    byteCount = 0;
-                    inSync = true;
-                }
-            }
-        }
+    /// <summary>
+    /// Length of the binary packet for each header byte, zero if the byte is not a packet header.
+    /// </summary>
+    private static final int[] binPacketLengths = new int[256];
+    
+    static {
+    	binPacketLengths['Q'] = PacketLengths.Quaterion.getValue();
+    	binPacketLengths['S'] = PacketLengths.Sensor.getValue();
+    	binPacketLengths['B'] = PacketLengths.Battery.getValue();
+    	binPacketLengths['T'] = PacketLengths.Thermometer.getValue();
+    }
 
-        // Decode sensor packet
-        if (binBufIndex >= (byte)PacketLengths.Sensor.getValue()) {
-        	
-            if ((inSync ? (char)binBuf[0] : (char)binBuf[Overflow(binBufIndex - (byte)PacketLengths.Sensor.getValue())]) == 'S') {
-            	
-                if (CalcChecksum((byte)PacketLengths.Sensor.getValue()) == 0) {
-                	
-                    OnSensorsReceived((int)PacketLengths.Sensor.getValue(), 
-                    	new int[] { 
-                    		(short)((ToInt(binBuf[Overflow(binBufIndex - 20)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 19)])),  	/* gyroscope X axis     */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 18)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 17)])),  	/* gyroscope Y axis     */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 16)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 15)])),  	/* gyroscope Z axis     */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 14)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 13)])),  	/* accelerometer X axis */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 12)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 11)])),  	/* accelerometer Y axis */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 10)]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 9 )])),  	/* accelerometer Z axis */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 8 )]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 7 )])),   	/* magnetometer X axis  */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 6 )]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 5 )])),   	/* magnetometer Y axis  */
-		                    (short)((ToInt(binBuf[Overflow(binBufIndex - 4 )]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 3 )])),   	/* magnetometer Z axis  */
-		                    ToInt(binBuf[Overflow(binBufIndex - 2)])                                     		/* counter              */
-                    });    		
-                    
-                    binBufIndex = 0;
-                    byteCount = 0;
-                    inSync = true;
-                }
-            }
-        }
+    /// <summary>
+    /// Decodes a binary packet with a valid checksum.
+    /// </summary>
+    /// <param name="buffer">
+    /// Buffer holding the packet.
+    /// </param>
+    /// <param name="index">
+    /// Index of the packet header.
+    /// </param>
+    private void DecodeBinaryPacket(byte[] buffer, int index) {
+    	
+    	switch (buffer[index]) {
+    	case 'Q': {
+    		QuaternionPacket packet = mQuaternionPacket;
+    		
+    		packet.length = PacketLengths.Quaterion.getValue();
+    		packet.element0 = ReadShort(buffer, index + 1);		/* quaternion element 0 */
+    		packet.element1 = ReadShort(buffer, index + 3);		/* quaternion element 1 */
+    		packet.element2 = ReadShort(buffer, index + 5);		/* quaternion element 2 */
+    		packet.element3 = ReadShort(buffer, index + 7);		/* quaternion element 3 */
+    		packet.counter = buffer[index + 9] & 0xFF;			/* counter              */
+    		
+    		OnQuaternionReceived(packet);
+    		break;
+    	}
+    	case 'S': {
+    		SensorsPacket packet = mSensorsPacket;
+    		
+    		packet.length = PacketLengths.Sensor.getValue();
+    		packet.gyroscopeX = ReadShort(buffer, index + 1);		/* gyroscope X axis     */
+    		packet.gyroscopeY = ReadShort(buffer, index + 3);		/* gyroscope Y axis     */
+    		packet.gyroscopeZ = ReadShort(buffer, index + 5);		/* gyroscope Z axis     */
+    		packet.accelerometerX = ReadShort(buffer, index + 7);	/* accelerometer X axis */
+    		packet.accelerometerY = ReadShort(buffer, index + 9);	/* accelerometer Y axis */
+    		packet.accelerometerZ = ReadShort(buffer, index + 11);	/* accelerometer Z axis */
+    		packet.magnetometerX = ReadShort(buffer, index + 13);	/* magnetometer X axis  */
+    		packet.magnetometerY = ReadShort(buffer, index + 15);	/* magnetometer Y axis  */
+    		packet.magnetometerZ = ReadShort(buffer, index + 17);	/* magnetometer Z axis  */
+    		packet.counter = buffer[index + 19] & 0xFF;				/* counter              */
+    		
+    		OnSensorsReceived(packet);
+    		break;
+    	}
+    	case 'B': {
+    		BatteryPacket packet = mBatteryPacket;
+    		
+    		packet.length = PacketLengths.Battery.getValue();
+    		packet.voltage = ReadShort(buffer, index + 1);		/* battery voltage  */
+    		packet.counter = buffer[index + 3] & 0xFF;			/* counter          */
+    		
+    		OnBatteryReceived(packet);
+    		break;
+    	}
+    	case 'T': {
+    		ThermometerPacket packet = mThermometerPacket;
+    		
+    		packet.length = PacketLengths.Thermometer.getValue();
+    		packet.temperature = ReadShort(buffer, index + 1);	/* temperature  */
+    		packet.counter = buffer[index + 3] & 0xFF;			/* counter      */
+    		
+    		OnThermometerReceived(packet);
+    		break;
+    	}
+    	}
+    }
 
-        // Decode battery packet
-        if (binBufIndex >= (byte)PacketLengths.Battery.getValue()) {
-        	
-            if ((inSync ? (char)binBuf[0] : (char)binBuf[binBufIndex - (byte)PacketLengths.Battery.getValue()]) == 'B') {
-            	
-                if (CalcChecksum((byte)PacketLengths.Battery.getValue()) == 0) {
-                	
-                    OnBatteryReceived((int)PacketLengths.Battery.getValue(), 
-                    		new int[] { 
-                    			(short)((ToInt(binBuf[Overflow(binBufIndex - 4 )]) << 8) | ToInt(binBuf[Overflow(binBufIndex - 3 )])) ,   	/* battery voltage  */
-                    			ToInt(binBuf[Overflow(binBufIndex - 2)])                               										/* counter          */
-                    });                                 		
-                                		
-                    binBufIndex = 0;
-                    byteCount = 0;
-                    inSync = true;
-                }
-            }
-        }
+    /// <summary>
+    /// Read a big-endian signed 16-bit value.
+    /// </summary>
+    private static int ReadShort(byte[] buffer, int index) {
+    	
+    	return (short)(((buffer[index] & 0xFF) << 8) | (buffer[index + 1] & 0xFF));
     }
 
     /// <summary>
     /// Calculate LRC checksum.
     /// </summary>
+    /// <param name="buffer">
+    /// Buffer holding the packet.
+    /// </param>
+    /// <param name="index">
+    /// Index of the packet header.
+    /// </param>
     /// <param name="packetLength">
     /// Length of packet including checksum.
     /// </param>
@@ -325,35 +850,57 @@ class SerialDecoder implements SerialConsumer {
     /// <remarks>
     /// http://en.wikipedia.org/wiki/Longitudinal_redundancy_check
     /// </remarks>
-    private byte CalcChecksum(byte packetLength) {
+    private static int CalcChecksum(byte[] buffer, int index, int packetLength) {
     	
-        int tempRxBufIndex = Overflow(binBufIndex - ToInt(packetLength));
         int checksum = 0;
         
-        while (tempRxBufIndex != binBufIndex) {
-            checksum ^= ToInt(binBuf[tempRxBufIndex]);
-            
-            tempRxBufIndex = Overflow(tempRxBufIndex + 1); 
+        for (int i = index; i < index + packetLength; i++) {
+            checksum ^= buffer[i];
         }
         
-        return ToByte(checksum);
+        return checksum & 0xFF;
     }
 
-    public SerialMessageHandler OKReceived;
-    protected void OnOKReceived(int length) { if (OKReceived != null) OKReceived.onSerialMessage(MESSAGE_OK, length); }
+    protected void OnOKReceived(int length) { statistics.okMessages++; bus.publishMessage(MESSAGE_OK, length); }
+
+    protected void OnErrorReceived(int length) { statistics.errorMessages++; bus.publishMessage(MESSAGE_Error, length); }
+
+    protected void OnQuaternionReceived(QuaternionPacket packet) { 
+    	TrackPacket(packet, quaternionSequence, quaternionClock);
+    	bus.publish(packet);
+    }
+    
+    protected void OnSensorsReceived(SensorsPacket packet) { 
+    	TrackPacket(packet, sensorsSequence, sensorsClock);
+    	bus.publish(packet);
+    }
 
-    public SerialMessageHandler ErrorReceived;
-    protected void OnErrorReceived(int length) { if (ErrorReceived != null) ErrorReceived.onSerialMessage(MESSAGE_Error, length); }
+    protected void OnThermometerReceived(ThermometerPacket packet) { 
+    	TrackPacket(packet, thermometerSequence, thermometerClock);
+    	bus.publish(packet);
+    }
 
-    public SerialPacketHandler QuaternionReceived;
-    protected void OnQuaternionReceived(int length, int[] args) { if (QuaternionReceived != null) QuaternionReceived.onSerialPacket(PACKET_Quaternion, length, args); }
+    protected void OnBatteryReceived(BatteryPacket packet) { 
+    	TrackPacket(packet, batterySequence, batteryClock);
+    	bus.publish(packet);
+    }
     
-    public SerialPacketHandler SensorsReceived;
-    protected void OnSensorsReceived(int length, int[] args) { if (SensorsReceived != null) SensorsReceived.onSerialPacket(PACKET_Sensors, length, args); }
+    /// <summary>
+    /// Bus the decoded packets and OK / ERROR messages are published to. Packets are
+    /// decoded into the preallocated packet objects below and published without
+    /// allocation; they are reused and only valid for the duration of the callback.
+    /// </summary>
+    private final SerialPacketBus bus = new SerialPacketBus();
 
-    public SerialPacketHandler ThermometerReceived;
-    protected void OnThermometerReceived(int length, int[] args) { if (ThermometerReceived != null) ThermometerReceived.onSerialPacket(PACKET_Thermometer, length, args); }
+    public SerialPacketBus getBus() {
+    	return bus;
+    }
 
-    public SerialPacketHandler BatteryReceived;
-    protected void OnBatteryReceived(int length, int[] args) { if (BatteryReceived != null) BatteryReceived.onSerialPacket(PACKET_Battery, length, args); }
+    /// <summary>
+    /// Preallocated packets, reused for every decoded packet of each type.
+    /// </summary>
+    private final QuaternionPacket mQuaternionPacket = new QuaternionPacket();
+    private final SensorsPacket mSensorsPacket = new SensorsPacket();
+    private final BatteryPacket mBatteryPacket = new BatteryPacket();
+    private final ThermometerPacket mThermometerPacket = new ThermometerPacket();
 }
@@ -0,0 +1,130 @@
+package rug.xio.xbimudemo;
+
+// Health counters of a SerialDecoder.
+//
+// The decoder's read thread updates a private working copy of each counter and
+// publishes all counters with volatile writes once per received buffer, so the
+// read loop never takes a lock. The getters may be called from any thread; each
+// value is at most one buffer old.
+public class SerialDecoderStatistics {
+
+	// Working counters, only accessed by the decoding thread
+	long bytes;
+	long quaternionPackets;
+	long sensorsPackets;
+	long batteryPackets;
+	long thermometerPackets;
+	long okMessages;
+	long errorMessages;
+	long checksumFailures;
+	long resyncs;
+	long discardedBytes;
+	long droppedPackets;
+
+	// Published counters
+	private volatile long mBytes;
+	private volatile long mQuaternionPackets;
+	private volatile long mSensorsPackets;
+	private volatile long mBatteryPackets;
+	private volatile long mThermometerPackets;
+	private volatile long mOkMessages;
+	private volatile long mErrorMessages;
+	private volatile long mChecksumFailures;
+	private volatile long mResyncs;
+	private volatile long mDiscardedBytes;
+	private volatile long mDroppedPackets;
+
+	// Count a decoded packet and the number of packets of the same type missing before it
+	void onPacket(int type, int dropped) {
+
+		switch (type) {
+		case SerialDecoder.PACKET_Quaternion: quaternionPackets++; break;
+		case SerialDecoder.PACKET_Sensors: sensorsPackets++; break;
+		case SerialDecoder.PACKET_Battery: batteryPackets++; break;
+		case SerialDecoder.PACKET_Thermometer: thermometerPackets++; break;
+		}
+
+		droppedPackets += dropped;
+	}
+
+	// Publish the working counters to other threads
+	void publish() {
+		mBytes = bytes;
+		mQuaternionPackets = quaternionPackets;
+		mSensorsPackets = sensorsPackets;
+		mBatteryPackets = batteryPackets;
+		mThermometerPackets = thermometerPackets;
+		mOkMessages = okMessages;
+		mErrorMessages = errorMessages;
+		mChecksumFailures = checksumFailures;
+		mResyncs = resyncs;
+		mDiscardedBytes = discardedBytes;
+		mDroppedPackets = droppedPackets;
+	}
+
+	// Total bytes consumed by the decoder
+	public long getBytes() {
+		return mBytes;
+	}
+
+	// Packets decoded, by packet type (SerialDecoder.PACKET_ constants)
+	public long getPackets(int type) {
+		switch (type) {
+		case SerialDecoder.PACKET_Quaternion: return mQuaternionPackets;
+		case SerialDecoder.PACKET_Sensors: return mSensorsPackets;
+		case SerialDecoder.PACKET_Battery: return mBatteryPackets;
+		case SerialDecoder.PACKET_Thermometer: return mThermometerPackets;
+		default: throw new IllegalArgumentException("Unknown packet type " + type);
+		}
+	}
+
+	// Packets decoded of all types
+	public long getPackets() {
+		return mQuaternionPackets + mSensorsPackets + mBatteryPackets + mThermometerPackets;
+	}
+
+	// OK replies detected
+	public long getOkMessages() {
+		return mOkMessages;
+	}
+
+	// ERROR replies detected
+	public long getErrorMessages() {
+		return mErrorMessages;
+	}
+
+	// Binary packets and ASCII lines that failed the checksum or could not be parsed
+	public long getChecksumFailures() {
+		return mChecksumFailures;
+	}
+
+	// Times binary decoding found a valid packet after losing sync, including the first
+	public long getResyncs() {
+		return mResyncs;
+	}
+
+	// Bytes skipped by the binary decoder while out of sync
+	public long getDiscardedBytes() {
+		return mDiscardedBytes;
+	}
+
+	// Packets missing from the stream, counted from gaps in the packet counters
+	public long getDroppedPackets() {
+		return mDroppedPackets;
+	}
+
+	@Override
+	public String toString() {
+		return "bytes=" + getBytes()
+			+ " quaternion=" + mQuaternionPackets
+			+ " sensors=" + mSensorsPackets
+			+ " battery=" + mBatteryPackets
+			+ " thermometer=" + mThermometerPackets
+			+ " ok=" + mOkMessages
+			+ " error=" + mErrorMessages
+			+ " checksumFailures=" + mChecksumFailures
+			+ " resyncs=" + mResyncs
+			+ " discardedBytes=" + mDiscardedBytes
+			+ " droppedPackets=" + mDroppedPackets;
+	}
+}
@@ -0,0 +1,85 @@
+package rug.xio.xbimudemo;
+
+// Base class for packets decoded by the SerialDecoder.
+//
+// Packet objects are preallocated by the decoder and reused for every packet of
+// the same type, so a packet is only valid for the duration of the listener
+// callback it was passed to. Listeners that need to retain the data must copy
+// it, either into a packet they own (copyFrom / copy) or into an array (toArgs).
+public abstract class SerialPacket {
+
+	// Packet type, one of the SerialDecoder.PACKET_ constants
+	public final int type;
+
+	// Number of bytes in the data stream that made up the packet
+	public int length;
+
+	// Packet counter (0 - 255)
+	public int counter;
+
+	// Identifier of the device the packet was received from, see SerialDecoder.setDeviceId
+	public int deviceId;
+
+	// Sample time in nanoseconds (System.nanoTime) estimated by the decoder's PacketClock, the receive
+	// time of the buffer the packet was completed in until the clock has locked
+	public long timestamp;
+
+	// Receive time in nanoseconds (System.nanoTime) of the buffer the packet was completed in. Unlike
+	// the timestamps of packets of different types, receive times never go backwards
+	public long receiveTime;
+
+	protected SerialPacket(int type) {
+		this.type = type;
+	}
+
+	// Number of data values in the packet, excluding the counter
+	public abstract int getValueCount();
+
+	// Data value by index (0 to getValueCount() - 1)
+	public abstract int getValue(int index);
+
+	// Set data value by index (0 to getValueCount() - 1)
+	public abstract void setValue(int index, int value);
+
+	// Create a new packet of the same type holding a copy of this packet
+	public abstract SerialPacket copy();
+
+	/**
+	 * Copy the contents of another packet of the same type into this packet.
+	 * 
+	 * @param other
+	 *            The packet to copy from
+	 */
+	public void copyFrom(SerialPacket other) {
+		if (other.type != type) {
+			throw new IllegalArgumentException("Cannot copy packet type " + other.type + " to packet type " + type);
+		}
+
+		length = other.length;
+		counter = other.counter;
+		deviceId = other.deviceId;
+		timestamp = other.timestamp;
+		receiveTime = other.receiveTime;
+
+		for (int i = 0; i < getValueCount(); i++) {
+			setValue(i, other.getValue(i));
+		}
+	}
+
+	/**
+	 * Copy the packet into a new array: the data values followed by the
+	 * counter.
+	 */
+	public int[] toArgs() {
+		int count = getValueCount();
+		int[] args = new int[count + 1];
+
+		for (int i = 0; i < count; i++) {
+			args[i] = getValue(i);
+		}
+
+		args[count] = counter;
+
+		return args;
+	}
+}
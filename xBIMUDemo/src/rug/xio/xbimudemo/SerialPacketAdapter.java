@@ -0,0 +1,22 @@
+package rug.xio.xbimudemo;
+
+// Convenience SerialPacketListener that routes every packet type to onPacket.
+// Override onPacket to handle all packets generically, or override individual
+// typed callbacks to handle only the packet types of interest.
+public abstract class SerialPacketAdapter implements SerialPacketListener {
+
+	// Called for every packet not handled by an overridden typed callback
+	public void onPacket(SerialPacket packet) { }
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) { onPacket(packet); }
+
+	@Override
+	public void onSensors(SensorsPacket packet) { onPacket(packet); }
+
+	@Override
+	public void onBattery(BatteryPacket packet) { onPacket(packet); }
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) { onPacket(packet); }
+}
@@ -0,0 +1,288 @@
+package rug.xio.xbimudemo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Publish/subscribe bus for decoded packets and serial messages.
+//
+// Any number of listeners can subscribe, each to a mask of packet types and
+// each with its own delivery:
+//  - inline: called on the publishing (read) thread, for fast listeners such as
+//    a SampleRingBuffer, a SessionRecorder or a MadgwickAhrs
+//  - queued: packets are copied into a SampleRingBuffer per subscriber and
+//    delivered on a dedicated SampleDispatcher thread, or by tasks submitted to
+//    an Executor, so a slow subscriber never stalls the read thread or the other
+//    subscribers. The overflow policy of the queue sets the backpressure:
+//    drop the oldest or newest packets, or block the publisher.
+//
+// Subscribing and unsubscribing are thread-safe and may happen while packets
+// are published; publishing must be done from one thread.
+public class SerialPacketBus implements SerialPacketListener {
+
+	// Packet type masks
+	public static final int MASK_Quaternion = 1 << SerialDecoder.PACKET_Quaternion;
+	public static final int MASK_Sensors = 1 << SerialDecoder.PACKET_Sensors;
+	public static final int MASK_Thermometer = 1 << SerialDecoder.PACKET_Thermometer;
+	public static final int MASK_Battery = 1 << SerialDecoder.PACKET_Battery;
+	public static final int MASK_All = MASK_Quaternion | MASK_Sensors | MASK_Thermometer | MASK_Battery;
+
+	// Maximum number of packets an executor task delivers before it resubmits itself
+	private static final int EXECUTOR_BATCH = 64;
+
+	// Copy-on-write arrays, replaced under the bus lock
+	private volatile Subscription[] mSubscriptions = new Subscription[0];
+	private volatile SerialMessageHandler[] mMessageHandlers = new SerialMessageHandler[0];
+
+	// Subscription of a listener to the bus
+	public static class Subscription {
+
+		private final SerialPacketBus mBus;
+		private final SerialPacketListener mListener;
+		private final int mTypeMask;
+
+		// Queue and delivery of queued subscriptions, null for inline
+		private final SampleRingBuffer mQueue;
+		private final SampleDispatcher mDispatcher;
+		private final Executor mExecutor;
+		private final AtomicBoolean mScheduled = new AtomicBoolean();
+		private final Runnable mDrainTask;
+
+		private Subscription(SerialPacketBus bus, SerialPacketListener listener, int typeMask,
+				SampleRingBuffer queue, Executor executor) {
+
+			mBus = bus;
+			mListener = listener;
+			mTypeMask = typeMask;
+			mQueue = queue;
+			mExecutor = executor;
+
+			if (queue != null && executor == null) {
+				mDispatcher = new SampleDispatcher(queue, listener);
+			}
+			else {
+				mDispatcher = null;
+			}
+
+			if (executor != null) {
+				mDrainTask = new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				};
+			}
+			else {
+				mDrainTask = null;
+			}
+		}
+
+		public SerialPacketListener getListener() {
+			return mListener;
+		}
+
+		public int getTypeMask() {
+			return mTypeMask;
+		}
+
+		// Queue of a queued subscription, null for inline delivery
+		public SampleRingBuffer getQueue() {
+			return mQueue;
+		}
+
+		// Packets dropped (or, when blocking, delayed) because the queue was full
+		public long getOverflows() {
+			return mQueue != null ? mQueue.getOverflows() : 0;
+		}
+
+		// Unsubscribe, packets still queued are not delivered
+		public void cancel() {
+			mBus.unsubscribe(this);
+		}
+
+		private void publish(SerialPacket packet) {
+
+			if (mQueue == null) {
+				switch (packet.type) {
+				case SerialDecoder.PACKET_Quaternion: mListener.onQuaternion((QuaternionPacket)packet); break;
+				case SerialDecoder.PACKET_Sensors: mListener.onSensors((SensorsPacket)packet); break;
+				case SerialDecoder.PACKET_Battery: mListener.onBattery((BatteryPacket)packet); break;
+				case SerialDecoder.PACKET_Thermometer: mListener.onThermometer((ThermometerPacket)packet); break;
+				}
+				return;
+			}
+
+			mQueue.offer(packet);
+
+			if (mExecutor != null && mScheduled.compareAndSet(false, true)) {
+				mExecutor.execute(mDrainTask);
+			}
+		}
+
+		// Executor task, only one is scheduled at a time so the queue has one consumer
+		private void drain() {
+
+			mQueue.drain(mListener, EXECUTOR_BATCH);
+
+			mScheduled.set(false);
+
+			// Packets published after the drain, or beyond the batch, need another task
+			if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+				mExecutor.execute(mDrainTask);
+			}
+		}
+
+		private void start() {
+			if (mDispatcher != null) {
+				mDispatcher.start();
+			}
+		}
+
+		private void stop() {
+
+			// Releases a publisher blocked on a full queue
+			if (mQueue != null) {
+				mQueue.close();
+			}
+
+			if (mDispatcher != null) {
+				mDispatcher.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Subscribe a listener called on the publishing thread. The listener must
+	 * return quickly, it holds up the read thread.
+	 * 
+	 * @param typeMask
+	 *            Packet types to receive, MASK_ constants combined with |
+	 */
+	public Subscription subscribe(SerialPacketListener listener, int typeMask) {
+		return add(new Subscription(this, listener, typeMask, null, null));
+	}
+
+	/**
+	 * Subscribe a listener called on its own dispatcher thread.
+	 * 
+	 * @param queueCapacity
+	 *            Number of packets queued for the listener
+	 * @param overflowPolicy
+	 *            One of the SampleRingBuffer.OVERFLOW_ constants
+	 */
+	public Subscription subscribe(SerialPacketListener listener, int typeMask, int queueCapacity, int overflowPolicy) {
+		return add(new Subscription(this, listener, typeMask, new SampleRingBuffer(queueCapacity, overflowPolicy), null));
+	}
+
+	/**
+	 * Subscribe a listener called by tasks run on an executor. At most one
+	 * task per subscription runs at a time, so the listener is never called
+	 * concurrently.
+	 */
+	public Subscription subscribe(SerialPacketListener listener, int typeMask, Executor executor, int queueCapacity, int overflowPolicy) {
+		return add(new Subscription(this, listener, typeMask, new SampleRingBuffer(queueCapacity, overflowPolicy), executor));
+	}
+
+	private synchronized Subscription add(Subscription subscription) {
+
+		Subscription[] subscriptions = new Subscription[mSubscriptions.length + 1];
+
+		System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+		subscriptions[mSubscriptions.length] = subscription;
+
+		subscription.start();
+		mSubscriptions = subscriptions;
+
+		return subscription;
+	}
+
+	// Remove a subscription, does nothing if it was already removed
+	public synchronized void unsubscribe(Subscription subscription) {
+
+		Subscription[] current = mSubscriptions;
+
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == subscription) {
+				Subscription[] subscriptions = new Subscription[current.length - 1];
+
+				System.arraycopy(current, 0, subscriptions, 0, i);
+				System.arraycopy(current, i + 1, subscriptions, i, current.length - i - 1);
+
+				mSubscriptions = subscriptions;
+				subscription.stop();
+				return;
+			}
+		}
+	}
+
+	// Add a handler for OK and ERROR messages, called on the publishing thread
+	public synchronized void addMessageHandler(SerialMessageHandler handler) {
+
+		SerialMessageHandler[] handlers = new SerialMessageHandler[mMessageHandlers.length + 1];
+
+		System.arraycopy(mMessageHandlers, 0, handlers, 0, mMessageHandlers.length);
+		handlers[mMessageHandlers.length] = handler;
+
+		mMessageHandlers = handlers;
+	}
+
+	public synchronized void removeMessageHandler(SerialMessageHandler handler) {
+
+		SerialMessageHandler[] current = mMessageHandlers;
+
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == handler) {
+				SerialMessageHandler[] handlers = new SerialMessageHandler[current.length - 1];
+
+				System.arraycopy(current, 0, handlers, 0, i);
+				System.arraycopy(current, i + 1, handlers, i, current.length - i - 1);
+
+				mMessageHandlers = handlers;
+				return;
+			}
+		}
+	}
+
+	// true if there is at least one subscriber
+	public boolean hasSubscribers() {
+		return mSubscriptions.length > 0;
+	}
+
+	// Publish a message to the message handlers
+	public void publishMessage(int type, int length) {
+		for (SerialMessageHandler handler : mMessageHandlers) {
+			handler.onSerialMessage(type, length);
+		}
+	}
+
+	// Publish a packet to the subscribers of its type
+	public void publish(SerialPacket packet) {
+
+		int mask = 1 << packet.type;
+
+		for (Subscription subscription : mSubscriptions) {
+			if ((subscription.mTypeMask & mask) != 0) {
+				subscription.publish(packet);
+			}
+		}
+	}
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) {
+		publish(packet);
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+		publish(packet);
+	}
+
+	@Override
+	public void onBattery(BatteryPacket packet) {
+		publish(packet);
+	}
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) {
+		publish(packet);
+	}
+}
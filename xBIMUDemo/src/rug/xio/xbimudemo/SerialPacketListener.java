@@ -0,0 +1,17 @@
+package rug.xio.xbimudemo;
+
+// Listener interface for typed serial packets.
+//
+// The packet passed to each callback is owned by the SerialDecoder and is reused
+// for the next packet of the same type; copy it if it must outlive the callback.
+public interface SerialPacketListener {
+
+	void onQuaternion(QuaternionPacket packet);
+
+	void onSensors(SensorsPacket packet);
+
+	void onBattery(BatteryPacket packet);
+
+	void onThermometer(ThermometerPacket packet);
+
+}
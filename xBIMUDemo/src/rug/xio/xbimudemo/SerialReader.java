@@ -0,0 +1,220 @@
+package rug.xio.xbimudemo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+// Read loop that feeds the bytes of a SerialTransport to a SerialConsumer.
+//
+// Runs on the calling thread until the transport fails, reaches the end of its
+// stream or is closed; the cause is available from getFailure afterwards. It
+// does not depend on Android, so the same pipeline can be driven from a
+// recording or a socket on any JVM.
+//
+// A Bluetooth socket often returns a few bytes per read. With a latency budget
+// the reader keeps collecting bytes the transport already has, and waits once
+// for more, until the budget since the first byte is spent or the buffer is
+// full, so the consumer is called far less often at the cost of at most the
+// budget in latency. Unless the buffer size is fixed, the buffer is sized from
+// the measured byte rate so one budget's worth of data fits twice over. A
+// TimedSerialConsumer is given the time of the first read of each buffer, not
+// the time the buffer is passed on.
+public class SerialReader implements Runnable {
+
+	// Default read buffer size
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	// Limits of the adaptive buffer size
+	public static final int MIN_BUFFER_SIZE = 64;
+	public static final int MAX_BUFFER_SIZE = 16384;
+
+	// Dispatches between buffer size decisions
+	private static final int SIZING_INTERVAL = 64;
+
+	private final SerialTransport mTransport;
+	private final SerialConsumer mConsumer;
+	private final TimedSerialConsumer mTimedConsumer;
+	private final boolean mAdaptive;
+	private final SerialReaderStatistics mStatistics = new SerialReaderStatistics();
+
+	private byte[] mBuffer;
+
+	// Maximum time to collect bytes before dispatching, 0 to dispatch every read
+	private volatile long mLatencyBudgetNanos = 0;
+
+	// Buffer sizing interval, only used by the read thread
+	private long mIntervalStart;
+	private long mIntervalBytes;
+	private int mIntervalDispatches;
+	private int mIntervalLargest;
+
+	private volatile IOException mFailure;
+
+	// Reader with a buffer sized from the byte rate
+	public SerialReader(SerialTransport transport, SerialConsumer consumer) {
+		this(transport, consumer, DEFAULT_BUFFER_SIZE, true);
+	}
+
+	// Reader with a fixed buffer size
+	public SerialReader(SerialTransport transport, SerialConsumer consumer, int bufferSize) {
+		this(transport, consumer, bufferSize, false);
+	}
+
+	private SerialReader(SerialTransport transport, SerialConsumer consumer, int bufferSize, boolean adaptive) {
+		mTransport = transport;
+		mConsumer = consumer;
+		mTimedConsumer = consumer instanceof TimedSerialConsumer ? (TimedSerialConsumer)consumer : null;
+		mAdaptive = adaptive;
+		mBuffer = new byte[bufferSize];
+		mStatistics.bufferSize = bufferSize;
+	}
+
+	// Collect bytes for up to this time before passing them on, 0 to pass on every read
+	public void setLatencyBudget(long nanos) {
+		if (nanos < 0) {
+			throw new IllegalArgumentException("Latency budget must not be negative");
+		}
+
+		mLatencyBudgetNanos = nanos;
+	}
+
+	public long getLatencyBudget() {
+		return mLatencyBudgetNanos;
+	}
+
+	@Override
+	public void run() {
+
+		mIntervalStart = System.nanoTime();
+
+		try {
+			while (true) {
+				byte[] buffer = mBuffer;
+
+				// Read from the transport
+				int bytes = mTransport.read(buffer, 0, buffer.length);
+				long readTime = System.nanoTime();
+
+				if (bytes < 0) {
+					throw new EOFException("End of stream");
+				}
+
+				mStatistics.onRead(bytes);
+
+				boolean ended = false;
+				long budget = mLatencyBudgetNanos;
+
+				if (budget > 0) {
+					long deadline = readTime + budget;
+					boolean waited = false;
+
+					// Collect what arrives within the budget without blocking in read
+					while (bytes < buffer.length) {
+						int available = mTransport.available();
+
+						if (available > 0) {
+							int read = mTransport.read(buffer, bytes, Math.min(available, buffer.length - bytes));
+
+							if (read < 0) {
+								ended = true;
+								break;
+							}
+
+							mStatistics.onRead(read);
+							bytes += read;
+							continue;
+						}
+
+						long remaining = deadline - System.nanoTime();
+
+						if (waited || remaining <= 0) {
+							break;
+						}
+
+						LockSupport.parkNanos(this, remaining);
+						waited = true;
+					}
+				}
+
+				// Send the obtained bytes to the whoever is consuming it
+				if (mTimedConsumer != null) {
+					mTimedConsumer.reciveBytes(buffer, bytes, readTime);
+				}
+				else {
+					mConsumer.reciveBytes(buffer, bytes);
+				}
+
+				mStatistics.onDispatch(bytes);
+
+				if (mAdaptive) {
+					sizeBuffer(bytes, buffer.length, budget);
+				}
+
+				mStatistics.publish();
+
+				if (ended) {
+					throw new EOFException("End of stream");
+				}
+			}
+		}
+		catch (IOException e) {
+			mFailure = e;
+		}
+	}
+
+	// Grow the buffer once a dispatch fills it or the budget needs more, shrink it once it is far larger than needed
+	private void sizeBuffer(int bytes, int size, long budget) {
+
+		mIntervalBytes += bytes;
+		mIntervalDispatches++;
+		mIntervalLargest = Math.max(mIntervalLargest, bytes);
+
+		if (mIntervalDispatches < SIZING_INTERVAL) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long elapsed = now - mIntervalStart;
+		long byteRate = elapsed > 0 ? mIntervalBytes * 1000000000L / elapsed : 0;
+
+		// Twice the bytes expected per dispatch
+		long needed = budget > 0 ? 2 * byteRate * budget / 1000000000L : 0;
+		needed = Math.max(needed, 2L * mIntervalLargest);
+
+		int newSize = size;
+
+		if (needed > size) {
+			newSize = size * 2;
+		}
+		else if (needed < size / 4) {
+			newSize = size / 2;
+		}
+
+		newSize = Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, newSize));
+
+		if (newSize != size) {
+			mBuffer = new byte[newSize];
+		}
+
+		mStatistics.bufferSize = newSize;
+		mStatistics.byteRate = byteRate;
+
+		mIntervalStart = now;
+		mIntervalBytes = 0;
+		mIntervalDispatches = 0;
+		mIntervalLargest = 0;
+	}
+
+	// The exception that stopped the read loop, null while it is running
+	public IOException getFailure() {
+		return mFailure;
+	}
+
+	public SerialTransport getTransport() {
+		return mTransport;
+	}
+
+	public SerialReaderStatistics getStatistics() {
+		return mStatistics;
+	}
+}
@@ -0,0 +1,131 @@
+package rug.xio.xbimudemo;
+
+// Read loop counters of a SerialReader.
+//
+// Reads are the chunks returned by the transport, dispatches are the buffers
+// passed to the consumer; with a latency budget one dispatch collects several
+// reads. Sizes are counted in power of two buckets: bucket b holds sizes from
+// 2^(b - 1) + 1 to 2^b bytes, bucket 0 holds single bytes.
+//
+// Like SerialDecoderStatistics, the read thread updates working copies and
+// publishes them once per dispatch. The histograms are copied under a lock
+// that is only contended while they are being read. The getters may be called
+// from any thread.
+public class SerialReaderStatistics {
+
+	// Number of size buckets, the last one also holds anything larger
+	public static final int BUCKET_COUNT = 17;
+
+	// Working counters, only accessed by the read thread
+	long reads;
+	long dispatches;
+	long bytes;
+	int bufferSize;
+	long byteRate;
+	final long[] readSizes = new long[BUCKET_COUNT];
+	final long[] dispatchSizes = new long[BUCKET_COUNT];
+
+	// Published counters
+	private volatile long mReads;
+	private volatile long mDispatches;
+	private volatile long mBytes;
+	private volatile int mBufferSize;
+	private volatile long mByteRate;
+	private final long[] mReadSizes = new long[BUCKET_COUNT];
+	private final long[] mDispatchSizes = new long[BUCKET_COUNT];
+
+	// Count a read returned by the transport
+	void onRead(int size) {
+		reads++;
+		bytes += size;
+		readSizes[getBucket(size)]++;
+	}
+
+	// Count a buffer passed to the consumer
+	void onDispatch(int size) {
+		dispatches++;
+		dispatchSizes[getBucket(size)]++;
+	}
+
+	// Publish the working counters to other threads
+	void publish() {
+		synchronized (mReadSizes) {
+			System.arraycopy(readSizes, 0, mReadSizes, 0, BUCKET_COUNT);
+			System.arraycopy(dispatchSizes, 0, mDispatchSizes, 0, BUCKET_COUNT);
+		}
+
+		mReads = reads;
+		mDispatches = dispatches;
+		mBytes = bytes;
+		mBufferSize = bufferSize;
+		mByteRate = byteRate;
+	}
+
+	// Bucket of a read or dispatch size
+	public static int getBucket(int size) {
+		if (size <= 1) {
+			return 0;
+		}
+
+		return Math.min(32 - Integer.numberOfLeadingZeros(size - 1), BUCKET_COUNT - 1);
+	}
+
+	// Largest size counted in a bucket, the last bucket also holds anything larger
+	public static int getBucketLimit(int bucket) {
+		return 1 << bucket;
+	}
+
+	// Reads returned by the transport
+	public long getReads() {
+		return mReads;
+	}
+
+	// Buffers passed to the consumer
+	public long getDispatches() {
+		return mDispatches;
+	}
+
+	// Total bytes read
+	public long getBytes() {
+		return mBytes;
+	}
+
+	// Current read buffer size
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	// Byte rate measured over the last buffer sizing interval, in bytes per second
+	public long getByteRate() {
+		return mByteRate;
+	}
+
+	// Copy the read size histogram into an array of BUCKET_COUNT elements
+	public void getReadSizes(long[] histogram) {
+		synchronized (mReadSizes) {
+			System.arraycopy(mReadSizes, 0, histogram, 0, BUCKET_COUNT);
+		}
+	}
+
+	// Copy the dispatch size histogram into an array of BUCKET_COUNT elements
+	public void getDispatchSizes(long[] histogram) {
+		synchronized (mReadSizes) {
+			System.arraycopy(mDispatchSizes, 0, histogram, 0, BUCKET_COUNT);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		long reads = mReads;
+		long dispatches = mDispatches;
+
+		return "reads=" + reads
+			+ " dispatches=" + dispatches
+			+ " bytes=" + mBytes
+			+ " bytesPerRead=" + (reads > 0 ? mBytes / reads : 0)
+			+ " bytesPerDispatch=" + (dispatches > 0 ? mBytes / dispatches : 0)
+			+ " bufferSize=" + mBufferSize
+			+ " byteRate=" + mByteRate;
+	}
+}
@@ -0,0 +1,35 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+
+// Byte stream connection to an x-BIMU, or to anything that produces the same
+// data stream, such as a recording or a network socket.
+//
+// read is called by a single reader thread. write and close may be called from
+// any thread; close unblocks a pending read, which then throws an IOException.
+public interface SerialTransport {
+
+	// Transport states
+	int STATE_CLOSED = 0;	// not open, or closed after use
+	int STATE_OPENING = 1;	// open in progress
+	int STATE_OPEN = 2;		// ready to read and write
+
+	// open the connection, blocks until it is open or has failed
+	void open() throws IOException;
+
+	// read up to length bytes, blocks until at least one byte is available; returns -1 at the end of the stream
+	int read(byte[] buffer, int offset, int length) throws IOException;
+
+	// number of bytes read can return without blocking, 0 if there are none or it is unknown
+	int available() throws IOException;
+
+	// write bytes to the connection
+	void write(byte[] buffer, int offset, int length) throws IOException;
+
+	// close the connection, may be called at any time and more than once
+	void close();
+
+	// current state, one of the STATE_ constants
+	int getState();
+
+}
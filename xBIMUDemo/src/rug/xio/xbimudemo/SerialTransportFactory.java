@@ -0,0 +1,9 @@
+package rug.xio.xbimudemo;
+
+// Creates a new, not yet opened, transport to the same device, e.g. for a
+// reconnection.
+public interface SerialTransportFactory {
+
+	SerialTransport createTransport();
+
+}
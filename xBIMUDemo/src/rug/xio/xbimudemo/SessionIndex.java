@@ -0,0 +1,206 @@
+package rug.xio.xbimudemo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Time index of a recorded session, see SessionLogFormat.
+//
+// Loaded from the index file written by SessionRecorder; if that is missing or
+// does not reach the last segment, e.g. after a crash, it is rebuilt by walking
+// the record headers of the segments, which does not read or decode the
+// payloads. A partial entry at the end of the index file is ignored.
+public class SessionIndex {
+
+	private long[] mTimes = new long[64];
+	private int[] mSegments = new int[64];
+	private int[] mOffsets = new int[64];
+	private int mCount = 0;
+	private int mSegmentCount = 0;
+
+	private SessionIndex() {
+	}
+
+	/**
+	 * Load the index of a session.
+	 * 
+	 * @param directory
+	 *            Directory holding the session files
+	 * @param name
+	 *            Session name
+	 * @throws IOException
+	 *             if the session has no segments or a file cannot be read
+	 */
+	public static SessionIndex load(File directory, String name) throws IOException {
+
+		SessionIndex index = new SessionIndex();
+
+		while (SessionLogFormat.getSegmentFile(directory, name, index.mSegmentCount).exists()) {
+			index.mSegmentCount++;
+		}
+
+		if (index.mSegmentCount == 0) {
+			throw new IOException("No segments for session " + name + " in " + directory);
+		}
+
+		File indexFile = SessionLogFormat.getIndexFile(directory, name);
+
+		if (!indexFile.exists() || !index.read(indexFile)) {
+			index.mCount = 0;
+			index.rebuild(directory, name);
+		}
+
+		return index;
+	}
+
+	// Number of index entries
+	public int getCount() {
+		return mCount;
+	}
+
+	// Number of segment files in the session
+	public int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	// Receive time of the record of an entry
+	public long getTime(int entry) {
+		return mTimes[entry];
+	}
+
+	// Segment of the record of an entry
+	public int getSegment(int entry) {
+		return mSegments[entry];
+	}
+
+	// Offset of the record of an entry in its segment
+	public int getOffset(int entry) {
+		return mOffsets[entry];
+	}
+
+	/**
+	 * Find the last entry at or before a receive time.
+	 * 
+	 * @return The entry, or 0 if the time is before the first entry
+	 */
+	public int find(long time) {
+
+		int low = 0;
+		int high = mCount - 1;
+
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+
+			if (mTimes[mid] - time <= 0) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	private void add(long time, int segment, int offset) {
+
+		if (mCount == mTimes.length) {
+			int size = mCount * 2;
+			long[] times = new long[size];
+			int[] segments = new int[size];
+			int[] offsets = new int[size];
+
+			System.arraycopy(mTimes, 0, times, 0, mCount);
+			System.arraycopy(mSegments, 0, segments, 0, mCount);
+			System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+
+			mTimes = times;
+			mSegments = segments;
+			mOffsets = offsets;
+		}
+
+		mTimes[mCount] = time;
+		mSegments[mCount] = segment;
+		mOffsets[mCount] = offset;
+		mCount++;
+	}
+
+	// Read the index file, returns false if it does not reach the last segment
+	private boolean read(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			if (in.readInt() != SessionLogFormat.INDEX_MAGIC) {
+				throw new IOException("Not a session index: " + file);
+			}
+
+			in.readShort();
+			in.readShort();
+			in.readLong();
+
+			while (true) {
+				long time = in.readLong();
+				int segment = in.readInt();
+				int offset = in.readInt();
+
+				add(time, segment, offset);
+			}
+		} catch (EOFException e) {
+			// end of the index, or of what was written of it
+		}
+		finally {
+			in.close();
+		}
+
+		// The recorder indexes the first record of every segment
+		return mCount > 0 && mSegments[mCount - 1] == mSegmentCount - 1;
+	}
+
+	// Build the index from the record headers of the segments
+	private void rebuild(File directory, String name) throws IOException {
+
+		long nextTime = 0;
+
+		for (int segment = 0; segment < mSegmentCount; segment++) {
+			RandomAccessFile file = new RandomAccessFile(SessionLogFormat.getSegmentFile(directory, name, segment), "r");
+
+			try {
+				MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+				buffer.position(SessionLogFormat.SEGMENT_HEADER);
+
+				while (buffer.remaining() >= SessionLogFormat.RECORD_HEADER) {
+					int offset = buffer.position();
+
+					if (buffer.get(offset) == SessionLogFormat.RECORD_End) {
+						break;
+					}
+
+					int length = buffer.getShort(offset + 2) & 0xFFFF;
+					long time = buffer.getLong(offset + 8);
+
+					if (offset == SessionLogFormat.SEGMENT_HEADER || time - nextTime >= 0) {
+						add(time, segment, offset);
+						nextTime = time + SessionLogFormat.INDEX_INTERVAL;
+					}
+
+					if (buffer.remaining() < SessionLogFormat.RECORD_HEADER + length) {
+						break;
+					}
+
+					buffer.position(offset + SessionLogFormat.RECORD_HEADER + length);
+				}
+			}
+			finally {
+				file.close();
+			}
+		}
+	}
+}
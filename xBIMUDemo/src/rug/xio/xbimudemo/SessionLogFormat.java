@@ -0,0 +1,94 @@
+package rug.xio.xbimudemo;
+
+import java.io.File;
+import java.util.Locale;
+
+// Layout of the session log written by SessionRecorder.
+//
+// A session is a sequence of segment files <name>-00000.xbr, <name>-00001.xbr,
+// ... in one directory. All values are big-endian.
+//
+// Segment header (SEGMENT_HEADER bytes):
+//   int   MAGIC
+//   short VERSION
+//   short reserved
+//   int   segment index
+//   int   reserved
+//   long  wall clock time at segment start (System.currentTimeMillis)
+//   long  receive clock time at segment start (System.nanoTime)
+//
+// Followed by records of RECORD_HEADER bytes plus the payload:
+//   byte  record type, one of the RECORD_ constants
+//   byte  reserved
+//   short payload length (unsigned)
+//   int   device identifier
+//   long  receive time (System.nanoTime), never decreasing within a session
+//
+// A RECORD_End type byte, or fewer than RECORD_HEADER bytes left in the file,
+// ends the segment.
+//
+// RECORD_Raw payload: the received bytes.
+// RECORD_Packet payload:
+//   byte  packet type, one of the SerialDecoder.PACKET_ constants
+//   byte  number of values
+//   short packet length in bytes of the data stream
+//   int   packet counter
+//   long  sample time (SerialPacket.timestamp), which may be earlier than the
+//         sample time of a packet of another type recorded before it
+//   int   value, repeated for each value
+//
+// The session index <name>.xbi points at the first record of each segment and
+// a record every INDEX_INTERVAL of receive time or more, so replay can seek
+// without reading the segments. Entries are flushed as they are written:
+//   int   INDEX_MAGIC
+//   short VERSION
+//   short reserved
+//   long  index interval in nanoseconds
+// Followed by entries of INDEX_ENTRY bytes:
+//   long  receive time of the record
+//   int   segment index
+//   int   offset of the record in the segment
+public final class SessionLogFormat {
+
+	// "XBRL"
+	public static final int MAGIC = 0x5842524C;
+	public static final short VERSION = 2;
+
+	public static final int SEGMENT_HEADER = 32;
+	public static final int RECORD_HEADER = 16;
+	public static final int PACKET_HEADER = 16;
+
+	public static final int INDEX_HEADER = 16;
+	public static final int INDEX_ENTRY = 16;
+
+	// "XBRI"
+	public static final int INDEX_MAGIC = 0x58425249;
+
+	// Receive time between index entries
+	public static final long INDEX_INTERVAL = 1000000000L;
+
+	// Largest payload of a single record
+	public static final int MAX_PAYLOAD = 0xFFFF;
+
+	// Record types
+	public static final int RECORD_End = 0;		// end of segment
+	public static final int RECORD_Raw = 1;		// chunk of received bytes
+	public static final int RECORD_Packet = 2;	// decoded packet
+
+	// File name extensions of segment and index files
+	public static final String SEGMENT_EXTENSION = ".xbr";
+	public static final String INDEX_EXTENSION = ".xbi";
+
+	private SessionLogFormat() {
+	}
+
+	// Segment file of a session
+	public static File getSegmentFile(File directory, String name, int index) {
+		return new File(directory, name + String.format(Locale.US, "-%05d", index) + SEGMENT_EXTENSION);
+	}
+
+	// Index file of a session
+	public static File getIndexFile(File directory, String name) {
+		return new File(directory, name + INDEX_EXTENSION);
+	}
+}
@@ -0,0 +1,444 @@
+package rug.xio.xbimudemo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Records a session to an append-only, memory-mapped log, see SessionLogFormat.
+//
+// Raw received chunks (as a SerialConsumer) and/or decoded packets (as a
+// SerialPacketListener) are copied into a single-producer byte ring on the
+// calling thread and written to the mapped segment by the recorder's own
+// writer thread. The read thread never touches the file and never waits: when
+// the ring is full the record is dropped and counted. The writer thread also
+// writes the session index used by SessionReplay to seek.
+//
+// All records must be produced by one thread, normally the read thread that
+// also runs the SerialDecoder.
+public class SessionRecorder implements TimedSerialConsumer, SerialPacketListener {
+
+	// Default size of each segment file
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	// Default size of the ring between the read thread and the writer thread
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	// Maximum time the writer waits for records before checking for shutdown
+	private static final long AWAIT_NANOS = 10000000;
+
+	private final File mDirectory;
+	private final String mName;
+	private final int mSegmentSize;
+
+	// Byte ring, records are stored in the same layout as in the file
+	private final byte[] mRing;
+	private final int mMask;
+	private final AtomicLong mHead = new AtomicLong();
+	private final AtomicLong mTail = new AtomicLong();
+
+	private final Thread mWriter;
+	private volatile boolean mRunning = true;
+	private volatile IOException mFailure;
+
+	// Set by the producer while it copies a record into the ring, so the writer
+	// can wait for a record claimed before close before it stops
+	private volatile boolean mClaiming = false;
+
+	// Device identifier of raw records
+	private volatile int mDeviceId = -1;
+
+	// Statistics, each written by one thread only
+	private volatile long mRecordsWritten = 0;
+	private volatile long mBytesWritten = 0;
+	private volatile long mRecordsDropped = 0;
+	private volatile long mBytesDropped = 0;
+	private volatile int mSegments = 0;
+
+	// Current segment, writer thread only
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mSegment;
+
+	// Session index, writer thread only
+	private DataOutputStream mIndex;
+	private long mNextIndexTime;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param directory
+	 *            Directory the segment files are written to
+	 * @param name
+	 *            Session name, the prefix of the segment file names
+	 */
+	public SessionRecorder(File directory, String name) {
+		this(directory, name, DEFAULT_SEGMENT_SIZE, DEFAULT_BUFFER_SIZE);
+	}
+
+	public SessionRecorder(File directory, String name, int segmentSize, int bufferSize) {
+
+		if (segmentSize < SessionLogFormat.SEGMENT_HEADER + SessionLogFormat.RECORD_HEADER + SessionLogFormat.MAX_PAYLOAD) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+
+		if (bufferSize < SessionLogFormat.RECORD_HEADER + SessionLogFormat.MAX_PAYLOAD || bufferSize > (1 << 30)) {
+			throw new IllegalArgumentException("Buffer size out of range: " + bufferSize);
+		}
+
+		int size = Integer.highestOneBit(bufferSize);
+
+		if (size < bufferSize) {
+			size <<= 1;
+		}
+
+		mDirectory = directory;
+		mName = name;
+		mSegmentSize = segmentSize;
+		mRing = new byte[size];
+		mMask = size - 1;
+
+		mWriter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "SessionRecorder");
+		mWriter.setDaemon(true);
+	}
+
+	// Create the first segment and start the writer thread
+	public void start() throws IOException {
+
+		mIndex = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(SessionLogFormat.getIndexFile(mDirectory, mName))));
+		mIndex.writeInt(SessionLogFormat.INDEX_MAGIC);
+		mIndex.writeShort(SessionLogFormat.VERSION);
+		mIndex.writeShort(0);
+		mIndex.writeLong(SessionLogFormat.INDEX_INTERVAL);
+
+		openSegment(0);
+		mWriter.start();
+	}
+
+	/**
+	 * Stop recording. Records already accepted are written, the segment is
+	 * truncated to its used size and the file is closed.
+	 * 
+	 * @throws IOException
+	 *             if the writer thread failed
+	 */
+	public void close() throws IOException {
+
+		mRunning = false;
+		LockSupport.unpark(mWriter);
+
+		try {
+			mWriter.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (mFailure != null) {
+			throw mFailure;
+		}
+	}
+
+	// Set the device identifier of raw records
+	public void setDeviceId(int deviceId) {
+		mDeviceId = deviceId;
+	}
+
+	public long getRecordsWritten() {
+		return mRecordsWritten;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	// Records dropped because the writer thread could not keep up
+	public long getRecordsDropped() {
+		return mRecordsDropped;
+	}
+
+	public long getBytesDropped() {
+		return mBytesDropped;
+	}
+
+	// Number of segment files created
+	public int getSegmentCount() {
+		return mSegments;
+	}
+
+	// The exception that stopped the writer thread, null if none
+	public IOException getFailure() {
+		return mFailure;
+	}
+
+	@Override
+	public void reciveBytes(byte[] buffer, int bytes) {
+		reciveBytes(buffer, bytes, System.nanoTime());
+	}
+
+	// Chunks are recorded whole, so nothing is pending
+	@Override
+	public void reset() {
+	}
+
+	@Override
+	public void reciveBytes(byte[] buffer, int bytes, long receiveTime) {
+
+		for (int offset = 0; offset < bytes; offset += SessionLogFormat.MAX_PAYLOAD) {
+			int length = Math.min(bytes - offset, SessionLogFormat.MAX_PAYLOAD);
+			long tail = claim(length);
+
+			if (tail < 0) {
+				continue;
+			}
+
+			long position = putHeader(tail, SessionLogFormat.RECORD_Raw, length, mDeviceId, receiveTime);
+			putBytes(position, buffer, offset, length);
+			publish(tail + SessionLogFormat.RECORD_HEADER + length);
+		}
+	}
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) {
+		record(packet);
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+		record(packet);
+	}
+
+	@Override
+	public void onBattery(BatteryPacket packet) {
+		record(packet);
+	}
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) {
+		record(packet);
+	}
+
+	// Add a decoded packet record
+	public void record(SerialPacket packet) {
+
+		int count = packet.getValueCount();
+		int length = SessionLogFormat.PACKET_HEADER + 4 * count;
+		long tail = claim(length);
+
+		if (tail < 0) {
+			return;
+		}
+
+		// Records are indexed and replayed by receive time, which unlike the sample time never goes back
+		long position = putHeader(tail, SessionLogFormat.RECORD_Packet, length, packet.deviceId, packet.receiveTime);
+
+		putByte(position, packet.type);
+		putByte(position + 1, count);
+		putShort(position + 2, packet.length);
+		putInt(position + 4, packet.counter);
+		putLong(position + 8, packet.timestamp);
+		position += SessionLogFormat.PACKET_HEADER;
+
+		for (int i = 0; i < count; i++) {
+			putInt(position, packet.getValue(i));
+			position += 4;
+		}
+
+		publish(tail + SessionLogFormat.RECORD_HEADER + length);
+	}
+
+	// Ring position for a new record, or -1 if it was dropped
+	private long claim(int length) {
+
+		long tail = mTail.get();
+		int size = SessionLogFormat.RECORD_HEADER + length;
+
+		mClaiming = true;
+
+		if (!mRunning || tail + size - mHead.get() > mRing.length) {
+			mClaiming = false;
+			mRecordsDropped++;
+			mBytesDropped += size;
+			return -1;
+		}
+
+		return tail;
+	}
+
+	// Make a record available to the writer thread
+	private void publish(long tail) {
+		mTail.lazySet(tail);
+		mClaiming = false;
+		LockSupport.unpark(mWriter);
+	}
+
+	private long putHeader(long position, int recordType, int length, int deviceId, long receiveTime) {
+		putByte(position, recordType);
+		putByte(position + 1, 0);
+		putShort(position + 2, length);
+		putInt(position + 4, deviceId);
+		putLong(position + 8, receiveTime);
+		return position + SessionLogFormat.RECORD_HEADER;
+	}
+
+	private void putByte(long position, int value) {
+		mRing[(int)position & mMask] = (byte)value;
+	}
+
+	private void putShort(long position, int value) {
+		putByte(position, value >> 8);
+		putByte(position + 1, value);
+	}
+
+	private void putInt(long position, int value) {
+		putByte(position, value >> 24);
+		putByte(position + 1, value >> 16);
+		putByte(position + 2, value >> 8);
+		putByte(position + 3, value);
+	}
+
+	private void putLong(long position, long value) {
+		putInt(position, (int)(value >>> 32));
+		putInt(position + 4, (int)value);
+	}
+
+	private void putBytes(long position, byte[] buffer, int offset, int length) {
+		int index = (int)position & mMask;
+		int first = Math.min(length, mRing.length - index);
+
+		System.arraycopy(buffer, offset, mRing, index, first);
+		System.arraycopy(buffer, offset + first, mRing, 0, length - first);
+	}
+
+	// Read an int from the ring, writer thread only
+	private int getInt(int index) {
+		return ((mRing[index & mMask] & 0xFF) << 24) | ((mRing[(index + 1) & mMask] & 0xFF) << 16)
+				| ((mRing[(index + 2) & mMask] & 0xFF) << 8) | (mRing[(index + 3) & mMask] & 0xFF);
+	}
+
+	// Writer thread, copies records from the ring to the mapped segment
+	private void write() {
+
+		try {
+			while (true) {
+				long head = mHead.get();
+				long tail = mTail.get();
+
+				if (head == tail) {
+					if (!mRunning) {
+						// A record claimed before close may still be being copied, stop once it is written
+						if (!mClaiming && mTail.get() == head) {
+							break;
+						}
+						Thread.yield();
+						continue;
+					}
+					LockSupport.parkNanos(this, AWAIT_NANOS);
+					continue;
+				}
+
+				while (head < tail) {
+					int index = (int)head & mMask;
+					int length = ((mRing[(index + 2) & mMask] & 0xFF) << 8) | (mRing[(index + 3) & mMask] & 0xFF);
+					int size = SessionLogFormat.RECORD_HEADER + length;
+
+					if (mSegment.remaining() < size) {
+						openSegment(mSegments);
+					}
+
+					long timestamp = ((long)getInt(index + 8) << 32) | (getInt(index + 12) & 0xFFFFFFFFL);
+
+					// Index the first record of each segment too, so a stale index can be detected
+					if (mSegment.position() == SessionLogFormat.SEGMENT_HEADER || timestamp - mNextIndexTime >= 0) {
+						mIndex.writeLong(timestamp);
+						mIndex.writeInt(mSegments - 1);
+						mIndex.writeInt(mSegment.position());
+						mIndex.flush();
+						mNextIndexTime = timestamp + SessionLogFormat.INDEX_INTERVAL;
+					}
+
+					int first = Math.min(size, mRing.length - index);
+
+					mSegment.put(mRing, index, first);
+					mSegment.put(mRing, 0, size - first);
+
+					head += size;
+					mRecordsWritten++;
+					mBytesWritten += size;
+				}
+
+				// Release the space to the producer
+				mHead.lazySet(head);
+			}
+
+			closeSegment();
+			mIndex.close();
+		}
+		catch (IOException e) {
+			mFailure = e;
+			mRunning = false;
+
+			try {
+				mIndex.close();
+			} catch (IOException e2) {
+				// already failed, the first exception is reported
+			}
+		}
+	}
+
+	// Close the current segment, if any, and map the next one
+	private void openSegment(int index) throws IOException {
+
+		closeSegment();
+
+		File file = SessionLogFormat.getSegmentFile(mDirectory, mName, index);
+
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+		mSegment = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+
+		mSegment.putInt(SessionLogFormat.MAGIC);
+		mSegment.putShort(SessionLogFormat.VERSION);
+		mSegment.putShort((short)0);
+		mSegment.putInt(index);
+		mSegment.putInt(0);
+		mSegment.putLong(System.currentTimeMillis());
+		mSegment.putLong(System.nanoTime());
+
+		mSegments = index + 1;
+	}
+
+	// Flush the current segment and truncate it to the used size
+	private void closeSegment() throws IOException {
+
+		if (mSegment == null) {
+			return;
+		}
+
+		// The unused, zero filled, tail of the mapping reads as RECORD_End if the file is not truncated
+		int used = mSegment.position();
+
+		mSegment.force();
+		mSegment = null;
+
+		try {
+			mChannel.truncate(used);
+		}
+		finally {
+			mFile.close();
+			mFile = null;
+			mChannel = null;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package rug.xio.xbimudemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays a session recorded by SessionRecorder.
+//
+// Raw records are fed to a SerialConsumer and packet records to a
+// SerialPacketListener, either as fast as possible or paced by the recorded
+// receive times at a multiple of real time. A TimedSerialConsumer such as the
+// SerialDecoder is given the recorded receive times, so a replay produces the
+// same packets with the same timestamps however it is paced. Packet records
+// are delivered with their recorded sample time as the timestamp. seek uses the
+// session index to start at any time without reading the records before it.
+public class SessionReplay {
+
+	// Speed to replay as fast as possible
+	public static final double SPEED_Unpaced = 0;
+
+	private final File mDirectory;
+	private final String mName;
+	private final SessionIndex mIndex;
+
+	private volatile double mSpeed = SPEED_Unpaced;
+	private volatile boolean mStopped = false;
+
+	// Replay position, the next record to deliver is the first at or after mSeekTime
+	private int mSegment;
+	private int mOffset;
+	private long mSeekTime;
+
+	// Set when the position was moved, the consumer is reset before the next raw record
+	private boolean mMoved;
+
+	private final byte[] mBuffer = new byte[SessionLogFormat.MAX_PAYLOAD];
+
+	// Packets handed to the listener, reused for every packet of each type
+	private final QuaternionPacket mQuaternionPacket = new QuaternionPacket();
+	private final SensorsPacket mSensorsPacket = new SensorsPacket();
+	private final BatteryPacket mBatteryPacket = new BatteryPacket();
+	private final ThermometerPacket mThermometerPacket = new ThermometerPacket();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param directory
+	 *            Directory holding the session files
+	 * @param name
+	 *            Session name
+	 * @throws IOException
+	 *             if the session cannot be found or its index cannot be read
+	 */
+	public SessionReplay(File directory, String name) throws IOException {
+		mDirectory = directory;
+		mName = name;
+		mIndex = SessionIndex.load(directory, name);
+
+		rewind();
+	}
+
+	public SessionIndex getIndex() {
+		return mIndex;
+	}
+
+	// Receive time of the first record, or 0 for an empty session
+	public long getStartTime() {
+		return mIndex.getCount() > 0 ? mIndex.getTime(0) : 0;
+	}
+
+	/**
+	 * Set the replay speed as a multiple of real time, e.g. 1 or 10, or
+	 * SPEED_Unpaced. May be changed while replaying.
+	 */
+	public void setSpeed(double speed) {
+		if (speed < 0) {
+			throw new IllegalArgumentException("Speed must not be negative");
+		}
+
+		mSpeed = speed;
+	}
+
+	// Go back to the start of the session
+	public void rewind() {
+		mSegment = 0;
+		mOffset = SessionLogFormat.SEGMENT_HEADER;
+		mSeekTime = getStartTime();
+		mMoved = true;
+	}
+
+	/**
+	 * Move the replay position to a time in the session.
+	 * 
+	 * @param offsetNanos
+	 *            Time since the start of the session in nanoseconds
+	 */
+	public void seek(long offsetNanos) {
+
+		if (mIndex.getCount() == 0) {
+			rewind();
+			return;
+		}
+
+		long time = getStartTime() + offsetNanos;
+		int entry = mIndex.find(time);
+
+		mSegment = mIndex.getSegment(entry);
+		mOffset = mIndex.getOffset(entry);
+		mSeekTime = time;
+		mMoved = true;
+	}
+
+	// Stop a replay in progress, play returns after the current record
+	public void stop() {
+		mStopped = true;
+	}
+
+	/**
+	 * Replay from the current position to the end of the session, or until
+	 * stop is called, on the calling thread. If the position was moved by seek
+	 * or rewind since the last call, the consumer is reset first, so it does
+	 * not join bytes from before and after the move.
+	 * 
+	 * @param consumer
+	 *            Receives the raw records, may be null
+	 * @param listener
+	 *            Receives the packet records, may be null
+	 * @return The number of records delivered
+	 */
+	public long play(SerialConsumer consumer, SerialPacketListener listener) throws IOException {
+
+		mStopped = false;
+
+		if (mMoved && consumer != null) {
+			consumer.reset();
+		}
+
+		mMoved = false;
+
+		long records = 0;
+		long firstTime = 0;
+		long wallStart = 0;
+
+		while (!mStopped && mSegment < mIndex.getSegmentCount()) {
+			RandomAccessFile file = new RandomAccessFile(SessionLogFormat.getSegmentFile(mDirectory, mName, mSegment), "r");
+
+			try {
+				MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+				while (!mStopped && buffer.limit() - mOffset >= SessionLogFormat.RECORD_HEADER) {
+					int offset = mOffset;
+					int recordType = buffer.get(offset);
+
+					if (recordType == SessionLogFormat.RECORD_End) {
+						break;
+					}
+
+					int length = buffer.getShort(offset + 2) & 0xFFFF;
+					int deviceId = buffer.getInt(offset + 4);
+					long time = buffer.getLong(offset + 8);
+
+					if (buffer.limit() - offset < SessionLogFormat.RECORD_HEADER + length) {
+						break;
+					}
+
+					mOffset = offset + SessionLogFormat.RECORD_HEADER + length;
+
+					// Skip records between the index entry and the seek time
+					if (time - mSeekTime < 0) {
+						continue;
+					}
+
+					if (records == 0) {
+						firstTime = time;
+						wallStart = System.nanoTime();
+					}
+					else {
+						pace(firstTime, wallStart, time);
+					}
+
+					buffer.position(offset + SessionLogFormat.RECORD_HEADER);
+
+					if (recordType == SessionLogFormat.RECORD_Raw && consumer != null) {
+						buffer.get(mBuffer, 0, length);
+
+						if (consumer instanceof TimedSerialConsumer) {
+							((TimedSerialConsumer)consumer).reciveBytes(mBuffer, length, time);
+						}
+						else {
+							consumer.reciveBytes(mBuffer, length);
+						}
+					}
+					else if (recordType == SessionLogFormat.RECORD_Packet && listener != null) {
+						deliverPacket(buffer, deviceId, time, listener);
+					}
+
+					records++;
+				}
+			}
+			finally {
+				file.close();
+			}
+
+			if (!mStopped) {
+				mSegment++;
+				mOffset = SessionLogFormat.SEGMENT_HEADER;
+			}
+		}
+
+		return records;
+	}
+
+	// Wait until a record is due at the replay speed
+	private void pace(long firstTime, long wallStart, long time) {
+
+		double speed = mSpeed;
+
+		if (speed == SPEED_Unpaced) {
+			return;
+		}
+
+		long due = wallStart + (long)((time - firstTime) / speed);
+		long wait;
+
+		while (!mStopped && (wait = due - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+		}
+	}
+
+	// Decode a packet record at the buffer position and pass it to the listener
+	private void deliverPacket(MappedByteBuffer buffer, int deviceId, long time, SerialPacketListener listener) {
+
+		int packetType = buffer.get();
+		int count = buffer.get() & 0xFF;
+		SerialPacket packet;
+
+		switch (packetType) {
+		case SerialDecoder.PACKET_Quaternion: packet = mQuaternionPacket; break;
+		case SerialDecoder.PACKET_Sensors: packet = mSensorsPacket; break;
+		case SerialDecoder.PACKET_Battery: packet = mBatteryPacket; break;
+		case SerialDecoder.PACKET_Thermometer: packet = mThermometerPacket; break;
+		default: return;
+		}
+
+		packet.length = buffer.getShort() & 0xFFFF;
+		packet.counter = buffer.getInt();
+		packet.timestamp = buffer.getLong();
+		packet.deviceId = deviceId;
+		packet.receiveTime = time;
+
+		for (int i = 0; i < count && i < packet.getValueCount(); i++) {
+			packet.setValue(i, buffer.getInt());
+		}
+
+		switch (packetType) {
+		case SerialDecoder.PACKET_Quaternion: listener.onQuaternion(mQuaternionPacket); break;
+		case SerialDecoder.PACKET_Sensors: listener.onSensors(mSensorsPacket); break;
+		case SerialDecoder.PACKET_Battery: listener.onBattery(mBatteryPacket); break;
+		case SerialDecoder.PACKET_Thermometer: listener.onThermometer(mThermometerPacket); break;
+		}
+	}
+}
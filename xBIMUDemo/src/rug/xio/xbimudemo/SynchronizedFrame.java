@@ -0,0 +1,36 @@
+package rug.xio.xbimudemo;
+
+// Quaternion and sensor values of every device at one time, as produced by a
+// SynchronizedFrameMerger.
+//
+// Values are in raw packet units, interpolated to the frame time, so they are
+// floats; device i occupies quaternions[4 * i] to [4 * i + 3] and sensors[9 * i]
+// to [9 * i + 8] in packet order. A value is only meaningful if its valid flag
+// is set: a device that has not sent a packet type yet, or not recently enough,
+// is not valid. The frame is reused for every tick and is only valid for the
+// duration of the callback.
+public class SynchronizedFrame {
+
+	// Frame time on the System.nanoTime clock
+	public long time;
+
+	// Tick number, increasing by one per frame
+	public long tick;
+
+	public final int deviceCount;
+
+	public final float[] quaternions;
+	public final boolean[] quaternionValid;
+
+	public final float[] sensors;
+	public final boolean[] sensorsValid;
+
+	public SynchronizedFrame(int deviceCount) {
+		this.deviceCount = deviceCount;
+
+		quaternions = new float[deviceCount * 4];
+		quaternionValid = new boolean[deviceCount];
+		sensors = new float[deviceCount * 9];
+		sensorsValid = new boolean[deviceCount];
+	}
+}
@@ -0,0 +1,8 @@
+package rug.xio.xbimudemo;
+
+// Listener for frames from a SynchronizedFrameMerger
+public interface SynchronizedFrameListener {
+
+	void onFrame(SynchronizedFrame frame);
+
+}
@@ -0,0 +1,463 @@
+package rug.xio.xbimudemo;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Aligns the quaternion and sensor packets of several devices onto a common
+// time grid and delivers one SynchronizedFrame per tick.
+//
+// Each device has a bounded SampleRingBuffer, filled by its own read thread,
+// e.g. by subscribing it to the device decoder's bus. This thread merges the
+// buffers in timestamp order with a binary heap keyed on the timestamp at the
+// head of each buffer, keeping the two most recent samples of each packet type
+// per device. A tick is emitted once every device has a sample at or after
+// the tick time, so its values can be interpolated between the samples either
+// side of it; a device that is late by more than the holdback time is not
+// waited for and its latest values are held. Values older than the holdback
+// time are marked not valid.
+//
+// Interpolation is per value, nearest sample or linear. Linearly interpolated
+// quaternions are close to, but not exactly, unit quaternions.
+public class SynchronizedFrameMerger extends Thread {
+
+	// Interpolation modes
+	public static final int INTERPOLATE_Nearest = 0;
+	public static final int INTERPOLATE_Linear = 1;
+
+	// Default maximum time a tick waits for late devices
+	public static final long DEFAULT_HOLDBACK_NANOS = 50000000;
+
+	// Maximum time to wait for packets before checking for shutdown
+	private static final long AWAIT_NANOS = 10000000;
+
+	private final int mDeviceCount;
+	private final long mTickNanos;
+	private final int mInterpolation;
+	private final long mHoldbackNanos;
+	private final SynchronizedFrameListener mListener;
+
+	private final SampleRingBuffer[] mBuffers;
+	private final SerialPacketListener[] mReceivers;
+
+	// Min-heap of devices with packets, keyed on the timestamp at the head of their buffer
+	private final int[] mHeap;
+	private final long[] mHeapKeys;
+	private final boolean[] mInHeap;
+	private int mHeapSize = 0;
+
+	// Two most recent samples of each type per device: times and values
+	private final Samples mQuaternions;
+	private final Samples mSensors;
+
+	// Time of the most recent quaternion or sensors packet per device, and whether it has sent any
+	private final long[] mLastTimes;
+	private final boolean[] mActive;
+
+	// Next tick, once the first packet has set the grid
+	private long mNextTick;
+	private long mTickNumber = 0;
+	private boolean mStarted = false;
+
+	private final SynchronizedFrame mFrame;
+
+	private volatile boolean mRunning = true;
+
+	// Most recent two samples of one packet type for each device
+	private static class Samples {
+
+		final int stride;
+		final long[] previousTimes;
+		final long[] lastTimes;
+		final float[] previous;
+		final float[] last;
+		final int[] counts;
+
+		Samples(int devices, int stride) {
+			this.stride = stride;
+			previousTimes = new long[devices];
+			lastTimes = new long[devices];
+			previous = new float[devices * stride];
+			last = new float[devices * stride];
+			counts = new int[devices];
+		}
+
+		void add(int device, SerialPacket packet) {
+
+			int base = device * stride;
+
+			System.arraycopy(last, base, previous, base, stride);
+			previousTimes[device] = lastTimes[device];
+
+			for (int i = 0; i < stride; i++) {
+				last[base + i] = packet.getValue(i);
+			}
+
+			lastTimes[device] = packet.timestamp;
+
+			if (counts[device] < 2) {
+				counts[device]++;
+			}
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param deviceCount
+	 *            Number of devices, each gets a buffer, see getBuffer
+	 * @param bufferCapacity
+	 *            Number of packets buffered per device
+	 * @param tickNanos
+	 *            Time between frames
+	 * @param interpolation
+	 *            One of the INTERPOLATE_ constants
+	 * @param holdbackNanos
+	 *            Maximum time a tick waits for late devices
+	 * @param listener
+	 *            Listener receiving the frames on this thread
+	 */
+	public SynchronizedFrameMerger(int deviceCount, int bufferCapacity, long tickNanos, int interpolation,
+			long holdbackNanos, SynchronizedFrameListener listener) {
+
+		super("SynchronizedFrameMerger");
+
+		if (deviceCount < 1) {
+			throw new IllegalArgumentException("At least one device is needed");
+		}
+
+		if (tickNanos <= 0) {
+			throw new IllegalArgumentException("Tick must be positive");
+		}
+
+		if (interpolation != INTERPOLATE_Nearest && interpolation != INTERPOLATE_Linear) {
+			throw new IllegalArgumentException("Unknown interpolation " + interpolation);
+		}
+
+		mDeviceCount = deviceCount;
+		mTickNanos = tickNanos;
+		mInterpolation = interpolation;
+		mHoldbackNanos = holdbackNanos;
+		mListener = listener;
+
+		mBuffers = new SampleRingBuffer[deviceCount];
+		mReceivers = new SerialPacketListener[deviceCount];
+
+		for (int i = 0; i < deviceCount; i++) {
+			final int device = i;
+
+			mBuffers[i] = new SampleRingBuffer(bufferCapacity, SampleRingBuffer.OVERFLOW_DropOldest);
+			mReceivers[i] = new SerialPacketAdapter() {
+				@Override
+				public void onPacket(SerialPacket packet) {
+					receive(device, packet);
+				}
+			};
+		}
+
+		mHeap = new int[deviceCount];
+		mHeapKeys = new long[deviceCount];
+		mInHeap = new boolean[deviceCount];
+
+		mQuaternions = new Samples(deviceCount, 4);
+		mSensors = new Samples(deviceCount, 9);
+		mLastTimes = new long[deviceCount];
+		mActive = new boolean[deviceCount];
+
+		mFrame = new SynchronizedFrame(deviceCount);
+
+		setDaemon(true);
+	}
+
+	// Buffer of a device, to be filled by the device's read thread only
+	public SampleRingBuffer getBuffer(int device) {
+		return mBuffers[device];
+	}
+
+	// Stop delivering frames
+	public void shutdown() {
+		mRunning = false;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+
+		while (mRunning) {
+
+			// Devices that received packets join the merge
+			for (int device = 0; device < mDeviceCount; device++) {
+				if (!mInHeap[device] && !mBuffers[device].isEmpty()) {
+					push(device, mBuffers[device].peekTimestamp());
+				}
+			}
+
+			emitReadyTicks();
+
+			if (mHeapSize == 0) {
+				await(mStarted ? Math.max(1, mHoldbackNanos / 4) : AWAIT_NANOS);
+				continue;
+			}
+
+			int device = mHeap[0];
+
+			// The oldest packet would replace the sample after the next tick, emit the tick first
+			if (mStarted && mActive[device] && mLastTimes[device] - mNextTick >= 0 && mHeapKeys[0] - mNextTick > 0) {
+				if (!pollLaggingDevices()) {
+					await(Math.max(1, mHoldbackNanos / 4));
+				}
+				continue;
+			}
+
+			pop();
+			mBuffers[device].poll(mReceivers[device]);
+		}
+	}
+
+	// Take one packet from each device that has no sample at or after the next tick yet, returns false if none had one
+	private boolean pollLaggingDevices() {
+
+		boolean polled = false;
+
+		for (int device = 0; device < mDeviceCount; device++) {
+			if ((!mActive[device] || mLastTimes[device] - mNextTick < 0) && mInHeap[device]) {
+				remove(device);
+				mBuffers[device].poll(mReceivers[device]);
+				polled = true;
+			}
+		}
+
+		return polled;
+	}
+
+	// A packet polled from the buffer of a device
+	private void receive(int device, SerialPacket packet) {
+
+		switch (packet.type) {
+		case SerialDecoder.PACKET_Quaternion: mQuaternions.add(device, packet); break;
+		case SerialDecoder.PACKET_Sensors: mSensors.add(device, packet); break;
+		default:
+			// Battery and thermometer packets are not merged, their times do not move a device past a tick
+			return;
+		}
+
+		mLastTimes[device] = packet.timestamp;
+		mActive[device] = true;
+
+		if (!mStarted) {
+			// First tick on the grid after the first packet, nanoTime values may be negative
+			long phase = packet.timestamp % mTickNanos;
+
+			if (phase < 0) {
+				phase += mTickNanos;
+			}
+
+			mNextTick = packet.timestamp - phase + mTickNanos;
+			mStarted = true;
+		}
+	}
+
+	// Emit every tick that all devices have passed, or that late devices are no longer waited for
+	private void emitReadyTicks() {
+
+		while (mStarted) {
+			boolean allPassed = true;
+			boolean anyPassed = false;
+			boolean lagging = false;
+
+			for (int device = 0; device < mDeviceCount; device++) {
+				if (mActive[device] && mLastTimes[device] - mNextTick >= 0) {
+					anyPassed = true;
+				}
+				else {
+					allPassed = false;
+
+					// Late device with packets still to merge
+					if (mInHeap[device]) {
+						lagging = true;
+					}
+				}
+			}
+
+			if (!allPassed && (lagging || !anyPassed || System.nanoTime() - mNextTick < mHoldbackNanos)) {
+				return;
+			}
+
+			emit(mNextTick);
+			mNextTick += mTickNanos;
+		}
+	}
+
+	private void emit(long time) {
+
+		SynchronizedFrame frame = mFrame;
+
+		frame.time = time;
+		frame.tick = mTickNumber++;
+
+		for (int device = 0; device < mDeviceCount; device++) {
+			frame.quaternionValid[device] = interpolate(mQuaternions, device, time, frame.quaternions);
+			frame.sensorsValid[device] = interpolate(mSensors, device, time, frame.sensors);
+		}
+
+		mListener.onFrame(frame);
+	}
+
+	// Interpolate the samples of a device to a time, returns false if there is no recent sample
+	private boolean interpolate(Samples samples, int device, long time, float[] out) {
+
+		int count = samples.counts[device];
+		int stride = samples.stride;
+		int base = device * stride;
+
+		if (count == 0) {
+			return false;
+		}
+
+		long lastTime = samples.lastTimes[device];
+		long previousTime = samples.previousTimes[device];
+		boolean bracketed = count == 2 && previousTime - time <= 0 && lastTime - time >= 0 && lastTime != previousTime;
+
+		if (bracketed && mInterpolation == INTERPOLATE_Linear) {
+			float fraction = (float)(time - previousTime) / (float)(lastTime - previousTime);
+
+			for (int i = 0; i < stride; i++) {
+				float previous = samples.previous[base + i];
+				out[base + i] = previous + (samples.last[base + i] - previous) * fraction;
+			}
+
+			return true;
+		}
+
+		long used;
+
+		if (bracketed && time - previousTime < lastTime - time) {
+			System.arraycopy(samples.previous, base, out, base, stride);
+			used = previousTime;
+		}
+		else {
+			System.arraycopy(samples.last, base, out, base, stride);
+			used = lastTime;
+		}
+
+		return Math.abs(time - used) <= mHoldbackNanos;
+	}
+
+	// Wait for a packet on any buffer
+	private void await(long timeoutNanos) {
+
+		Thread thread = Thread.currentThread();
+
+		for (SampleRingBuffer buffer : mBuffers) {
+			buffer.setWaiter(thread);
+		}
+
+		// A packet may have arrived before the waiter was set
+		boolean empty = true;
+
+		for (int device = 0; device < mDeviceCount; device++) {
+			if (!mInHeap[device] && !mBuffers[device].isEmpty()) {
+				empty = false;
+			}
+		}
+
+		if (empty) {
+			LockSupport.parkNanos(this, Math.min(timeoutNanos, AWAIT_NANOS));
+		}
+
+		for (SampleRingBuffer buffer : mBuffers) {
+			buffer.setWaiter(null);
+		}
+	}
+
+	// Binary heap of device indices
+
+	private void push(int device, long key) {
+
+		int index = mHeapSize++;
+
+		mInHeap[device] = true;
+
+		while (index > 0) {
+			int parent = (index - 1) >> 1;
+
+			if (mHeapKeys[parent] - key <= 0) {
+				break;
+			}
+
+			mHeap[index] = mHeap[parent];
+			mHeapKeys[index] = mHeapKeys[parent];
+			index = parent;
+		}
+
+		mHeap[index] = device;
+		mHeapKeys[index] = key;
+	}
+
+	private void pop() {
+		removeAt(0);
+	}
+
+	private void remove(int device) {
+		for (int index = 0; index < mHeapSize; index++) {
+			if (mHeap[index] == device) {
+				removeAt(index);
+				return;
+			}
+		}
+	}
+
+	private void removeAt(int index) {
+
+		mInHeap[mHeap[index]] = false;
+
+		int size = --mHeapSize;
+
+		if (index == size) {
+			return;
+		}
+
+		int device = mHeap[size];
+		long key = mHeapKeys[size];
+
+		// Sift down from the hole
+		while (true) {
+			int child = 2 * index + 1;
+
+			if (child >= size) {
+				break;
+			}
+
+			if (child + 1 < size && mHeapKeys[child + 1] - mHeapKeys[child] < 0) {
+				child++;
+			}
+
+			if (key - mHeapKeys[child] <= 0) {
+				break;
+			}
+
+			mHeap[index] = mHeap[child];
+			mHeapKeys[index] = mHeapKeys[child];
+			index = child;
+		}
+
+		mHeap[index] = device;
+		mHeapKeys[index] = key;
+
+		// A removal from the middle may need to sift up instead
+		while (index > 0) {
+			int parent = (index - 1) >> 1;
+
+			if (mHeapKeys[parent] - mHeapKeys[index] <= 0) {
+				break;
+			}
+
+			int swapDevice = mHeap[parent];
+			long swapKey = mHeapKeys[parent];
+
+			mHeap[parent] = mHeap[index];
+			mHeapKeys[parent] = mHeapKeys[index];
+			mHeap[index] = swapDevice;
+			mHeapKeys[index] = swapKey;
+			index = parent;
+		}
+	}
+}
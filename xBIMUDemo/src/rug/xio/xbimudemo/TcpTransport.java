@@ -0,0 +1,138 @@
+package rug.xio.xbimudemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// SerialTransport over a TCP socket, e.g. to a serial-to-network bridge or a
+// local stream generator used for load testing.
+public class TcpTransport implements SerialTransport {
+
+	// Default connection timeout
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	private final String mHost;
+	private final int mPort;
+	private final int mConnectTimeoutMillis;
+
+	private volatile Socket mSocket;
+	private volatile InputStream mInStream;
+	private volatile OutputStream mOutStream;
+	private volatile int mState = STATE_CLOSED;
+
+	// Guards opening against a concurrent close, a closed transport cannot be opened again
+	private final Object mLock = new Object();
+	private boolean mClosed = false;
+
+	public TcpTransport(String host, int port) {
+		this(host, port, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+	}
+
+	public TcpTransport(String host, int port, int connectTimeoutMillis) {
+		mHost = host;
+		mPort = port;
+		mConnectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	@Override
+	public void open() throws IOException {
+
+		Socket socket;
+
+		// Create and publish the socket under the lock close takes, so a close at any time closes it
+		synchronized (mLock) {
+			if (mClosed) {
+				throw new IOException("Transport closed");
+			}
+
+			mState = STATE_OPENING;
+
+			socket = new Socket();
+
+			mSocket = socket;
+		}
+
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeoutMillis);
+
+			synchronized (mLock) {
+				// Closed while connecting
+				if (mClosed) {
+					throw new IOException("Transport closed");
+				}
+
+				mInStream = socket.getInputStream();
+				mOutStream = socket.getOutputStream();
+				mState = STATE_OPEN;
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		InputStream in = mInStream;
+
+		if (in == null) {
+			throw new IOException("Transport not open");
+		}
+
+		return in.read(buffer, offset, length);
+	}
+
+	@Override
+	public int available() throws IOException {
+
+		InputStream in = mInStream;
+
+		if (in == null) {
+			throw new IOException("Transport not open");
+		}
+
+		return in.available();
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+
+		OutputStream out = mOutStream;
+
+		if (out == null) {
+			throw new IOException("Transport not open");
+		}
+
+		out.write(buffer, offset, length);
+	}
+
+	@Override
+	public void close() {
+
+		Socket socket;
+
+		synchronized (mLock) {
+			mClosed = true;
+			mState = STATE_CLOSED;
+			socket = mSocket;
+		}
+
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more can be done, the socket is unusable either way
+			}
+		}
+	}
+
+	@Override
+	public int getState() {
+		return mState;
+	}
+}
@@ -0,0 +1,42 @@
+package rug.xio.xbimudemo;
+
+// Thermometer packet, see SerialDecoder.PACKET_Thermometer
+public class ThermometerPacket extends SerialPacket {
+
+	// temperature
+	public int temperature;
+
+	public ThermometerPacket() {
+		super(SerialDecoder.PACKET_Thermometer);
+	}
+
+	@Override
+	public int getValueCount() {
+		return 1;
+	}
+
+	@Override
+	public int getValue(int index) {
+		if (index != 0) {
+			throw new IndexOutOfBoundsException("Thermometer value index " + index);
+		}
+
+		return temperature;
+	}
+
+	@Override
+	public void setValue(int index, int value) {
+		if (index != 0) {
+			throw new IndexOutOfBoundsException("Thermometer value index " + index);
+		}
+
+		temperature = value;
+	}
+
+	@Override
+	public ThermometerPacket copy() {
+		ThermometerPacket packet = new ThermometerPacket();
+		packet.copyFrom(this);
+		return packet;
+	}
+}
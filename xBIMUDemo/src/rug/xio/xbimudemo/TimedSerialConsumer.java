@@ -0,0 +1,10 @@
+package rug.xio.xbimudemo;
+
+// SerialConsumer that can be given the receive time of each buffer, so a
+// recorded stream can be re-fed with its original timestamps.
+public interface TimedSerialConsumer extends SerialConsumer {
+
+	// process all bytes, received at receiveTime (System.nanoTime clock)
+	void reciveBytes(byte[] buffer, int bytes, long receiveTime);
+
+}
@@ -0,0 +1,155 @@
+package rug.xio.xbimudemo;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Coalesces decoded packets into UI updates.
+//
+// Only the latest packet of each type is kept. At most one update per frame
+// interval is posted to the UI thread, which then receives the latest packet of
+// each type that changed since the previous update. Main thread work is
+// therefore bounded by the update rate, whatever the sensor output rate.
+//
+// The SerialPacketListener methods may be called from any single thread; the
+// UI listener is called on the Handler's thread.
+public class UiUpdatePublisher implements SerialPacketListener {
+
+	// Default update rate, the display refresh rate of most devices
+	public static final int DEFAULT_RATE = 60;
+
+	private final Handler mHandler;
+	private final SerialPacketListener mUiListener;
+
+	// Minimum time between updates
+	private volatile long mIntervalMillis;
+
+	// Latest packets, guarded by this
+	private final QuaternionPacket mQuaternion = new QuaternionPacket();
+	private final SensorsPacket mSensors = new SensorsPacket();
+	private final BatteryPacket mBattery = new BatteryPacket();
+	private final ThermometerPacket mThermometer = new ThermometerPacket();
+
+	// Bit mask (1 << packet type) of packets received since the last update, guarded by this
+	private int mUpdated = 0;
+
+	// Set while an update is posted and has not yet run, guarded by this
+	private boolean mScheduled = false;
+
+	// Time of the last update (SystemClock.uptimeMillis), guarded by this
+	private long mLastUpdate = 0;
+
+	// Packets passed to the UI listener, only used on the UI thread
+	private final QuaternionPacket mUiQuaternion = new QuaternionPacket();
+	private final SensorsPacket mUiSensors = new SensorsPacket();
+	private final BatteryPacket mUiBattery = new BatteryPacket();
+	private final ThermometerPacket mUiThermometer = new ThermometerPacket();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param handler
+	 *            Handler of the UI thread
+	 * @param uiListener
+	 *            Listener called on the UI thread with the latest packets
+	 * @param rate
+	 *            Maximum number of updates per second
+	 */
+	public UiUpdatePublisher(Handler handler, SerialPacketListener uiListener, int rate) {
+		mHandler = handler;
+		mUiListener = uiListener;
+		setRate(rate);
+	}
+
+	// Set the maximum number of updates per second
+	public void setRate(int rate) {
+		if (rate < 1 || rate > 1000) {
+			throw new IllegalArgumentException("Update rate out of range: " + rate);
+		}
+
+		mIntervalMillis = 1000 / rate;
+	}
+
+	@Override
+	public void onQuaternion(QuaternionPacket packet) {
+		update(mQuaternion, packet);
+	}
+
+	@Override
+	public void onSensors(SensorsPacket packet) {
+		update(mSensors, packet);
+	}
+
+	@Override
+	public void onBattery(BatteryPacket packet) {
+		update(mBattery, packet);
+	}
+
+	@Override
+	public void onThermometer(ThermometerPacket packet) {
+		update(mThermometer, packet);
+	}
+
+	// Keep the latest packet and schedule an update if none is pending
+	private synchronized void update(SerialPacket latest, SerialPacket packet) {
+
+		latest.copyFrom(packet);
+		mUpdated |= 1 << packet.type;
+
+		if (!mScheduled) {
+			mScheduled = true;
+			mHandler.postAtTime(mUpdate, Math.max(SystemClock.uptimeMillis(), mLastUpdate + mIntervalMillis));
+		}
+	}
+
+	// Cancel any pending update, e.g. when the Activity is destroyed
+	public synchronized void cancel() {
+		mHandler.removeCallbacks(mUpdate);
+		mScheduled = false;
+		mUpdated = 0;
+	}
+
+	// Runs on the UI thread
+	private final Runnable mUpdate = new Runnable() {
+
+		@Override
+		public void run() {
+
+			int updated;
+
+			// Copy out the latest packets so the UI listener runs without holding the lock
+			synchronized (UiUpdatePublisher.this) {
+				updated = mUpdated;
+
+				if ((updated & (1 << SerialDecoder.PACKET_Quaternion)) != 0) {
+					mUiQuaternion.copyFrom(mQuaternion);
+				}
+				if ((updated & (1 << SerialDecoder.PACKET_Sensors)) != 0) {
+					mUiSensors.copyFrom(mSensors);
+				}
+				if ((updated & (1 << SerialDecoder.PACKET_Battery)) != 0) {
+					mUiBattery.copyFrom(mBattery);
+				}
+				if ((updated & (1 << SerialDecoder.PACKET_Thermometer)) != 0) {
+					mUiThermometer.copyFrom(mThermometer);
+				}
+
+				mUpdated = 0;
+				mScheduled = false;
+				mLastUpdate = SystemClock.uptimeMillis();
+			}
+
+			if ((updated & (1 << SerialDecoder.PACKET_Quaternion)) != 0) {
+				mUiListener.onQuaternion(mUiQuaternion);
+			}
+			if ((updated & (1 << SerialDecoder.PACKET_Sensors)) != 0) {
+				mUiListener.onSensors(mUiSensors);
+			}
+			if ((updated & (1 << SerialDecoder.PACKET_Battery)) != 0) {
+				mUiListener.onBattery(mUiBattery);
+			}
+			if ((updated & (1 << SerialDecoder.PACKET_Thermometer)) != 0) {
+				mUiListener.onThermometer(mUiThermometer);
+			}
+		}
+	};
+}
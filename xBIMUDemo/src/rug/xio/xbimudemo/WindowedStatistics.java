@@ -0,0 +1,220 @@
+package rug.xio.xbimudemo;
+
+// Mean, variance, RMS, minimum, maximum and peak-to-peak of a channel of raw
+// packet values over a window of samples.
+//
+// Every add is O(1): sums are kept as exact long totals, the values are held in
+// a ring buffer to be subtracted when they leave a sliding window, and the
+// minimum and maximum come from monotonic deques. Nothing is allocated after
+// construction.
+//
+// In WINDOW_Sliding mode the statistics cover the last windowSize samples (or
+// all samples while fewer have been added) and a result is due every
+// outputInterval samples. In WINDOW_Tumbling mode a result is due when the
+// window is full, after which the window starts empty.
+//
+// Not thread-safe; adds and reads must be on one thread.
+public class WindowedStatistics {
+
+	// Window modes
+	public static final int WINDOW_Sliding = 0;
+	public static final int WINDOW_Tumbling = 1;
+
+	// Largest window, keeps the exact variance sums within a long for 16-bit values
+	public static final int MAX_WINDOW = 65536;
+
+	private final int mWindowSize;
+	private final int mMode;
+	private final int mOutputInterval;
+
+	// Values in the window, by sample index modulo window size
+	private final int[] mValues;
+
+	// Monotonic deques of sample indices, rings of window size capacity
+	private final long[] mMinDeque;
+	private final long[] mMaxDeque;
+	private int mMinHead, mMinCount;
+	private int mMaxHead, mMaxCount;
+
+	// Index of the next sample
+	private long mIndex = 0;
+
+	// Index of the first sample in the window
+	private long mStart = 0;
+
+	private long mSum = 0;
+	private long mSumOfSquares = 0;
+
+	// Samples until the next result is due
+	private int mUntilOutput;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param windowSize
+	 *            Number of samples in the window
+	 * @param mode
+	 *            WINDOW_Sliding or WINDOW_Tumbling
+	 * @param outputInterval
+	 *            Samples between results in sliding mode, ignored in tumbling
+	 *            mode
+	 */
+	public WindowedStatistics(int windowSize, int mode, int outputInterval) {
+
+		if (windowSize < 1 || windowSize > MAX_WINDOW) {
+			throw new IllegalArgumentException("Window size out of range: " + windowSize);
+		}
+
+		if (mode != WINDOW_Sliding && mode != WINDOW_Tumbling) {
+			throw new IllegalArgumentException("Unknown window mode " + mode);
+		}
+
+		if (outputInterval < 1) {
+			throw new IllegalArgumentException("Output interval must be at least 1");
+		}
+
+		mWindowSize = windowSize;
+		mMode = mode;
+		mOutputInterval = mode == WINDOW_Tumbling ? windowSize : outputInterval;
+		mUntilOutput = mOutputInterval;
+
+		mValues = new int[windowSize];
+		mMinDeque = new long[windowSize];
+		mMaxDeque = new long[windowSize];
+	}
+
+	public int getWindowSize() {
+		return mWindowSize;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	// Empty the window
+	public void reset() {
+		mStart = mIndex;
+		mSum = 0;
+		mSumOfSquares = 0;
+		mMinCount = 0;
+		mMaxCount = 0;
+		mUntilOutput = mOutputInterval;
+	}
+
+	/**
+	 * Add a sample.
+	 * 
+	 * @return true if a result is due; in tumbling mode, read the result before
+	 *         the next add
+	 */
+	public boolean add(int value) {
+
+		// A tumbling window that was reported is started again
+		if (mMode == WINDOW_Tumbling && mIndex - mStart == mWindowSize) {
+			reset();
+		}
+
+		long index = mIndex;
+		int slot = (int)(index % mWindowSize);
+
+		// Remove the sample leaving a sliding window
+		if (index - mStart == mWindowSize) {
+			int old = mValues[slot];
+			mSum -= old;
+			mSumOfSquares -= (long)old * old;
+			mStart++;
+
+			if (mMinCount > 0 && mMinDeque[mMinHead] < mStart) {
+				mMinHead = (mMinHead + 1) % mWindowSize;
+				mMinCount--;
+			}
+
+			if (mMaxCount > 0 && mMaxDeque[mMaxHead] < mStart) {
+				mMaxHead = (mMaxHead + 1) % mWindowSize;
+				mMaxCount--;
+			}
+		}
+
+		mValues[slot] = value;
+		mSum += value;
+		mSumOfSquares += (long)value * value;
+
+		// Drop the samples that can no longer be the minimum or maximum
+		while (mMinCount > 0 && mValues[(int)(mMinDeque[(mMinHead + mMinCount - 1) % mWindowSize] % mWindowSize)] >= value) {
+			mMinCount--;
+		}
+		mMinDeque[(mMinHead + mMinCount) % mWindowSize] = index;
+		mMinCount++;
+
+		while (mMaxCount > 0 && mValues[(int)(mMaxDeque[(mMaxHead + mMaxCount - 1) % mWindowSize] % mWindowSize)] <= value) {
+			mMaxCount--;
+		}
+		mMaxDeque[(mMaxHead + mMaxCount) % mWindowSize] = index;
+		mMaxCount++;
+
+		mIndex = index + 1;
+
+		if (--mUntilOutput == 0) {
+			mUntilOutput = mOutputInterval;
+			return true;
+		}
+
+		return false;
+	}
+
+	// Number of samples in the window
+	public int getCount() {
+		return (int)(mIndex - mStart);
+	}
+
+	// Total number of samples added
+	public long getSampleCount() {
+		return mIndex;
+	}
+
+	public long getSum() {
+		return mSum;
+	}
+
+	public double getMean() {
+		int count = getCount();
+		return count > 0 ? (double)mSum / count : 0.0;
+	}
+
+	// Population variance
+	public double getVariance() {
+
+		long count = getCount();
+
+		if (count == 0) {
+			return 0.0;
+		}
+
+		// Exact in long arithmetic, so there is no cancellation
+		return (double)(count * mSumOfSquares - mSum * mSum) / ((double)count * count);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	// Root mean square
+	public double getRms() {
+		int count = getCount();
+		return count > 0 ? Math.sqrt((double)mSumOfSquares / count) : 0.0;
+	}
+
+	// Minimum, 0 if the window is empty
+	public int getMin() {
+		return mMinCount > 0 ? mValues[(int)(mMinDeque[mMinHead] % mWindowSize)] : 0;
+	}
+
+	// Maximum, 0 if the window is empty
+	public int getMax() {
+		return mMaxCount > 0 ? mValues[(int)(mMaxDeque[mMaxHead] % mWindowSize)] : 0;
+	}
+
+	public int getPeakToPeak() {
+		return getMax() - getMin();
+	}
+}
@@ -0,0 +1,31 @@
+package rug.xio.xbimudemo;
+
+// Fixed-point scaling of the x-BIMU packet values, as used by the x-BIMU
+// Terminal. Multiply a packet value by the constant to get the value in the
+// unit named in the comment.
+public final class XbimuUnits {
+
+	// Quaternion element, dimensionless
+	public static final float QUATERNION = 1f / 10000f;
+
+	// Gyroscope, degrees per second
+	public static final float GYROSCOPE = 1f / 10f;
+
+	// Gyroscope, radians per second
+	public static final float GYROSCOPE_RADIANS = (float)(Math.PI / 180.0) / 10f;
+
+	// Accelerometer, g
+	public static final float ACCELEROMETER = 1f / 1000f;
+
+	// Magnetometer, gauss
+	public static final float MAGNETOMETER = 1f / 1000f;
+
+	// Battery voltage, volts
+	public static final float BATTERY = 1f / 1000f;
+
+	// Thermometer, degrees Celsius
+	public static final float THERMOMETER = 1f / 10f;
+
+	private XbimuUnits() {
+	}
+}